@@ -0,0 +1,81 @@
+package com.graphhopper.replica;
+
+import com.google.common.collect.Lists;
+import com.graphhopper.CustomGraphHopperGtfs;
+import com.graphhopper.OsmHelper;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.util.EdgeIteratorState;
+import com.replica.benchmarks.RosevilleFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Street network export, for the edges of the Roseville -> Sacramento car route (see RosevilleFixtures), and lane
+ * tag parsing for every lane tag value on the ways in the test region. Lives in StreetEdgeExporter's package so the
+ * package-private parseLanesTag can be measured directly.
+ *
+ * Setup parses tags from the whole test OSM file, as the export command does, so it takes a while.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreetEdgeExporterBenchmark {
+
+    private StreetEdgeExporter exporter;
+    private List<EdgeIteratorState> edges;
+    private List<String> laneTagValues;
+
+    @Setup
+    public void setup() {
+        CustomGraphHopperGtfs graphHopper = RosevilleFixtures.customGraphHopper();
+        graphHopper.collectOsmInfo();
+        exporter = new StreetEdgeExporter(graphHopper, graphHopper.getOsmIdToWayTags(), graphHopper.getOsmHelper());
+
+        // Exports iterate over all edges in their stored direction, so route edges are looked up in that direction
+        BaseGraph baseGraph = graphHopper.getBaseGraph();
+        edges = Lists.newArrayList();
+        for (EdgeIteratorState edge : RosevilleFixtures.streetPathEdges()) {
+            edges.add(baseGraph.getEdgeIteratorState(edge.getEdge(), Integer.MIN_VALUE));
+        }
+
+        laneTagValues = Lists.newArrayList();
+        for (Map<String, String> wayTags : graphHopper.getOsmIdToWayTags().values()) {
+            for (String laneTag : OsmHelper.LANE_TAGS) {
+                String value = wayTags.get(laneTag);
+                if (value != null && value.matches("[0-9.;]+")) {
+                    laneTagValues.add(value);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void generateRecords(Blackhole blackhole) {
+        for (EdgeIteratorState edge : edges) {
+            blackhole.consume(exporter.generateRecords(edge));
+        }
+    }
+
+    @Benchmark
+    public void parseLanesTag(Blackhole blackhole) {
+        for (String value : laneTagValues) {
+            blackhole.consume(StreetEdgeExporter.parseLanesTag(value));
+        }
+    }
+}
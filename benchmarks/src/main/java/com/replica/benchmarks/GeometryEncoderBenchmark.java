@@ -0,0 +1,70 @@
+package com.replica.benchmarks;
+
+import com.graphhopper.util.PointList;
+import com.replica.util.GeometryEncoder;
+import com.replica.util.GeometryFormat;
+import com.replica.util.RequestOptions;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the Roseville -> Sacramento car route's geometry (see RosevilleFixtures) in each GeometryFormat, at the
+ * format's default precision. Alongside the time per encoding, the encodedBytes counter gives the size of the encoded
+ * geometry, ie what the format adds to a reply before any message compression; run with -prof gc for the bytes
+ * allocated per encoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeometryEncoderBenchmark {
+
+    @Param({"WKT", "POLYLINE", "PACKED", "WKB", "NONE"})
+    public GeometryFormat geometryFormat;
+
+    private PointList points;
+    private RequestOptions options;
+
+    /**
+     * Reported as the size of the last encoding in each iteration rather than a total, as every encoding of the
+     * route has the same size. Geometries are ASCII (base64 for the binary formats), so chars are bytes
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EncodedSize {
+        public long encodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            encodedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        points = RosevilleFixtures.streetPath(RosevilleFixtures.streetRequest("car", false)).getPoints();
+        options = new RequestOptions(geometryFormat, geometryFormat.getDefaultPrecision(), false);
+    }
+
+    @Benchmark
+    public String encode(EncodedSize encodedSize) {
+        String encoded = GeometryEncoder.encode(points, options);
+        encodedSize.encodedBytes = encoded.length();
+        return encoded;
+    }
+}
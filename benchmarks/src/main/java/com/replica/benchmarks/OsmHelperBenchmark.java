@@ -0,0 +1,74 @@
+package com.replica.benchmarks;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.OsmHelper;
+import com.graphhopper.RouterConstants;
+import com.graphhopper.reader.ReaderElement;
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.reader.osm.OSMInput;
+import com.graphhopper.reader.osm.OSMInputFile;
+import com.graphhopper.routing.ev.IntEncodedValue;
+import com.graphhopper.util.EdgeIteratorState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OSM way tag parsing, as done for every way in the OSM file on import and export, over the ways that make up the
+ * Roseville -> Sacramento car route (see RosevilleFixtures).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OsmHelperBenchmark {
+
+    private List<ReaderWay> ways;
+
+    @Setup
+    public void setup() throws Exception {
+        GraphHopper graphHopper = RosevilleFixtures.graphHopper();
+        IntEncodedValue osmWayIdEnc = graphHopper.getEncodingManager().getIntEncodedValue(RouterConstants.OSM_ID_ENCODED_VALUE);
+        Set<Long> wayIds = Sets.newHashSet();
+        for (EdgeIteratorState edge : RosevilleFixtures.streetPathEdges()) {
+            wayIds.add((long) edge.get(osmWayIdEnc));
+        }
+
+        ways = Lists.newArrayList();
+        try (OSMInput input = new OSMInputFile(new File(graphHopper.getOSMFile())).setWorkerThreads(2).open()) {
+            ReaderElement next;
+            while ((next = input.getNext()) != null) {
+                if (next.getType().equals(ReaderElement.Type.WAY) && wayIds.contains(next.getId())) {
+                    ways.add((ReaderWay) next);
+                }
+            }
+        }
+        if (ways.isEmpty()) {
+            throw new IllegalStateException("None of the fixture route's ways were found in " + graphHopper.getOSMFile());
+        }
+    }
+
+    @Benchmark
+    public void parseTagsFromOsmWay(Blackhole blackhole) {
+        for (ReaderWay way : ways) {
+            blackhole.consume(OsmHelper.parseTagsFromOsmWay(way));
+        }
+    }
+}
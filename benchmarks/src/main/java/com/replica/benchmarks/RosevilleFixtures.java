@@ -0,0 +1,146 @@
+package com.replica.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Timestamp;
+import com.graphhopper.CustomGraphHopperGtfs;
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.GraphHopperConfig;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.gtfs.PtRouter;
+import com.graphhopper.gtfs.PtRouterTripBasedImpl;
+import com.graphhopper.http.GraphHopperManaged;
+import com.graphhopper.jackson.Jackson;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.Parameters;
+import com.graphhopper.util.details.PathDetail;
+import com.replica.util.RequestOptions;
+import com.replica.util.RouterConverters;
+import router.RouterOuterClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Fixtures shared by the benchmarks, built from the Roseville area of the micro_nor_cal test data (run
+ * setup_tests.sh to download it). The graph is loaded once per benchmark JVM using
+ * configs/run_local_server_gh_config.yaml, or the config given with -Dbenchmark.config=...; it's imported on first
+ * use if it hasn't been built yet. Paths in the config are relative, so benchmarks should be run from the repo root:
+ *
+ *   mvn -pl benchmarks -am package -DskipTests
+ *   java -jar benchmarks/target/benchmarks.jar [benchmark name regex] [JMH options, eg -prof gc]
+ */
+public final class RosevilleFixtures {
+
+    public static final String CONFIG_PATH =
+            System.getProperty("benchmark.config", "configs/run_local_server_gh_config.yaml");
+
+    // Same points as RouterServerTest; together they give a ~30km street route and a PT route with a transfer
+    public static final double[] ORIGIN = {38.74891667931467, -121.29023848101498}; // Roseville area
+    public static final double[] DESTINATION = {38.55518457319914, -121.43714698730038}; // Sacramento area
+    public static final Timestamp DEPARTURE_TIME =
+            Timestamp.newBuilder().setSeconds(Instant.parse("2019-10-15T13:30:00Z").getEpochSecond()).build();
+
+    private static GraphHopperConfig graphHopperConfig;
+    private static GraphHopperManaged graphHopperManaged;
+
+    private RosevilleFixtures() {
+        // static fixtures only
+    }
+
+    public static synchronized GraphHopper graphHopper() {
+        if (graphHopperManaged == null) {
+            try {
+                ObjectMapper yaml = Jackson.initObjectMapper(new ObjectMapper(new YAMLFactory()));
+                JsonNode yamlNode = yaml.readTree(new File(CONFIG_PATH));
+                graphHopperConfig = yaml.convertValue(yamlNode.get("graphhopper"), GraphHopperConfig.class);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't read benchmark config " + CONFIG_PATH, e);
+            }
+            graphHopperManaged = new GraphHopperManaged(graphHopperConfig);
+            graphHopperManaged.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(graphHopperManaged::stop));
+        }
+        return graphHopperManaged.getGraphHopper();
+    }
+
+    public static CustomGraphHopperGtfs customGraphHopper() {
+        return (CustomGraphHopperGtfs) graphHopper();
+    }
+
+    public static RouterOuterClass.StreetRouteRequest streetRequest(String profile, boolean returnFullPathDetails) {
+        return RouterOuterClass.StreetRouteRequest.newBuilder()
+                .addPoints(point(ORIGIN))
+                .addPoints(point(DESTINATION))
+                .setProfile(profile)
+                .setReturnFullPathDetails(returnFullPathDetails)
+                .build();
+    }
+
+    /**
+     * Routes the street request the same way StreetRouter does, so the path has the details a real reply is built from
+     */
+    public static ResponsePath streetPath(RouterOuterClass.StreetRouteRequest request) {
+        GHResponse response = graphHopper().route(RouterConverters.toGHRequest(request, RequestOptions.DEFAULT));
+        if (response.hasErrors()) {
+            throw new IllegalStateException("Couldn't route fixture street path: " + response.getErrors());
+        }
+        return response.getBest();
+    }
+
+    /**
+     * The edges (in their direction of travel) of the car route from ORIGIN to DESTINATION
+     */
+    public static List<EdgeIteratorState> streetPathEdges() {
+        RouterOuterClass.StreetRouteRequest request = streetRequest("car", false);
+        GHRequest ghRequest = RouterConverters.toGHRequest(request, RequestOptions.DEFAULT);
+        ghRequest.setPathDetails(Lists.newArrayList(Parameters.Details.EDGE_KEY));
+        GHResponse response = graphHopper().route(ghRequest);
+        if (response.hasErrors()) {
+            throw new IllegalStateException("Couldn't route fixture street path: " + response.getErrors());
+        }
+        List<EdgeIteratorState> edges = Lists.newArrayList();
+        for (PathDetail edgeKey : response.getBest().getPathDetails().get(Parameters.Details.EDGE_KEY)) {
+            edges.add(graphHopper().getBaseGraph().getEdgeIteratorStateForKey(((Number) edgeKey.getValue()).intValue()));
+        }
+        return edges;
+    }
+
+    /**
+     * Transit paths from ORIGIN to DESTINATION, routed the same way TransitRouter does (but without its leg
+     * augmentation, so legs are the raw Trip.WalkLegs and Trip.PtLegs from GH)
+     */
+    public static List<ResponsePath> ptPaths() {
+        GraphHopper graphHopper = graphHopper();
+        PtRouter ptRouter = new PtRouterTripBasedImpl(graphHopper, graphHopperConfig, graphHopper.getTranslationMap(),
+                graphHopper.getBaseGraph(), graphHopper.getEncodingManager(), graphHopper.getLocationIndex(),
+                customGraphHopper().getGtfsStorage(), graphHopper.getPathDetailsBuilderFactory());
+        RouterOuterClass.PtRouteRequest request = RouterOuterClass.PtRouteRequest.newBuilder()
+                .addPoints(point(ORIGIN))
+                .addPoints(point(DESTINATION))
+                .setEarliestDepartureTime(DEPARTURE_TIME)
+                .setLimitSolutions(4)
+                .setMaxProfileDuration(10)
+                .setBetaWalkTime(1.5)
+                .setLimitStreetTimeSeconds(1440)
+                .setUsePareto(false)
+                .setBetaTransfers(1440000)
+                .build();
+        GHResponse response = ptRouter.route(RouterConverters.toGHPtRequest(request));
+        if (response.getAll().isEmpty()) {
+            throw new IllegalStateException("Couldn't route fixture PT paths: " + response.getErrors());
+        }
+        return response.getAll();
+    }
+
+    private static RouterOuterClass.Point point(double[] latLon) {
+        return RouterOuterClass.Point.newBuilder().setLat(latLon[0]).setLon(latLon[1]).build();
+    }
+}
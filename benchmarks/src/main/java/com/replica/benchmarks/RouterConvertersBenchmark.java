@@ -0,0 +1,150 @@
+package com.replica.benchmarks;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.graphhopper.ReplicaPathDetails;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.Trip;
+import com.graphhopper.util.details.PathDetail;
+import com.replica.CustomPtLeg;
+import com.replica.util.GeometryFormat;
+import com.replica.util.RequestOptions;
+import com.replica.util.RouterConverters;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import router.RouterOuterClass;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of GH paths to reply protos: toStreetPath for the Roseville -> Sacramento car route, and toCustomPtLeg
+ * and toPtLeg for the legs of a PT route between the same points (see RosevilleFixtures).
+ *
+ * GTFS link mappings and route info are read from transit_data/gtfs_link_mappings if the gtfs_links command has been
+ * run; otherwise every PT leg is given street-based route info, and every stop pair a mapping to 20 stable edge IDs
+ * from the car route, so that toCustomPtLeg still does its full amount of work.
+ *
+ * Run with -prof gc for the bytes allocated per conversion (gc.alloc.rate.norm). To compare with an older version of
+ * the converters, check out grpc/src/main/java/com/replica/util/RouterConverters.java at that version, rebuild the
+ * benchmarks jar, and run the same benchmarks again; the fixtures don't depend on the converters' internals.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterConvertersBenchmark {
+
+    private static final File LINK_MAPPINGS_DB_FILE = new File("transit_data/gtfs_link_mappings/gtfs_link_mappings.db");
+
+    private List<Trip.PtLeg> ptLegs;
+    private List<Trip.Leg> customLegs;
+    private Map<String, String> gtfsFeedIdMapping;
+    private Map<String, String> gtfsLinkMappings;
+    private Map<String, List<String>> gtfsRouteInfo;
+
+    @State(Scope.Benchmark)
+    public static class StreetPathState {
+        @Param({"false", "true"})
+        public boolean returnFullPathDetails;
+
+        @Param({"WKT", "POLYLINE"})
+        public GeometryFormat geometryFormat;
+
+        private ResponsePath streetPath;
+        private RequestOptions options;
+
+        @Setup
+        public void setup() {
+            streetPath = RosevilleFixtures.streetPath(RosevilleFixtures.streetRequest("car", returnFullPathDetails));
+            options = new RequestOptions(geometryFormat, geometryFormat.getDefaultPrecision(), false);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        ResponsePath ptPath = RosevilleFixtures.ptPaths().stream()
+                .filter(path -> path.getLegs().stream().anyMatch(leg -> leg instanceof Trip.PtLeg))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Fixture PT route has no PT legs"));
+        ptLegs = Lists.newArrayList();
+        for (Trip.Leg leg : ptPath.getLegs()) {
+            if (leg instanceof Trip.PtLeg) {
+                ptLegs.add((Trip.PtLeg) leg);
+            }
+        }
+        loadGtfsMappings();
+
+        // toPtLeg takes the legs as augmented by TransitRouter
+        customLegs = Lists.newArrayList();
+        for (Trip.Leg leg : ptPath.getLegs()) {
+            customLegs.add(leg instanceof Trip.PtLeg
+                    ? RouterConverters.toCustomPtLeg((Trip.PtLeg) leg, gtfsFeedIdMapping, gtfsLinkMappings, gtfsRouteInfo)
+                    : RouterConverters.toCustomStreetLeg((Trip.WalkLeg) leg, "ACCESS", "foot"));
+        }
+    }
+
+    private void loadGtfsMappings() {
+        if (LINK_MAPPINGS_DB_FILE.exists()) {
+            DB db = DBMaker.newFileDB(LINK_MAPPINGS_DB_FILE).readOnly().make();
+            // Copied out of the DB, so lookups measure the converter and not MapDB
+            gtfsLinkMappings = Maps.newHashMap(db.getHashMap("gtfsLinkMappings"));
+            gtfsRouteInfo = Maps.newHashMap(db.getHashMap("gtfsRouteInfo"));
+            gtfsFeedIdMapping = Maps.newHashMap(db.getHashMap("gtfsFeedIdMap"));
+            db.close();
+            return;
+        }
+        ResponsePath streetPath = RosevilleFixtures.streetPath(RosevilleFixtures.streetRequest("car", false));
+        List<String> stableEdgeIds = Lists.newArrayList();
+        for (PathDetail stableEdgeId : streetPath.getPathDetails().get(ReplicaPathDetails.STABLE_EDGE_IDS)) {
+            stableEdgeIds.add((String) stableEdgeId.getValue());
+        }
+        String segment = String.join(",", stableEdgeIds.subList(0, Math.min(20, stableEdgeIds.size())));
+        gtfsLinkMappings = Maps.newHashMap();
+        gtfsRouteInfo = Maps.newHashMap();
+        gtfsFeedIdMapping = Maps.newHashMap();
+        for (Trip.PtLeg leg : ptLegs) {
+            gtfsFeedIdMapping.put(leg.feed_id, leg.feed_id);
+            gtfsRouteInfo.put(leg.feed_id + ":" + leg.route_id, Lists.newArrayList("agency", leg.route_id, leg.route_id, "3"));
+            for (int i = 0; i < leg.stops.size() - 1; i++) {
+                gtfsLinkMappings.put(leg.feed_id + ":" + leg.stops.get(i).stop_id + "," + leg.stops.get(i + 1).stop_id, segment);
+            }
+        }
+    }
+
+    @Benchmark
+    public RouterOuterClass.StreetPath toStreetPath(StreetPathState state) {
+        return RouterConverters.toStreetPath(state.streetPath, "car", state.returnFullPathDetails, state.options);
+    }
+
+    @Benchmark
+    public void toCustomPtLeg(Blackhole blackhole) {
+        for (Trip.PtLeg leg : ptLegs) {
+            CustomPtLeg customPtLeg = RouterConverters.toCustomPtLeg(leg, gtfsFeedIdMapping, gtfsLinkMappings, gtfsRouteInfo);
+            blackhole.consume(customPtLeg);
+        }
+    }
+
+    @Benchmark
+    public void toPtLeg(Blackhole blackhole) {
+        for (Trip.Leg leg : customLegs) {
+            blackhole.consume(RouterConverters.toPtLeg(leg));
+        }
+    }
+}
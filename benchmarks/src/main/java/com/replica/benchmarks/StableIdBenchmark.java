@@ -0,0 +1,79 @@
+package com.replica.benchmarks;
+
+import com.graphhopper.CustomGraphHopperGtfs;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.stableid.StableIdEncodedValues;
+import com.graphhopper.stableid.StableIdPathDetailsBuilder;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.details.PathDetail;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stable edge ID encoding and decoding, over every edge of the Roseville -> Sacramento car route (see
+ * RosevilleFixtures), so each result is the cost for one full path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StableIdBenchmark {
+
+    private EncodingManager encodingManager;
+    private StableIdEncodedValues stableIdEncodedValues;
+    private List<EdgeIteratorState> edges;
+
+    @Setup
+    public void setup() {
+        CustomGraphHopperGtfs graphHopper = RosevilleFixtures.customGraphHopper();
+        encodingManager = graphHopper.getEncodingManager();
+        stableIdEncodedValues = StableIdEncodedValues.fromEncodingManager(encodingManager, graphHopper.getOsmHelper());
+        edges = RosevilleFixtures.streetPathEdges();
+    }
+
+    @Benchmark
+    public void getStableId(Blackhole blackhole) {
+        for (EdgeIteratorState edge : edges) {
+            blackhole.consume(stableIdEncodedValues.getStableId(edge.get(EdgeIteratorState.REVERSE_STATE), edge));
+        }
+    }
+
+    // Rewrites each edge's (unchanged) stable ID in the loaded graph, as is done for every edge during import
+    @Benchmark
+    public void setStableId() {
+        for (EdgeIteratorState edge : edges) {
+            stableIdEncodedValues.setStableId(edge.get(EdgeIteratorState.REVERSE_STATE), edge);
+        }
+    }
+
+    // Drives the builder the way GH's PathDetailsFromEdges does when calculating details for a path
+    @Benchmark
+    public Map.Entry<String, List<PathDetail>> stableIdPathDetails() {
+        StableIdPathDetailsBuilder builder = new StableIdPathDetailsBuilder(encodingManager);
+        int lastIndex = 0;
+        for (EdgeIteratorState edge : edges) {
+            if (builder.isEdgeDifferentToLastEdge(edge)) {
+                builder.endInterval(lastIndex);
+                builder.startInterval(lastIndex);
+            }
+            lastIndex++;
+        }
+        builder.endInterval(lastIndex);
+        return builder.build();
+    }
+}
@@ -0,0 +1,138 @@
+package io.grpcweb;
+
+import com.replica.benchmarks.RosevilleFixtures;
+import com.replica.util.RequestOptions;
+import com.replica.util.RouterConverters;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpcweb.MessageHandler.ContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import router.RouterOuterClass;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * grpc-web framing done by the proxy servlet: deframing a request body with MessageDeframer, and writing a framed
+ * reply plus trailer with SendResponse, starting from the reply's proto stream as the in-process transport hands it
+ * over. The request is a street route request and the reply a full-detail street
+ * route reply for the Roseville -> Sacramento car route (see RosevilleFixtures), in both binary and text (base64)
+ * encodings. Lives in io.grpcweb so the package-private framing classes can be used directly; the servlet request,
+ * response and async context are minimal stubs, whose output stream is always ready and discards written bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrpcWebFramingBenchmark {
+
+    @Param({"application/grpc-web+proto", "application/grpc-web-text"})
+    public String contentType;
+
+    private ContentType parsedContentType;
+    private byte[] requestBody;
+    private static final MethodDescriptor.Marshaller<RouterOuterClass.StreetRouteReply> REPLY_MARSHALLER =
+            ProtoUtils.marshaller(RouterOuterClass.StreetRouteReply.getDefaultInstance());
+
+    private RouterOuterClass.StreetRouteReply reply;
+    private AsyncContext asyncContext;
+    private long bytesWritten;
+
+    @Setup
+    public void setup() {
+        parsedContentType = MessageHandler.getContentType(contentType);
+
+        RouterOuterClass.StreetRouteRequest request = RosevilleFixtures.streetRequest("car", true);
+        byte[] requestBytes = request.toByteArray();
+        byte[] frame = new byte[requestBytes.length + 5];
+        System.arraycopy(new MessageFramer().getPrefix(requestBytes.length, MessageFramer.Type.DATA), 0, frame, 0, 5);
+        System.arraycopy(requestBytes, 0, frame, 5, requestBytes.length);
+        requestBody = parsedContentType == ContentType.GRPC_WEB_TEXT ? Base64.getEncoder().encode(frame) : frame;
+
+        reply = RouterOuterClass.StreetRouteReply.newBuilder()
+                .addPaths(RouterConverters.toStreetPath(RosevilleFixtures.streetPath(request), "car", true, RequestOptions.DEFAULT))
+                .build();
+
+        HttpServletRequest servletRequest = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> "getContentType".equals(method.getName()) ? contentType : null);
+        ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                bytesWritten++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bytesWritten += len;
+            }
+        };
+        HttpServletResponse servletResponse = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class},
+                (proxy, method, args) -> "getOutputStream".equals(method.getName()) ? outputStream : null);
+        asyncContext = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{AsyncContext.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRequest":
+                            return servletRequest;
+                        case "getResponse":
+                            return servletResponse;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    @Benchmark
+    public long deframeRequest() throws IOException {
+        MessageDeframer deframer = new MessageDeframer(parsedContentType);
+        if (!deframer.processInput(requestBody, 0, requestBody.length) || !deframer.finish()) {
+            throw new IllegalStateException("Couldn't deframe fixture request");
+        }
+        long length = deframer.getLength();
+        // Closing the message stream returns its chunks to the pool, as reading it to the end would
+        try (InputStream message = deframer.getMessageStream()) {
+            return length;
+        }
+    }
+
+    @Benchmark
+    public long sendResponse() throws IOException {
+        SendResponse sendResponse = new SendResponse(asyncContext);
+        sendResponse.writeHeaders(null);
+        sendResponse.writeResponse(REPLY_MARSHALLER.stream(reply));
+        sendResponse.writeTrailer(Status.OK, null);
+        return bytesWritten;
+    }
+}
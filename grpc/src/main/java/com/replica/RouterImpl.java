@@ -19,6 +19,8 @@
 package com.replica;
 
 import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
 import com.google.rpc.Code;
 import com.google.rpc.Status;
 import com.graphhopper.GraphHopper;
@@ -27,17 +29,57 @@ import com.graphhopper.gtfs.PtRouter;
 import com.graphhopper.isochrone.algorithm.JTSTriangulator;
 import com.graphhopper.storage.BaseGraph;
 import com.replica.api.*;
+import com.replica.util.ContourExecutor;
+import com.replica.util.IsochroneCache;
+import com.replica.util.RequestCoalescer;
+import com.replica.util.RequestOptions;
+import com.replica.util.RequestOptionsInterceptor;
+import com.replica.util.SnapCache;
+import com.replica.util.StageTimer;
+import com.replica.util.StageTimingInterceptor;
+import com.replica.util.StreetRouteCache;
 import com.timgroup.statsd.StatsDClient;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
 import io.grpc.StatusRuntimeException;
 import io.grpc.protobuf.StatusProto;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
+import router.RouterExtensionsOuterClass.IsochroneRasterReply;
+import router.RouterExtensionsOuterClass.IsochroneRasterRequest;
 import router.RouterOuterClass.*;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Consumer;
 
 public class RouterImpl extends router.RouterGrpc.RouterImplBase {
+    /**
+     * Passes already-serialized messages through unchanged, so that cached replies can be written to the
+     * wire without being parsed and re-encoded
+     */
+    static final MethodDescriptor.Marshaller<ByteString> BYTE_STRING_MARSHALLER = new MethodDescriptor.Marshaller<>() {
+        @Override
+        public InputStream stream(ByteString value) {
+            return value.newInput();
+        }
+
+        @Override
+        public ByteString parse(InputStream stream) {
+            try {
+                return ByteString.readFrom(stream);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
     private final GraphHopper graphHopper;
 
     private StreetRouter streetRouter;
@@ -45,6 +87,11 @@ public class RouterImpl extends router.RouterGrpc.RouterImplBase {
     private IsochroneRouter isochroneRouter;
     private TransitRouter transitRouter;
     private TransitIsochroneRouter transitIsochroneRouter;
+    private StreetRouteCache streetRouteCache;
+    private SnapCache snapCache;
+    private IsochroneCache isochroneCache;
+    private RequestCoalescer requestCoalescer;
+    private final StageTimingInterceptor stageTimingInterceptor;
 
     public RouterImpl(GraphHopper graphHopper, PtRouter ptRouter,
                       Map<String, String> gtfsLinkMappings,
@@ -53,18 +100,181 @@ public class RouterImpl extends router.RouterGrpc.RouterImplBase {
                       StatsDClient statsDClient,
                       String regionName,
                       String releaseName) {
+        this(graphHopper, ptRouter, gtfsLinkMappings, gtfsRouteInfo, gtfsFeedIdMapping, statsDClient,
+                regionName, releaseName, Collections.emptyMap());
+    }
+
+    /**
+     * @param properties server properties (see RouterServer.SETTABLE_PARAMETERS) used to configure optional
+     *                   router features; features whose properties are missing are turned off
+     */
+    public RouterImpl(GraphHopper graphHopper, PtRouter ptRouter,
+                      Map<String, String> gtfsLinkMappings,
+                      Map<String, List<String>> gtfsRouteInfo,
+                      Map<String, String> gtfsFeedIdMapping,
+                      StatsDClient statsDClient,
+                      String regionName,
+                      String releaseName,
+                      Map<String, Integer> properties) {
         this.graphHopper = graphHopper;
         Map<String, String> customTags = Maps.newHashMap();
         customTags.put("replica_region", regionName);
         customTags.put("release_name", releaseName);
 
+        int streetRouteCacheSizeMb = properties.getOrDefault("STREET_ROUTE_CACHE_SIZE_MB", 0);
+        if (streetRouteCacheSizeMb > 0) {
+            this.streetRouteCache = new StreetRouteCache(streetRouteCacheSizeMb * 1024L * 1024L,
+                    properties.getOrDefault("ROUTE_CACHE_COORDINATE_DECIMALS", 5), statsDClient, customTags);
+        }
+
+        int snapCacheMaxEntries = properties.getOrDefault("SNAP_CACHE_MAX_ENTRIES", 0);
+        if (snapCacheMaxEntries > 0) {
+            this.snapCache = new SnapCache(graphHopper.getBaseGraph(), graphHopper.getLocationIndex(), snapCacheMaxEntries,
+                    properties.getOrDefault("SNAP_CACHE_COORDINATE_DECIMALS", 6), statsDClient, customTags);
+        }
+
+        int isochroneCacheSizeMb = properties.getOrDefault("ISOCHRONE_CACHE_SIZE_MB", 0);
+        if (isochroneCacheSizeMb > 0) {
+            this.isochroneCache = new IsochroneCache(isochroneCacheSizeMb * 1024L * 1024L,
+                    properties.getOrDefault("ISOCHRONE_CACHE_TTL_SECS", 0), statsDClient, customTags);
+        }
+
+        if (properties.getOrDefault("REQUEST_COALESCING", 0) > 0) {
+            this.requestCoalescer = new RequestCoalescer(statsDClient, customTags);
+        }
+
+        this.stageTimingInterceptor = new StageTimingInterceptor(statsDClient, customTags,
+                properties.getOrDefault("STAGE_TIMING_TRAILER_SAMPLE_PERCENT", 0),
+                properties.getOrDefault("SLOW_REQUEST_THRESHOLD_SECS", 0));
+
         this.streetRouter = new StreetRouter(graphHopper, statsDClient, customTags);
         this.customStreetRouter = new CustomStreetRouter(graphHopper, statsDClient, customTags);
-        this.isochroneRouter = new IsochroneRouter(graphHopper, new JTSTriangulator(graphHopper.getRouterConfig()));
+        // Street and PT isochrone buckets' contours are computed in parallel on a pool shared by all requests (0
+        // threads computes them on the request's thread)
+        ContourExecutor contourExecutor = new ContourExecutor(properties.getOrDefault("CONTOUR_THREADS", 0));
+        this.isochroneRouter = new IsochroneRouter(graphHopper, new JTSTriangulator(graphHopper.getRouterConfig()), snapCache,
+                contourExecutor, isochroneCache);
 
         if (ptRouter != null) {
-            this.transitRouter = new TransitRouter(ptRouter, gtfsLinkMappings, gtfsRouteInfo, gtfsFeedIdMapping, statsDClient, customTags);
-            this.transitIsochroneRouter = new TransitIsochroneRouter((GraphHopperGtfs) graphHopper);
+            this.transitRouter = new TransitRouter(ptRouter, snapCache, gtfsLinkMappings, gtfsRouteInfo, gtfsFeedIdMapping, statsDClient, customTags);
+            this.transitIsochroneRouter = new TransitIsochroneRouter((GraphHopperGtfs) graphHopper, snapCache, contourExecutor);
+        }
+    }
+
+    /**
+     * Fills the snap cache (if enabled) with the points listed in the given file; see SnapCache.preload()
+     */
+    public void preloadSnapCache(String preloadFilePath) throws IOException {
+        if (snapCache == null) {
+            return;
+        }
+        snapCache.preload(Paths.get(preloadFilePath), snapFilterKey -> {
+            if (snapFilterKey.equals(TransitIsochroneRouter.SNAP_FILTER_KEY)) {
+                return transitIsochroneRouter != null ? transitIsochroneRouter.createSnapFilter() : null;
+            }
+            return isochroneRouter.createSnapFilter(snapFilterKey);
+        });
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        List<ServerMethodDefinition<?, ?>> methods = new ArrayList<>();
+        // When caching or coalescing is on, replies are served as pre-serialized bytes, so that they are
+        // encoded once and can be shared between requests (cache hits skip both routing and protobuf encoding)
+        if (streetRouteCache != null || requestCoalescer != null) {
+            methods.add(ServerMethodDefinition.create(
+                    toByteStringReplyMethod(router.RouterGrpc.getRouteStreetModeMethod()),
+                    ServerCalls.asyncUnaryCall(this::routeStreetModeSerialized)));
+            methods.add(ServerMethodDefinition.create(
+                    toByteStringReplyMethod(router.RouterGrpc.getRouteCustomMethod()),
+                    ServerCalls.asyncUnaryCall(this::routeCustomSerialized)));
+            methods.add(ServerMethodDefinition.create(
+                    toByteStringReplyMethod(router.RouterGrpc.getRoutePtMethod()),
+                    ServerCalls.asyncUnaryCall(this::routePtSerialized)));
+        }
+        return ServerInterceptors.intercept(replaceMethods(super.bindService(), methods),
+                new RequestOptionsInterceptor(), stageTimingInterceptor);
+    }
+
+    /**
+     * Binds the RouterExtensions service (see router_extensions.proto), which is served by this RouterImpl's routers
+     * with the same interceptors as the Router service
+     */
+    public ServerServiceDefinition bindExtensionsService() {
+        return ServerInterceptors.intercept(new RouterExtensionsImpl().bindService(),
+                new RequestOptionsInterceptor(), stageTimingInterceptor);
+    }
+
+    private class RouterExtensionsImpl extends router.RouterExtensionsGrpc.RouterExtensionsImplBase {
+        @Override
+        public void routePtStream(PtRouteRequest request, StreamObserver<PtRouteReply> responseObserver) {
+            RouterImpl.this.routePtStream(request, responseObserver);
+        }
+
+        @Override
+        public void routeIsochroneRaster(IsochroneRasterRequest request, StreamObserver<IsochroneRasterReply> responseObserver) {
+            RouterImpl.this.routeIsochroneRaster(request, responseObserver);
+        }
+    }
+
+    private void routeStreetModeSerialized(StreetRouteRequest request, StreamObserver<ByteString> responseObserver) {
+        RequestOptions options = RequestOptions.current();
+        String cacheKey = streetRouteCache != null ? streetRouteCache.keyFor(request, options) : null;
+        if (!replyFromCache(cacheKey, request.getProfile(), responseObserver)) {
+            routeSerialized(List.of("routeStreetMode", request, options), request.getProfile(), cacheKey,
+                    observer -> streetRouter.routeStreetMode(request, observer), responseObserver);
+        }
+    }
+
+    private void routeCustomSerialized(CustomRouteRequest request, StreamObserver<ByteString> responseObserver) {
+        RequestOptions options = RequestOptions.current();
+        String cacheKey = streetRouteCache != null ? streetRouteCache.keyFor(request, options) : null;
+        if (!replyFromCache(cacheKey, request.getProfile(), responseObserver)) {
+            routeSerialized(List.of("routeCustom", request, options), request.getProfile(), cacheKey,
+                    observer -> customStreetRouter.routeCustom(request, observer), responseObserver);
+        }
+    }
+
+    private void routePtSerialized(PtRouteRequest request, StreamObserver<ByteString> responseObserver) {
+        if (transitRouter == null) {
+            responseObserver.onError(buildUnavailableEndpointException(
+                    "Transit routing is not available! This router was not built with any GTFS"
+            ));
+            return;
+        }
+        routeSerialized(List.of("routePt", request, RequestOptions.current()), "pt", null,
+                observer -> transitRouter.routePt(request, observer), responseObserver);
+    }
+
+    private boolean replyFromCache(String cacheKey, String profile, StreamObserver<ByteString> responseObserver) {
+        if (cacheKey == null) {
+            return false;
+        }
+        ByteString cachedReply = streetRouteCache.get(cacheKey, profile);
+        if (cachedReply == null) {
+            return false;
+        }
+        responseObserver.onNext(cachedReply);
+        responseObserver.onCompleted();
+        return true;
+    }
+
+    /**
+     * Runs the given router call with its reply serialized to bytes, stored in the street route cache (if a
+     * cache key is given), and shared with any identical requests that arrive while it's in flight (if
+     * coalescing is on)
+     *
+     * @param fingerprint identity of the request for coalescing; the method name, request message and RequestOptions
+     */
+    private <T extends MessageLite> void routeSerialized(Object fingerprint, String mode, String cacheKey,
+                                                         Consumer<StreamObserver<T>> routerCall,
+                                                         StreamObserver<ByteString> responseObserver) {
+        Consumer<StreamObserver<ByteString>> computation = observer ->
+                routerCall.accept(new SerializingReplyObserver<>(cacheKey != null ? streetRouteCache : null, cacheKey, observer));
+        if (requestCoalescer != null) {
+            requestCoalescer.execute(fingerprint, mode, computation, responseObserver);
+        } else {
+            computation.accept(responseObserver);
         }
     }
 
@@ -94,6 +304,10 @@ public class RouterImpl extends router.RouterGrpc.RouterImplBase {
         isochroneRouter.routeIsochrone(request, responseObserver);
     }
 
+    public void routeIsochroneRaster(IsochroneRasterRequest request, StreamObserver<IsochroneRasterReply> responseObserver) {
+        isochroneRouter.routeIsochroneRaster(request, responseObserver);
+    }
+
     @Override
     public void routePt(PtRouteRequest request, StreamObserver<PtRouteReply> responseObserver) {
         if (transitRouter != null) {
@@ -105,6 +319,16 @@ public class RouterImpl extends router.RouterGrpc.RouterImplBase {
         }
     }
 
+    public void routePtStream(PtRouteRequest request, StreamObserver<PtRouteReply> responseObserver) {
+        if (transitRouter != null) {
+            transitRouter.routePtStream(request, responseObserver);
+        } else {
+            responseObserver.onError(buildUnavailableEndpointException(
+                    "Transit routing is not available! This router was not built with any GTFS"
+            ));
+        }
+    }
+
     @Override
     public void routePtIsochrone(PtIsochroneRouteRequest request, StreamObserver<IsochroneRouteReply> responseObserver) {
         if (transitIsochroneRouter != null) {
@@ -116,6 +340,83 @@ public class RouterImpl extends router.RouterGrpc.RouterImplBase {
         }
     }
 
+    private static <ReqT, RespT> MethodDescriptor<ReqT, ByteString> toByteStringReplyMethod(MethodDescriptor<ReqT, RespT> method) {
+        return method.toBuilder(method.getRequestMarshaller(), BYTE_STRING_MARSHALLER).build();
+    }
+
+    /**
+     * Rebuilds the service definition with some of its methods swapped out for the given replacements (matched on
+     * full method name). Methods that don't exist in the original definition are added to it.
+     */
+    private static ServerServiceDefinition replaceMethods(ServerServiceDefinition definition,
+                                                          List<ServerMethodDefinition<?, ?>> replacements) {
+        Map<String, ServerMethodDefinition<?, ?>> methods = new LinkedHashMap<>();
+        for (ServerMethodDefinition<?, ?> method : definition.getMethods()) {
+            methods.put(method.getMethodDescriptor().getFullMethodName(), method);
+        }
+        for (ServerMethodDefinition<?, ?> replacement : replacements) {
+            methods.put(replacement.getMethodDescriptor().getFullMethodName(), replacement);
+        }
+
+        // The service descriptor has to list the exact method descriptor instances that are bound,
+        // so it's rebuilt from the final set of methods
+        ServiceDescriptor.Builder serviceDescriptor = ServiceDescriptor.newBuilder(definition.getServiceDescriptor().getName())
+                .setSchemaDescriptor(definition.getServiceDescriptor().getSchemaDescriptor());
+        methods.values().forEach(method -> serviceDescriptor.addMethod(method.getMethodDescriptor()));
+
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(serviceDescriptor.build());
+        methods.values().forEach(builder::addMethod);
+        return builder.build();
+    }
+
+    /**
+     * Serializes a successful reply once, stores the bytes in the cache (if one is given), and forwards
+     * them to the client
+     */
+    private static class SerializingReplyObserver<T extends MessageLite> implements StreamObserver<T> {
+        private final StreetRouteCache cache;
+        private final String cacheKey;
+        private final StreamObserver<ByteString> responseObserver;
+        private boolean failed = false;
+
+        SerializingReplyObserver(StreetRouteCache cache, String cacheKey, StreamObserver<ByteString> responseObserver) {
+            this.cache = cache;
+            this.cacheKey = cacheKey;
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void onNext(T reply) {
+            if (failed) {
+                return;
+            }
+            StageTimer timer = StageTimer.current();
+            long start = timer.start(StageTimer.Stage.SERIALIZE);
+            ByteString replyBytes = reply.toByteString();
+            timer.stop(StageTimer.Stage.SERIALIZE, start);
+            if (cache != null) {
+                cache.put(cacheKey, replyBytes);
+            }
+            responseObserver.onNext(replyBytes);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            responseObserver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            if (!failed) {
+                responseObserver.onCompleted();
+            }
+        }
+    }
+
     private static StatusRuntimeException buildUnavailableEndpointException(String message) {
         Status status = Status.newBuilder()
                 .setCode(Code.UNAVAILABLE.getNumber())
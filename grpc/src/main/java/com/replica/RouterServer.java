@@ -21,6 +21,7 @@ package com.replica;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.graphhopper.GraphHopper;
@@ -28,6 +29,13 @@ import com.graphhopper.GraphHopperConfig;
 import com.graphhopper.gtfs.*;
 import com.graphhopper.http.GraphHopperManaged;
 import com.graphhopper.jackson.Jackson;
+import com.replica.util.MessageCompression;
+import com.replica.util.MetricTags;
+import com.replica.util.MetricUtils;
+import com.replica.util.MetricsRegistry;
+import com.replica.util.NetworkingMetricsCollector;
+import com.replica.util.PrometheusMetricsServlet;
+import com.replica.util.SnapCache;
 import com.timgroup.statsd.NonBlockingStatsDClientBuilder;
 import com.timgroup.statsd.StatsDClient;
 import io.dropwizard.Application;
@@ -37,6 +45,8 @@ import io.dropwizard.bundles.redirect.RedirectBundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.internal.GrpcUtil;
 import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
@@ -44,27 +54,34 @@ import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
 import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.grpc.netty.shaded.io.netty.util.concurrent.EventExecutor;
 import io.grpc.netty.shaded.io.netty.util.concurrent.SingleThreadEventExecutor;
-import io.grpc.netty.shaded.io.netty.util.concurrent.ThreadProperties;
 import io.grpc.protobuf.services.ProtoReflectionService;
-import io.grpcweb.GrpcPortNumRelay;
+import io.grpcweb.GrpcWebProxy;
 import io.grpcweb.GrpcWebTrafficServlet;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.ServletRegistration;
+
 import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class RouterServer {
 
     private static final Logger logger = LoggerFactory.getLogger(RouterServer.class);
+    private static final String GRPC_WEB_IN_PROCESS_SERVER_NAME = "router-grpc-web";
     private Server server;
+    private Server inProcessServer;
     private String configPath;
     private Map<String, Integer> defaultProperties;
     private Map<String, Integer> userDefinedProperties;
@@ -80,7 +97,21 @@ public class RouterServer {
             "MAX_CONC_CALLS_PER_CONN",
             "KEEP_ALIVE_TIME_SECS",
             "KEEP_ALIVE_TIMEOUT_SECS",
-            "FLOW_CONTROL_WINDOW_BYTES"
+            "FLOW_CONTROL_WINDOW_BYTES",
+            "STREET_ROUTE_CACHE_SIZE_MB",
+            "ROUTE_CACHE_COORDINATE_DECIMALS",
+            "SNAP_CACHE_MAX_ENTRIES",
+            "SNAP_CACHE_COORDINATE_DECIMALS",
+            "ISOCHRONE_CACHE_SIZE_MB",
+            "ISOCHRONE_CACHE_TTL_SECS",
+            "REQUEST_COALESCING",
+            "METRICS_LOCAL_AGGREGATION",
+            "METRICS_FLUSH_INTERVAL_SECS",
+            "STAGE_TIMING_TRAILER_SAMPLE_PERCENT",
+            "NETWORKING_METRICS_INTERVAL_MILLIS",
+            "SLOW_REQUEST_THRESHOLD_SECS",
+            "COMPRESSION_MIN_BYTES",
+            "CONTOUR_THREADS"
     );
 
     public RouterServer(String configPath, Map<String, Integer> defaultProperties,
@@ -104,7 +135,7 @@ public class RouterServer {
         GraphHopper graphHopper = graphHopperManaged.getGraphHopper();
         PtRouter ptRouter = null;
         if (graphHopper instanceof GraphHopperGtfs) {
-            ptRouter = new PtRouterTripBasedImpl(graphHopper, graphHopperConfiguration, graphHopper.getTranslationMap(), graphHopper.getBaseGraph(), graphHopper.getEncodingManager(), graphHopper.getLocationIndex(), ((GraphHopperGtfs) graphHopper).getGtfsStorage(), graphHopper.getPathDetailsBuilderFactory());
+            ptRouter = new PtRouterTripBasedImpl(graphHopper, graphHopperConfiguration, graphHopper.getTranslationMap(), graphHopper.getBaseGraph(), graphHopper.getEncodingManager(), SnapCache.requestScopedLocationIndex(graphHopper.getLocationIndex()), ((GraphHopperGtfs) graphHopper).getGtfsStorage(), graphHopper.getPathDetailsBuilderFactory());
         }
 
         // Load GTFS link mapping and GTFS info maps for use in building responses
@@ -136,31 +167,71 @@ public class RouterServer {
                     .port(8125)
                     .build();
             maybeStatsDClient = Optional.of(statsDClient);
-
-            // Uncomment below block to turn on logging about GRPC queueing activity
-            /*
-            ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
-            logger.info("Scheduling networking metrics collection");
-            exec.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    recordNetworkingMetrics(statsDClient, workerEventLoopGroup, "worker");
-                    recordNetworkingMetrics(statsDClient, bossEventLoopGroup, "boss");
-                }
-            }, 0, 60, TimeUnit.SECONDS);
-            */
         }
 
         logger.info("Metrics agent host IP is: " + metricsHost);
 
-        // Start server
+        // Resolve the full set of properties, so optional router features can be configured from it
+        Map<String, Integer> properties = Maps.newHashMap(defaultProperties);
+        properties.putAll(userDefinedProperties);
+
+        // All metrics are recorded into an in-process registry; with local aggregation on, the registry also
+        // replaces per-request StatsD packets with periodic aggregates
+        MetricsRegistry metricsRegistry = new MetricsRegistry();
+        MetricUtils.setRegistry(metricsRegistry);
+        metricsRegistry.start(properties.get("METRICS_LOCAL_AGGREGATION") > 0 ? maybeStatsDClient.orElse(null) : null,
+                properties.get("METRICS_FLUSH_INTERVAL_SECS"));
+
+        RouterImpl routerImpl = new RouterImpl(graphHopper, ptRouter, gtfsLinkMappings, gtfsRouteInfo, gtfsFeedIdMapping,
+                maybeStatsDClient.orElse(null), regionName, releaseName, properties);
+        String snapCachePreloadFile = System.getenv("SNAP_CACHE_PRELOAD_FILE");
+        if (snapCachePreloadFile != null) {
+            routerImpl.preloadSnapCache(snapCachePreloadFile);
+        }
+
+        int serverThreads = userDefinedProperties.getOrDefault("SERVER_THREADS", defaultProperties.get("SERVER_THREADS"));
+        // Equivalent to Executors.newFixedThreadPool(), but typed so that its queue depth can be reported
+        ThreadPoolExecutor serverExecutor = new ThreadPoolExecutor(serverThreads, serverThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        Map<String, String> customTags = Maps.newHashMap();
+        customTags.put("replica_region", regionName);
+        customTags.put("release_name", releaseName);
+        registerServerGauges(metricsRegistry, new MetricTags(customTags), serverExecutor, workerEventLoopGroup, bossEventLoopGroup);
+
+        // Optionally sample in-flight calls and connections; see NetworkingMetricsCollector
+        NetworkingMetricsCollector networkingMetricsCollector = null;
+        int networkingMetricsIntervalMillis = properties.get("NETWORKING_METRICS_INTERVAL_MILLIS");
+        if (networkingMetricsIntervalMillis > 0) {
+            networkingMetricsCollector = new NetworkingMetricsCollector(metricsRegistry, maybeStatsDClient.orElse(null), customTags);
+            networkingMetricsCollector.start(networkingMetricsIntervalMillis);
+        }
+
+        // Start server. The router services are bound once, and served both over the network and in-process, where the
+        // grpc-web proxy calls them
+        ServerServiceDefinition routerService = routerImpl.bindService();
+        ServerServiceDefinition routerExtensionsService = routerImpl.bindExtensionsService();
         int grpcPort = 50051;
-        server = NettyServerBuilder.forPort(grpcPort)
-                .addService(new RouterImpl(graphHopper, ptRouter, gtfsLinkMappings, gtfsRouteInfo, gtfsFeedIdMapping, maybeStatsDClient.orElse(null), regionName, releaseName))
+        NettyServerBuilder serverBuilder = NettyServerBuilder.forPort(grpcPort);
+        if (networkingMetricsCollector != null) {
+            serverBuilder.intercept(networkingMetricsCollector.interceptor())
+                    .addTransportFilter(networkingMetricsCollector.transportFilter());
+        }
+        // Large replies are compressed for clients that accept lz4 or gzip; see MessageCompression
+        int compressionMinBytes = properties.get("COMPRESSION_MIN_BYTES");
+        if (compressionMinBytes >= 0) {
+            MessageCompression messageCompression = new MessageCompression(metricsRegistry, maybeStatsDClient.orElse(null), customTags,
+                    compressionMinBytes);
+            serverBuilder.intercept(messageCompression.interceptor())
+                    .compressorRegistry(messageCompression.compressorRegistry())
+                    .decompressorRegistry(messageCompression.decompressorRegistry());
+        }
+        server = serverBuilder
+                .addService(routerService)
+                .addService(routerExtensionsService)
                 .addService(ProtoReflectionService.newInstance())
                 .maxConnectionAge(userDefinedProperties.getOrDefault("CONN_TIME_MAX_AGE_SECS", defaultProperties.get("CONN_TIME_MAX_AGE_SECS")), TimeUnit.SECONDS)
                 .maxConnectionAgeGrace(userDefinedProperties.getOrDefault("CONN_TIME_GRACE_PERIOD_SECS", defaultProperties.get("CONN_TIME_GRACE_PERIOD_SECS")), TimeUnit.SECONDS)
-                .executor(Executors.newFixedThreadPool(userDefinedProperties.getOrDefault("SERVER_THREADS", defaultProperties.get("SERVER_THREADS"))))
+                .executor(serverExecutor)
                 .workerEventLoopGroup(workerEventLoopGroup)
                 .bossEventLoopGroup(bossEventLoopGroup)
                 .channelType(NioServerSocketChannel.class)
@@ -169,6 +240,12 @@ public class RouterServer {
                 .flowControlWindow(userDefinedProperties.getOrDefault("FLOW_CONTROL_WINDOW_BYTES", defaultProperties.get("FLOW_CONTROL_WINDOW_BYTES")))
                 .build()
                 .start();
+        inProcessServer = InProcessServerBuilder.forName(GRPC_WEB_IN_PROCESS_SERVER_NAME)
+                .addService(routerService)
+                .addService(routerExtensionsService)
+                .executor(serverExecutor)
+                .build()
+                .start();
 
         logger.info("Started server with the following user-provided properties: " + userDefinedProperties);
         logger.info("All other properties utilize the default values: " + defaultProperties);
@@ -184,47 +261,65 @@ public class RouterServer {
             System.err.println("*** server shut down");
         }));
 
+        // grpc-web proxy needs to know which methods it can call, and the in-process server to call them on, before
+        // it takes any requests
+        GrpcWebProxy.init(GRPC_WEB_IN_PROCESS_SERVER_NAME, List.of(routerService, routerExtensionsService));
+
         // Start the grpc-web proxy on grpc-web-port.
         new MyApplication().run("server", "config-proxy.yaml");
         logger.info("Started grpc-web proxy server");
 
-        // grpc-web proxy needs to know the grpc-port# so it could connect to the grpc service.
-        GrpcPortNumRelay.setGrpcPortNum(grpcPort);
+    }
 
+    /**
+     * Registers gauges for the server's executor and event loops, and for JVM heap and GC activity, so they're
+     * reported alongside the router metrics (to StatsD, and on the /metrics endpoint)
+     */
+    @VisibleForTesting
+    static void registerServerGauges(MetricsRegistry registry, MetricTags metricTags, ThreadPoolExecutor serverExecutor,
+                                     EventLoopGroup workerEventLoopGroup, EventLoopGroup bossEventLoopGroup) {
+        registry.registerGauge("server.executor_queue_depth", metricTags.base(), () -> serverExecutor.getQueue().size());
+        registry.registerGauge("server.executor_active_threads", metricTags.base(), serverExecutor::getActiveCount);
+        registerPendingTasksGauges(registry, metricTags, "worker", workerEventLoopGroup);
+        registerPendingTasksGauges(registry, metricTags, "boss", bossEventLoopGroup);
+
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        registry.registerGauge("jvm.heap_used_bytes", metricTags.base(), () -> memoryBean.getHeapMemoryUsage().getUsed());
+        registry.registerGauge("jvm.heap_committed_bytes", metricTags.base(), () -> memoryBean.getHeapMemoryUsage().getCommitted());
+        registry.registerGauge("jvm.heap_max_bytes", metricTags.base(), () -> memoryBean.getHeapMemoryUsage().getMax());
+        registry.registerGauge("jvm.non_heap_used_bytes", metricTags.base(), () -> memoryBean.getNonHeapMemoryUsage().getUsed());
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            // Cumulative since the JVM started
+            String[] tags = metricTags.tag("gc", gcBean.getName().replace(' ', '_'));
+            registry.registerGauge("jvm.gc_collections", tags, gcBean::getCollectionCount);
+            registry.registerGauge("jvm.gc_seconds", tags, () -> gcBean.getCollectionTime() / 1000.0);
+        }
     }
 
-    // inspired by https://stackoverflow.com/questions/32933367/monitoring-the-size-of-the-netty-event-loop-queues and
-    // https://github.com/mpusher/mpush/blob/f8d5c97f30b2bde12f1b60d11709ae1b75587a2e/mpush-tools/src/main/java/com/mpush/tools/Utils.java#L213
-    public static void recordNetworkingMetrics(final StatsDClient statsDClient, final EventLoopGroup elg, final String componentName) {
-        logger.info("Recording networking metrics");
+    // One gauge per event loop (eg event_loop:worker-0), so a single saturated loop isn't hidden by a group total
+    private static void registerPendingTasksGauges(MetricsRegistry registry, MetricTags metricTags, String groupName,
+                                                   EventLoopGroup eventLoopGroup) {
         int index = 0;
-        int poolSize = 0, queueSize = 0, activeCount = 0;
-        for (final EventExecutor eventExecutor : elg) {
-            poolSize++;
+        for (EventExecutor eventExecutor : eventLoopGroup) {
             if (eventExecutor instanceof SingleThreadEventExecutor) {
-                final SingleThreadEventExecutor singleExecutor = (SingleThreadEventExecutor) eventExecutor;
-                String metricName = "EventLoopGroup_" + componentName +  "_pending_tasks";
-                int pendingTasks = singleExecutor.pendingTasks();
-                statsDClient.gauge(metricName, pendingTasks, Integer.toString(index));
-                index++;
-
-                queueSize += pendingTasks;
-                ThreadProperties tp = singleExecutor.threadProperties();
-                if (tp.state() == Thread.State.RUNNABLE) {
-                    activeCount++;
-                }
+                SingleThreadEventExecutor eventLoop = (SingleThreadEventExecutor) eventExecutor;
+                registry.registerGauge("netty.event_loop_pending_tasks", metricTags.tag("event_loop", groupName + "-" + index),
+                        eventLoop::pendingTasks);
             }
+            index++;
         }
-        logger.info(componentName + " pool size: " + poolSize + " ; queue size: " + queueSize + " ; active count: " + activeCount);
-        statsDClient.gauge(componentName + "_pool_size", poolSize);
-        statsDClient.gauge(componentName + "_queue_size", queueSize);
-        statsDClient.gauge(componentName + "_active_count", activeCount);
     }
 
     private void stop() throws InterruptedException {
+        if (inProcessServer != null) {
+            inProcessServer.shutdown();
+        }
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+        if (inProcessServer != null) {
+            inProcessServer.awaitTermination(30, TimeUnit.SECONDS);
+        }
     }
 
     /**
@@ -286,7 +381,12 @@ public class RouterServer {
 
         @Override
         public void run(MyConfiguration configuration, Environment environment) throws Exception {
-            environment.servlets().addServlet("grpc-web", GrpcWebTrafficServlet.class).addMapping("/api/*");
+            // grpc-web requests are handled asynchronously, so slow calls don't tie up the proxy's small thread pool
+            ServletRegistration.Dynamic grpcWebServlet = environment.servlets().addServlet("grpc-web", GrpcWebTrafficServlet.class);
+            grpcWebServlet.setAsyncSupported(true);
+            grpcWebServlet.addMapping("/api/*");
+            // Prometheus-format view of the in-process metrics registry
+            environment.servlets().addServlet("metrics", PrometheusMetricsServlet.class).addMapping("/metrics");
         }
     }
 
@@ -298,6 +398,36 @@ public class RouterServer {
         defaultProperties.put("CONN_TIME_MAX_AGE_SECS", 120);
         defaultProperties.put("CONN_TIME_GRACE_PERIOD_SECS", 60);
         defaultProperties.put("MAX_CONC_CALLS_PER_CONN", 500);
+        // Street route reply cache is off by default; coordinates are rounded to 5 decimal places (~1m) in cache keys
+        defaultProperties.put("STREET_ROUTE_CACHE_SIZE_MB", 0);
+        defaultProperties.put("ROUTE_CACHE_COORDINATE_DECIMALS", 5);
+        // Snap cache is off by default; a preload file of known points can be given via SNAP_CACHE_PRELOAD_FILE
+        defaultProperties.put("SNAP_CACHE_MAX_ENTRIES", 0);
+        defaultProperties.put("SNAP_CACHE_COORDINATE_DECIMALS", 6);
+        // Street isochrone result cache is off by default; entries expire an hour after they're computed (0 never expires them)
+        defaultProperties.put("ISOCHRONE_CACHE_SIZE_MB", 0);
+        defaultProperties.put("ISOCHRONE_CACHE_TTL_SECS", 3600);
+        // Coalescing is off by default; 1 makes identical street, custom and transit requests that are in flight at the
+        // same time share one computation
+        defaultProperties.put("REQUEST_COALESCING", 0);
+        // Off by default, so each value is sent to StatsD as a histogram/timer, as existing dashboards expect. When on,
+        // histograms are aggregated in-process and flushed as per-host percentile gauges every METRICS_FLUSH_INTERVAL_SECS,
+        // which can't be combined across hosts
+        defaultProperties.put("METRICS_LOCAL_AGGREGATION", 0);
+        defaultProperties.put("METRICS_FLUSH_INTERVAL_SECS", 10);
+        // Per-stage timings are returned in an x-stage-timing trailer for this percentage of calls (and for calls that ask for them)
+        defaultProperties.put("STAGE_TIMING_TRAILER_SAMPLE_PERCENT", 0);
+        // Networking saturation sampling is off by default; eg 1000 samples once a second. Samples go to StatsD one
+        // packet each, or in the registry's aggregates with METRICS_LOCAL_AGGREGATION on
+        defaultProperties.put("NETWORKING_METRICS_INTERVAL_MILLIS", 0);
+        // Calls slower than this are logged with their full request, and recorded as JFR SlowRequest events (0 turns this off)
+        defaultProperties.put("SLOW_REQUEST_THRESHOLD_SECS", 30);
+        // Reply compression is off by default (-1); when set, replies of at least this many bytes (eg 16384) are
+        // compressed, if the client accepts lz4 or gzip
+        defaultProperties.put("COMPRESSION_MIN_BYTES", -1);
+        // Threads shared by all isochrone requests for computing their buckets' contours in parallel (0 computes them
+        // on the request's thread)
+        defaultProperties.put("CONTOUR_THREADS", Runtime.getRuntime().availableProcessors());
         // Defaults for below settings are all GRPC defaults
         defaultProperties.put("KEEP_ALIVE_TIME_SECS", (int) (GrpcUtil.DEFAULT_SERVER_KEEPALIVE_TIME_NANOS * 1e-9));
         defaultProperties.put("KEEP_ALIVE_TIMEOUT_SECS", (int) (GrpcUtil.DEFAULT_SERVER_KEEPALIVE_TIMEOUT_NANOS * 1e-9));
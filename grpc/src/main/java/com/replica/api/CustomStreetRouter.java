@@ -6,8 +6,12 @@ import com.graphhopper.GHRequest;
 import com.graphhopper.GHResponse;
 import com.graphhopper.GraphHopper;
 import com.graphhopper.util.shapes.GHPoint;
+import com.replica.util.MetricTags;
+import com.replica.util.MetricTags.RoutesFound;
 import com.replica.util.MetricUtils;
+import com.replica.util.RequestOptions;
 import com.replica.util.RouterConverters;
+import com.replica.util.StageTimer;
 import com.timgroup.statsd.StatsDClient;
 import io.grpc.protobuf.StatusProto;
 import io.grpc.stub.StreamObserver;
@@ -22,24 +26,32 @@ public class CustomStreetRouter {
     private static final Logger logger = LoggerFactory.getLogger(CustomStreetRouter.class);
     private final GraphHopper graphHopper;
     private final StatsDClient statsDClient;
-    private Map<String, String> customTags;
+    private final MetricTags metricTags;
 
     public CustomStreetRouter(GraphHopper graphHopper,
                         StatsDClient statsDClient,
                         Map<String, String> customTags) {
         this.graphHopper = graphHopper;
         this.statsDClient = statsDClient;
-        this.customTags = customTags;
+        this.metricTags = new MetricTags(customTags);
     }
 
     public void routeCustom(RouterOuterClass.CustomRouteRequest request, StreamObserver<RouterOuterClass.StreetRouteReply> responseObserver) {
         long startTime = System.currentTimeMillis();
-        GHRequest ghRequest = RouterConverters.toGHRequest(request);
+        RequestOptions options = RequestOptions.current();
+        StageTimer timer = StageTimer.current();
+        timer.setProfile(request.getProfile());
+        // Profiles come from clients, so only loaded ones are used as metric tags
+        String modeTag = graphHopper.getProfile(request.getProfile()) != null ? request.getProfile() : MetricTags.UNKNOWN_VALUE;
+        GHRequest ghRequest = RouterConverters.toGHRequest(request, options);
         GHPoint origin = ghRequest.getPoints().get(0);
         GHPoint dest = ghRequest.getPoints().get(1);
 
         try {
+            long routeStart = timer.start(StageTimer.Stage.ROUTE);
             GHResponse ghResponse = graphHopper.route(ghRequest);
+            timer.stop(StageTimer.Stage.ROUTE, routeStart);
+            timer.addVisitedNodes(ghResponse.getHints().getLong("visited_nodes.sum", 0));
             if (ghResponse.hasErrors()) {
                 logger.error(ghResponse.toString());
                 String message = "Path could not be found between "
@@ -47,8 +59,7 @@ public class CustomStreetRouter {
                 // logger.warn(message);
 
                 double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-                String[] tags = {"mode:" + request.getProfile(), "api:grpc", "routes_found:false"};
-                tags = MetricUtils.applyCustomTags(tags, customTags);
+                String[] tags = metricTags.routing(modeTag, RoutesFound.FALSE);
                 MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds, 0);
 
                 Status status = Status.newBuilder()
@@ -57,15 +68,17 @@ public class CustomStreetRouter {
                         .build();
                 responseObserver.onError(StatusProto.toStatusRuntimeException(status));
             } else {
+                long convertStart = timer.start(StageTimer.Stage.CONVERT);
                 RouterOuterClass.StreetRouteReply.Builder replyBuilder = RouterOuterClass.StreetRouteReply.newBuilder();
                 ghResponse.getAll().stream()
-                        .map(responsePath -> RouterConverters.toStreetPath(responsePath, request.getProfile(), request.getReturnFullPathDetails()))
+                        .map(responsePath -> RouterConverters.toStreetPath(responsePath, request.getProfile(), request.getReturnFullPathDetails(), options))
                         .forEach(replyBuilder::addPaths);
+                timer.stop(StageTimer.Stage.CONVERT, convertStart);
 
                 double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-                String[] tags = {"mode:" + request.getProfile(), "api:grpc", "routes_found:true"};
-                tags = MetricUtils.applyCustomTags(tags, customTags);
+                String[] tags = metricTags.routing(modeTag, RoutesFound.TRUE);
                 MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds, ghResponse.getAll().size());
+                timer.setPathCount(ghResponse.getAll().size());
 
                 responseObserver.onNext(replyBuilder.build());
                 responseObserver.onCompleted();
@@ -76,8 +89,7 @@ public class CustomStreetRouter {
             logger.error(message, e);
 
             double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-            String[] tags = {"mode:" + request.getProfile(), "api:grpc", "routes_found:error"};
-            tags = MetricUtils.applyCustomTags(tags, customTags);
+            String[] tags = metricTags.routing(modeTag, RoutesFound.ERROR);
             MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds);
 
             Status status = Status.newBuilder()
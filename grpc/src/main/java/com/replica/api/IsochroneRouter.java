@@ -14,19 +14,29 @@ import com.graphhopper.routing.util.DefaultSnapFilter;
 import com.graphhopper.routing.util.TraversalMode;
 import com.graphhopper.routing.weighting.Weighting;
 import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.NodeAccess;
 import com.graphhopper.storage.index.LocationIndex;
 import com.graphhopper.storage.index.Snap;
 import com.graphhopper.util.DistanceCalcEarth;
 import com.graphhopper.util.PMap;
 import com.graphhopper.util.Parameters;
+import com.replica.util.ContourExecutor;
+import com.replica.util.GeometryEncoder;
+import com.replica.util.IsochroneCache;
+import com.replica.util.RequestOptions;
+import com.replica.util.SnapCache;
+import com.replica.util.StageTimer;
+import com.replica.util.TravelTimeRaster;
 import io.grpc.protobuf.StatusProto;
 import io.grpc.stub.StreamObserver;
 import org.locationtech.jts.geom.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import router.RouterExtensionsOuterClass;
 import router.RouterOuterClass;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.OptionalInt;
 import java.util.OptionalLong;
 import java.util.function.ToDoubleFunction;
@@ -38,92 +48,268 @@ import static com.graphhopper.routing.util.TraversalMode.NODE_BASED;
 public class IsochroneRouter {
 
     private static final Logger logger = LoggerFactory.getLogger(IsochroneRouter.class);
+    // Raster cell size used when a raster request doesn't give one
+    private static final double DEFAULT_RASTER_CELL_SIZE_METERS = 50;
     private final GraphHopper graphHopper;
     private Triangulator triangulator;
+    private final SnapCache snapCache;
+    private final ContourExecutor contourExecutor;
+    private final IsochroneCache isochroneCache;
 
-    public IsochroneRouter(GraphHopper graphHopper, Triangulator triangulator) {
+    /**
+     * @param contourExecutor computes the contours of each request's buckets, in parallel if it has threads
+     * @param isochroneCache caches the bucket geometries of each snapped center and set of parameters; may be null
+     */
+    public IsochroneRouter(GraphHopper graphHopper, Triangulator triangulator, SnapCache snapCache,
+                           ContourExecutor contourExecutor, IsochroneCache isochroneCache) {
         this.graphHopper = graphHopper;
         this.triangulator = triangulator;
+        this.snapCache = snapCache;
+        this.contourExecutor = contourExecutor;
+        this.isochroneCache = isochroneCache;
     }
 
-    public void routeIsochrone(RouterOuterClass.IsochroneRouteRequest request, StreamObserver<RouterOuterClass.IsochroneRouteReply> responseObserver) {
+    /**
+     * Creates the snap filter used to snap isochrone centers for the given profile; returns null if the profile
+     * doesn't exist
+     */
+    public DefaultSnapFilter createSnapFilter(String profileName) {
+        Profile profile = graphHopper.getProfile(profileName);
+        if (profile == null) {
+            return null;
+        }
+        return new DefaultSnapFilter(graphHopper.createWeighting(profile, createHints()),
+                graphHopper.getEncodingManager().getBooleanEncodedValue(Subnetwork.key(profileName)));
+    }
+
+    private static PMap createHints() {
         PMap hintsMap = new PMap();
         hintsMap.putObject(Parameters.CH.DISABLE, true);
         hintsMap.putObject(Parameters.Landmark.DISABLE, true);
+        return hintsMap;
+    }
+
+    public void routeIsochrone(RouterOuterClass.IsochroneRouteRequest request, StreamObserver<RouterOuterClass.IsochroneRouteReply> responseObserver) {
+        PMap hintsMap = createHints();
+        RequestOptions options = RequestOptions.current();
+        StageTimer timer = StageTimer.current();
+        timer.setProfile(request.getMode());
 
         String profileName = request.getMode();
         Profile profile = graphHopper.getProfile(profileName);
         if (profile == null) {
             handleError("The requested profile '" + profileName + "' does not exist", Code.INVALID_ARGUMENT, responseObserver);
+        } else if (!options.getGeometryFormat().supportsPolygons()) {
+            handleError("Geometry format " + options.getGeometryFormat() + " isn't supported for isochrones", Code.INVALID_ARGUMENT, responseObserver);
         } else {
             LocationIndex locationIndex = graphHopper.getLocationIndex();
             BaseGraph graph = graphHopper.getBaseGraph();
             Weighting weighting = graphHopper.createWeighting(profile, hintsMap);
             BooleanEncodedValue inSubnetworkEnc = graphHopper.getEncodingManager().getBooleanEncodedValue(Subnetwork.key(profileName));
-            Snap snap = locationIndex.findClosest(request.getCenter().getLat(), request.getCenter().getLon(), new DefaultSnapFilter(weighting, inSubnetworkEnc));
+            DefaultSnapFilter snapFilter = new DefaultSnapFilter(weighting, inSubnetworkEnc);
+            long snapStart = timer.start(StageTimer.Stage.SNAP);
+            Snap snap = snapCache != null
+                    ? snapCache.findClosest(request.getCenter().getLat(), request.getCenter().getLon(), profileName, snapFilter)
+                    : locationIndex.findClosest(request.getCenter().getLat(), request.getCenter().getLon(), snapFilter);
+            timer.stop(StageTimer.Stage.SNAP, snapStart);
             if (!snap.isValid()) {
                 handleError("Point not found: " + request.getCenter().getLat() + ", " + request.getCenter().getLon(), Code.NOT_FOUND, responseObserver);
             } else {
-                QueryGraph queryGraph = QueryGraph.create(graph, snap);
-                TraversalMode traversalMode = profile.isTurnCosts() ? EDGE_BASED : NODE_BASED;
-                ShortestPathTree shortestPathTree = new ShortestPathTree(queryGraph, queryGraph.wrapWeighting(weighting), request.getReverseFlow(), traversalMode);
-
-                double limit;
-                ToDoubleFunction<ShortestPathTree.IsoLabel> fz;
-                OptionalLong weightLimit = OptionalLong.of(request.getWeightLimit());
-                OptionalLong distanceLimitInMeter = OptionalLong.of(request.getDistanceLimit());
-                OptionalLong timeLimitInSeconds = OptionalLong.of(request.getTimeLimit());
-                OptionalInt nBuckets = OptionalInt.of(request.getNBuckets());
-
-                if (weightLimit.orElseThrow(() -> new IllegalArgumentException("query param weight_limit is not a number.")) > 0) {
-                    limit = weightLimit.getAsLong();
-                    shortestPathTree.setWeightLimit(limit + Math.max(limit * 0.14, 200));
-                    fz = l -> l.weight;
-                } else if (distanceLimitInMeter.orElseThrow(() -> new IllegalArgumentException("query param distance_limit is not a number.")) > 0) {
-                    limit = distanceLimitInMeter.getAsLong();
-                    shortestPathTree.setDistanceLimit(limit + Math.max(limit * 0.14, 2_000));
-                    fz = l -> l.distance;
-                } else {
-                    limit = timeLimitInSeconds.orElseThrow(() -> new IllegalArgumentException("query param time_limit is not a number.")) * 1000d;
-                    shortestPathTree.setTimeLimit(limit + Math.max(limit * 0.14, 200_000));
-                    fz = l -> l.time;
-                }
-                ArrayList<Double> zs = new ArrayList<>();
-                double delta = limit / nBuckets.orElseThrow(() -> new IllegalArgumentException("query param buckets is not a number."));
-                for (int i = 0; i < nBuckets.getAsInt(); i++) {
-                    zs.add((i + 1) * delta);
-                }
-
-                Triangulator.Result result = triangulator.triangulate(snap, queryGraph, shortestPathTree, fz, degreesFromMeters(request.getTolerance()));
-
-                ContourBuilder contourBuilder = new ContourBuilder(result.triangulation);
-                ArrayList<Geometry> isochrones = new ArrayList<>();
-                for (Double z : zs) {
-                    logger.info("Building contour z={}", z);
-                    MultiPolygon isochrone = contourBuilder.computeIsoline(z, result.seedEdges);
-                    if (request.getFullGeometry()) {
-                        isochrones.add(isochrone);
-                    } else {
-                        Polygon maxPolygon = heuristicallyFindMainConnectedComponent(isochrone, isochrone.getFactory().createPoint(new Coordinate(request.getCenter().getLon(), request.getCenter().getLat())));
-                        isochrones.add(isochrone.getFactory().createPolygon(((LinearRing) maxPolygon.getExteriorRing())));
+                // The key is taken from the snap before the query graph is built, as that changes its closest node
+                String cacheKey = isochroneCache != null ? isochroneCache.keyFor(request, snap) : null;
+                List<Geometry> isochrones = cacheKey != null ? isochroneCache.get(cacheKey, profileName) : null;
+                if (isochrones == null) {
+                    isochrones = computeIsochrones(request, snap, graph, weighting, profile, timer);
+                    if (cacheKey != null) {
+                        isochroneCache.put(cacheKey, isochrones);
                     }
                 }
 
+                long convertStart = timer.start(StageTimer.Stage.CONVERT);
                 RouterOuterClass.IsochroneRouteReply.Builder replyBuilder = RouterOuterClass.IsochroneRouteReply.newBuilder();
                 for (int i = 0; i < isochrones.size(); i++) {
                     Geometry isochrone = isochrones.get(i);
                     replyBuilder.addBuckets(RouterOuterClass.IsochroneBucket.newBuilder()
                             .setBucket(i)
-                            .setGeometry(isochrone.toString())
+                            .setGeometry(GeometryEncoder.encode(isochrone, options))
                     );
                 }
-                responseObserver.onNext(replyBuilder.build());
+                RouterOuterClass.IsochroneRouteReply reply = replyBuilder.build();
+                timer.stop(StageTimer.Stage.CONVERT, convertStart);
+                timer.setPathCount(isochrones.size());
+                responseObserver.onNext(reply);
                 responseObserver.onCompleted();
             }
         }
     }
 
-    private static void handleError(String errorMessage, Code code, StreamObserver<RouterOuterClass.IsochroneRouteReply> responseObserver) {
+    private List<Geometry> computeIsochrones(RouterOuterClass.IsochroneRouteRequest request, Snap snap, BaseGraph graph,
+                                             Weighting weighting, Profile profile, StageTimer timer) {
+        QueryGraph queryGraph = QueryGraph.create(graph, snap);
+        TraversalMode traversalMode = profile.isTurnCosts() ? EDGE_BASED : NODE_BASED;
+        ShortestPathTree shortestPathTree = new ShortestPathTree(queryGraph, queryGraph.wrapWeighting(weighting), request.getReverseFlow(), traversalMode);
+
+        double limit;
+        ToDoubleFunction<ShortestPathTree.IsoLabel> fz;
+        OptionalLong weightLimit = OptionalLong.of(request.getWeightLimit());
+        OptionalLong distanceLimitInMeter = OptionalLong.of(request.getDistanceLimit());
+        OptionalLong timeLimitInSeconds = OptionalLong.of(request.getTimeLimit());
+        OptionalInt nBuckets = OptionalInt.of(request.getNBuckets());
+
+        if (weightLimit.orElseThrow(() -> new IllegalArgumentException("query param weight_limit is not a number.")) > 0) {
+            limit = weightLimit.getAsLong();
+            shortestPathTree.setWeightLimit(limit + Math.max(limit * 0.14, 200));
+            fz = l -> l.weight;
+        } else if (distanceLimitInMeter.orElseThrow(() -> new IllegalArgumentException("query param distance_limit is not a number.")) > 0) {
+            limit = distanceLimitInMeter.getAsLong();
+            shortestPathTree.setDistanceLimit(limit + Math.max(limit * 0.14, 2_000));
+            fz = l -> l.distance;
+        } else {
+            limit = timeLimitInSeconds.orElseThrow(() -> new IllegalArgumentException("query param time_limit is not a number.")) * 1000d;
+            shortestPathTree.setTimeLimit(limit + Math.max(limit * 0.14, 200_000));
+            fz = l -> l.time;
+        }
+        ArrayList<Double> zs = new ArrayList<>();
+        double delta = limit / nBuckets.orElseThrow(() -> new IllegalArgumentException("query param buckets is not a number."));
+        for (int i = 0; i < nBuckets.getAsInt(); i++) {
+            zs.add((i + 1) * delta);
+        }
+
+        // The triangulator runs the shortest path tree search, so this is recorded as the route stage
+        long routeStart = timer.start(StageTimer.Stage.ROUTE);
+        Triangulator.Result result = triangulator.triangulate(snap, queryGraph, shortestPathTree, fz, degreesFromMeters(request.getTolerance()));
+        timer.stop(StageTimer.Stage.ROUTE, routeStart);
+        timer.addVisitedNodes(shortestPathTree.getVisitedNodes());
+
+        // Each bucket's contour only reads the triangulation, so buckets are computed in parallel
+        long contourStart = timer.start(StageTimer.Stage.CONTOUR);
+        ContourBuilder contourBuilder = new ContourBuilder(result.triangulation);
+        List<Geometry> isochrones = contourExecutor.map(zs.size(), i -> {
+            double z = zs.get(i);
+            logger.debug("Building contour z={}", z);
+            MultiPolygon isochrone = contourBuilder.computeIsoline(z, result.seedEdges);
+            if (request.getFullGeometry()) {
+                return isochrone;
+            }
+            Polygon maxPolygon = heuristicallyFindMainConnectedComponent(isochrone, isochrone.getFactory().createPoint(new Coordinate(request.getCenter().getLon(), request.getCenter().getLat())));
+            return isochrone.getFactory().createPolygon(((LinearRing) maxPolygon.getExteriorRing()));
+        });
+        timer.stop(StageTimer.Stage.CONTOUR, contourStart);
+        return isochrones;
+    }
+
+    /**
+     * Computes the request's shortest path tree and returns its costs as an encoded TravelTimeRaster, rather than as
+     * bucket polygons: no triangulation or contouring is done. Costs are in seconds for time limits, meters for
+     * distance limits, and weight for weight limits. The isochrone request's bucket count, tolerance and geometry
+     * options are ignored.
+     *
+     * Each cell is filled from the tree's nodes, and from the straight lines between them and their parents, so
+     * cells away from the street network are left unreached.
+     */
+    public void routeIsochroneRaster(RouterExtensionsOuterClass.IsochroneRasterRequest rasterRequest,
+                                     StreamObserver<RouterExtensionsOuterClass.IsochroneRasterReply> responseObserver) {
+        RouterOuterClass.IsochroneRouteRequest request = rasterRequest.getIsochrone();
+        StageTimer timer = StageTimer.current();
+        timer.setProfile(request.getMode());
+
+        if (!(rasterRequest.getCellSize() >= 0)) {
+            handleError("Illegal value for cell_size: " + rasterRequest.getCellSize(), Code.INVALID_ARGUMENT, responseObserver);
+            return;
+        }
+        double cellSize = rasterRequest.getCellSize() > 0 ? rasterRequest.getCellSize() : DEFAULT_RASTER_CELL_SIZE_METERS;
+
+        String profileName = request.getMode();
+        Profile profile = graphHopper.getProfile(profileName);
+        if (profile == null) {
+            handleError("The requested profile '" + profileName + "' does not exist", Code.INVALID_ARGUMENT, responseObserver);
+            return;
+        }
+        Weighting weighting = graphHopper.createWeighting(profile, createHints());
+        DefaultSnapFilter snapFilter = new DefaultSnapFilter(weighting,
+                graphHopper.getEncodingManager().getBooleanEncodedValue(Subnetwork.key(profileName)));
+        long snapStart = timer.start(StageTimer.Stage.SNAP);
+        Snap snap = snapCache != null
+                ? snapCache.findClosest(request.getCenter().getLat(), request.getCenter().getLon(), profileName, snapFilter)
+                : graphHopper.getLocationIndex().findClosest(request.getCenter().getLat(), request.getCenter().getLon(), snapFilter);
+        timer.stop(StageTimer.Stage.SNAP, snapStart);
+        if (!snap.isValid()) {
+            handleError("Point not found: " + request.getCenter().getLat() + ", " + request.getCenter().getLon(), Code.NOT_FOUND, responseObserver);
+            return;
+        }
+
+        QueryGraph queryGraph = QueryGraph.create(graphHopper.getBaseGraph(), snap);
+        TraversalMode traversalMode = profile.isTurnCosts() ? EDGE_BASED : NODE_BASED;
+        ShortestPathTree shortestPathTree = new ShortestPathTree(queryGraph, queryGraph.wrapWeighting(weighting), request.getReverseFlow(), traversalMode);
+
+        // Unlike for polygons, the tree isn't searched past the limit, as there are no contours to close
+        double limit;
+        double unit;
+        ToDoubleFunction<ShortestPathTree.IsoLabel> fz;
+        if (request.getWeightLimit() > 0) {
+            limit = request.getWeightLimit();
+            shortestPathTree.setWeightLimit(limit);
+            fz = l -> l.weight;
+            unit = limit / TravelTimeRaster.MAX_VALUE;
+        } else if (request.getDistanceLimit() > 0) {
+            limit = request.getDistanceLimit();
+            shortestPathTree.setDistanceLimit(limit);
+            fz = l -> l.distance;
+            unit = Math.max(1, limit / TravelTimeRaster.MAX_VALUE);
+        } else {
+            limit = request.getTimeLimit();
+            shortestPathTree.setTimeLimit(limit * 1000);
+            fz = l -> l.time / 1000d;
+            unit = Math.max(1, limit / TravelTimeRaster.MAX_VALUE);
+        }
+
+        long routeStart = timer.start(StageTimer.Stage.ROUTE);
+        List<ShortestPathTree.IsoLabel> labels = new ArrayList<>();
+        shortestPathTree.search(snap.getClosestNode(), label -> {
+            if (fz.applyAsDouble(label) <= limit) {
+                labels.add(label);
+            }
+        });
+        timer.stop(StageTimer.Stage.ROUTE, routeStart);
+        timer.addVisitedNodes(shortestPathTree.getVisitedNodes());
+
+        long convertStart = timer.start(StageTimer.Stage.CONVERT);
+        NodeAccess nodeAccess = queryGraph.getNodeAccess();
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (ShortestPathTree.IsoLabel label : labels) {
+            minLat = Math.min(minLat, nodeAccess.getLat(label.node));
+            maxLat = Math.max(maxLat, nodeAccess.getLat(label.node));
+            minLon = Math.min(minLon, nodeAccess.getLon(label.node));
+            maxLon = Math.max(maxLon, nodeAccess.getLon(label.node));
+        }
+        TravelTimeRaster raster;
+        try {
+            raster = new TravelTimeRaster(minLat, maxLat, minLon, maxLon, cellSize, unit);
+        } catch (IllegalArgumentException e) {
+            handleError(e.getMessage(), Code.INVALID_ARGUMENT, responseObserver);
+            return;
+        }
+        for (ShortestPathTree.IsoLabel label : labels) {
+            double lat = nodeAccess.getLat(label.node);
+            double lon = nodeAccess.getLon(label.node);
+            if (label.parent == null) {
+                raster.addPoint(lat, lon, fz.applyAsDouble(label));
+            } else {
+                raster.addSegment(nodeAccess.getLat(label.parent.node), nodeAccess.getLon(label.parent.node),
+                        fz.applyAsDouble(label.parent), lat, lon, fz.applyAsDouble(label));
+            }
+        }
+        RouterExtensionsOuterClass.IsochroneRasterReply reply = RouterExtensionsOuterClass.IsochroneRasterReply.newBuilder()
+                .setRaster(raster.toByteString())
+                .build();
+        timer.stop(StageTimer.Stage.CONVERT, convertStart);
+        timer.setPathCount(1);
+        responseObserver.onNext(reply);
+        responseObserver.onCompleted();
+    }
+
+    private static void handleError(String errorMessage, Code code, StreamObserver<?> responseObserver) {
         Status status = Status.newBuilder()
                 .setCode(code.getNumber())
                 .setMessage(errorMessage)
@@ -9,8 +9,12 @@ import com.graphhopper.GraphHopper;
 import com.graphhopper.ResponsePath;
 import com.graphhopper.config.Profile;
 import com.graphhopper.util.shapes.GHPoint;
+import com.replica.util.MetricTags;
+import com.replica.util.MetricTags.RoutesFound;
 import com.replica.util.MetricUtils;
+import com.replica.util.RequestOptions;
 import com.replica.util.RouterConverters;
+import com.replica.util.StageTimer;
 import com.timgroup.statsd.StatsDClient;
 import io.grpc.protobuf.StatusProto;
 import io.grpc.stub.StreamObserver;
@@ -22,6 +26,7 @@ import router.RouterOuterClass.StreetRouteRequest;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -30,18 +35,21 @@ public class StreetRouter {
     private static final Logger logger = LoggerFactory.getLogger(StreetRouter.class);
     private final GraphHopper graphHopper;
     private final StatsDClient statsDClient;
-    private Map<String, String> customTags;
+    private final MetricTags metricTags;
 
     public StreetRouter(GraphHopper graphHopper,
                         StatsDClient statsDClient,
                         Map<String, String> customTags) {
         this.graphHopper = graphHopper;
         this.statsDClient = statsDClient;
-        this.customTags = customTags;
+        this.metricTags = new MetricTags(customTags);
     }
 
     public void routeStreetMode(StreetRouteRequest request, StreamObserver<StreetRouteReply> responseObserver) {
         long startTime = System.currentTimeMillis();
+        RequestOptions options = RequestOptions.current();
+        StageTimer timer = StageTimer.current();
+        timer.setProfile(request.getProfile());
 
         // For a given "base" profile requested (eg `car`), find all pre-loaded profiles associated
         // with the base profile (eg `car_local`, `car_freeway`). Each such pre-loaded profile will get
@@ -50,9 +58,11 @@ public class StreetRouter {
                 .map(Profile::getName)
                 .filter(profile -> profile.startsWith(request.getProfile()))
                 .collect(Collectors.toList());
+        // Profiles come from clients, so only ones that match a loaded profile are used as metric tags
+        String modeTag = profilesToQuery.isEmpty() ? MetricTags.UNKNOWN_VALUE : request.getProfile();
 
         // Construct query object with settings shared across all profilesToQuery
-        GHRequest ghRequest = RouterConverters.toGHRequest(request);
+        GHRequest ghRequest = RouterConverters.toGHRequest(request, options);
 
         GHPoint origin = ghRequest.getPoints().get(0);
         GHPoint dest = ghRequest.getPoints().get(1);
@@ -63,7 +73,10 @@ public class StreetRouter {
         for (String profile : profilesToQuery) {
             ghRequest.setProfile(profile);
             try {
+                long routeStart = timer.start(StageTimer.Stage.ROUTE);
                 GHResponse ghResponse = graphHopper.route(ghRequest);
+                timer.stop(StageTimer.Stage.ROUTE, routeStart);
+                timer.addVisitedNodes(ghResponse.getHints().getLong("visited_nodes.sum", 0));
                 // ghResponse.hasErrors() means that the router returned no results
                 if (!ghResponse.hasErrors()) {
                     List<ResponsePath> pathsToReturn;
@@ -76,18 +89,19 @@ public class StreetRouter {
                         // the latter causes a blowup in memory usage
                         pathsToReturn = Lists.newArrayList();
                         for (ResponsePath responsePath : ghResponse.getAll()) {
-                            if (!pathHashesInReturnSet.contains(responsePath.getPoints().hashCode())) {
+                            if (pathHashesInReturnSet.add(pathHash(responsePath, options))) {
                                 pathsToReturn.add(responsePath);
-                                pathHashesInReturnSet.add(responsePath.getPoints().hashCode());
                             }
                         }
                     }
                     pathsFound += pathsToReturn.size();
 
                     // Add filtered set of paths to full response set
+                    long convertStart = timer.start(StageTimer.Stage.CONVERT);
                     pathsToReturn.stream()
-                            .map(responsePath -> RouterConverters.toStreetPath(responsePath, profile, request.getReturnFullPathDetails()))
+                            .map(responsePath -> RouterConverters.toStreetPath(responsePath, profile, request.getReturnFullPathDetails(), options))
                             .forEach(replyBuilder::addPaths);
+                    timer.stop(StageTimer.Stage.CONVERT, convertStart);
                 }
             } catch (Exception e) {
                 String message = "GH internal error! Path could not be found between "
@@ -96,8 +110,7 @@ public class StreetRouter {
                 logger.error(message, e);
 
                 double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-                String[] tags = {"mode:" + request.getProfile(), "api:grpc", "routes_found:error"};
-                tags = MetricUtils.applyCustomTags(tags, customTags);
+                String[] tags = metricTags.routing(modeTag, RoutesFound.ERROR);
                 MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds);
 
                 Status status = Status.newBuilder()
@@ -115,8 +128,7 @@ public class StreetRouter {
                     + origin.lat + "," + origin.lon + " to " + dest.lat + "," + dest.lon;
 
             double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-            String[] tags = {"mode:" + request.getProfile(), "api:grpc", "routes_found:false"};
-            tags = MetricUtils.applyCustomTags(tags, customTags);
+            String[] tags = metricTags.routing(modeTag, RoutesFound.FALSE);
             MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds, 0);
 
             Status status = Status.newBuilder()
@@ -126,12 +138,20 @@ public class StreetRouter {
             responseObserver.onError(StatusProto.toStatusRuntimeException(status));
         } else {
             double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-            String[] tags = {"mode:" + request.getProfile(), "api:grpc", "routes_found:true"};
-            tags = MetricUtils.applyCustomTags(tags, customTags);
+            String[] tags = metricTags.routing(modeTag, RoutesFound.TRUE);
             MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds, pathsFound);
+            timer.setPathCount(pathsFound);
 
             responseObserver.onNext(replyBuilder.build());
             responseObserver.onCompleted();
         }
     }
+
+    private static int pathHash(ResponsePath responsePath, RequestOptions options) {
+        // Summary-only paths have no points, so duplicates are identified by their summary values instead
+        if (options.isSummaryOnly()) {
+            return Objects.hash(responsePath.getTime(), responsePath.getDistance(), responsePath.getRouteWeight());
+        }
+        return responsePath.getPoints().hashCode();
+    }
 }
@@ -5,6 +5,7 @@ import com.google.rpc.Code;
 import com.google.rpc.Status;
 import com.graphhopper.gtfs.*;
 import com.graphhopper.isochrone.algorithm.ContourBuilder;
+import com.graphhopper.isochrone.algorithm.ReadableQuadEdge;
 import com.graphhopper.isochrone.algorithm.ReadableTriangulation;
 import com.graphhopper.routing.ev.*;
 import com.graphhopper.routing.util.DefaultSnapFilter;
@@ -12,9 +13,15 @@ import com.graphhopper.routing.util.EncodingManager;
 import com.graphhopper.routing.weighting.FastestWeighting;
 import com.graphhopper.routing.weighting.Weighting;
 import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.storage.index.LocationIndex;
 import com.graphhopper.util.EdgeIteratorState;
 import com.graphhopper.util.exceptions.PointNotFoundException;
 import com.graphhopper.util.shapes.BBox;
+import com.replica.util.ContourExecutor;
+import com.replica.util.GeometryEncoder;
+import com.replica.util.RequestOptions;
+import com.replica.util.SnapCache;
+import com.replica.util.StageTimer;
 import io.grpc.protobuf.StatusProto;
 import io.grpc.stub.StreamObserver;
 import org.apache.commons.compress.utils.Lists;
@@ -32,13 +39,37 @@ import java.util.*;
 public class TransitIsochroneRouter {
 
     private static final double JTS_TOLERANCE = 0.00001;
+    // Key identifying the foot snap filter used for PT isochrone centers in the snap cache
+    public static final String SNAP_FILTER_KEY = "pt_isochrone_foot";
     private final GraphHopperGtfs graphHopper;
+    private final LocationIndex snapLocationIndex;
+    private final ContourExecutor contourExecutor;
 
-    public TransitIsochroneRouter(GraphHopperGtfs graphHopper) {
+    /**
+     * @param contourExecutor computes the contours of each request's buckets, in parallel if it has threads
+     */
+    public TransitIsochroneRouter(GraphHopperGtfs graphHopper, SnapCache snapCache, ContourExecutor contourExecutor) {
         this.graphHopper = graphHopper;
+        this.contourExecutor = contourExecutor;
+        this.snapLocationIndex = snapCache != null ? snapCache.asLocationIndex(SNAP_FILTER_KEY) : graphHopper.getLocationIndex();
+    }
+
+    public DefaultSnapFilter createSnapFilter() {
+        EncodingManager encodingManager = graphHopper.getEncodingManager();
+        BooleanEncodedValue accessEnc = encodingManager.getBooleanEncodedValue(VehicleAccess.key("foot"));
+        DecimalEncodedValue speedEnc = encodingManager.getDecimalEncodedValue(VehicleSpeed.key("foot"));
+        return new DefaultSnapFilter(new FastestWeighting(accessEnc, speedEnc), encodingManager.getBooleanEncodedValue(Subnetwork.key("foot")));
     }
 
     public void routePtIsochrone(RouterOuterClass.PtIsochroneRouteRequest request, StreamObserver<RouterOuterClass.IsochroneRouteReply> responseObserver) {
+        RequestOptions options = RequestOptions.current();
+        StageTimer timer = StageTimer.current();
+        timer.setProfile("pt");
+        if (!options.getGeometryFormat().supportsPolygons()) {
+            handleError("Geometry format " + options.getGeometryFormat() + " isn't supported for isochrones", Code.INVALID_ARGUMENT, responseObserver);
+            return;
+        }
+
         Instant initialTime;
         try {
             initialTime = Instant.ofEpochSecond(request.getEarliestDepartureTime().getSeconds(), request.getEarliestDepartureTime().getNanos());
@@ -67,11 +98,14 @@ public class TransitIsochroneRouter {
         }
 
         PtLocationSnapper.Result snapResult;
+        long snapStart = timer.start(StageTimer.Stage.SNAP);
         try {
-            snapResult = new PtLocationSnapper(graphHopper.getBaseGraph(), graphHopper.getLocationIndex(), gtfsStorage).snapAll(Arrays.asList(location), Arrays.asList(snapFilter));
+            snapResult = new PtLocationSnapper(graphHopper.getBaseGraph(), snapLocationIndex, gtfsStorage).snapAll(Arrays.asList(location), Arrays.asList(snapFilter));
         } catch (PointNotFoundException e) {
             handleError(e.getMessage(), Code.NOT_FOUND, responseObserver);
             return;
+        } finally {
+            timer.stop(StageTimer.Stage.SNAP, snapStart);
         }
         GraphExplorer graphExplorer = new GraphExplorer(snapResult.queryGraph, gtfsStorage.getPtGraph(), weighting, gtfsStorage, RealtimeFeed.empty(), reverseFlow, false, false, 5.0, reverseFlow, request.getBlockedRouteTypes());
         MultiCriteriaLabelSetting router = new MultiCriteriaLabelSetting(graphExplorer, reverseFlow, false, false, 0, Collections.emptyList());
@@ -88,23 +122,42 @@ public class TransitIsochroneRouter {
             bucketTargets.add((i + 1) * delta);
         }
 
-        // Calculate isochrones for each bucket
-        List<Map<Coordinate, Double>> pointsPerBucket = Lists.newArrayList();
-        for (Double bucketTarget : bucketTargets) {
-            pointsPerBucket.add(calcIsochrone(startingNode, nodeAccess, router, initialTime, reverseFlow, bucketTarget, gtfsStorage));
-        }
+        // Labels are settled in order of arrival time, so a single sweep out to the largest bucket's limit finds the
+        // earliest arrival at every point that any bucket contains; each bucket's points are those reached within its limit
+        long routeStart = timer.start(StageTimer.Stage.ROUTE);
+        Map<Coordinate, Double> arrivalTimes = bucketTargets.isEmpty() ? Collections.emptyMap()
+                : calcIsochrone(startingNode, nodeAccess, router, initialTime, reverseFlow, bucketTargets.get(bucketTargets.size() - 1), gtfsStorage);
+        timer.stop(StageTimer.Stage.ROUTE, routeStart);
+        timer.addVisitedNodes(router.getVisitedNodes());
 
         // Generate polygons for each bucket
+        long contourStart = timer.start(StageTimer.Stage.CONTOUR);
+        List<Geometry> isochrones;
+        if (request.getResultFormat().equals("multipoint")) {
+            isochrones = Lists.newArrayList();
+            for (Double bucketTarget : bucketTargets) {
+                Coordinate[] bucketPoints = arrivalTimes.entrySet().stream()
+                        .filter(arrivalTime -> arrivalTime.getValue() <= bucketTarget)
+                        .map(Map.Entry::getKey)
+                        .toArray(Coordinate[]::new);
+                isochrones.add(geometryFactory.createMultiPointFromCoords(bucketPoints));
+            }
+        } else {
+            isochrones = getIsochronePolygons(geometryFactory, arrivalTimes, snapResult, nodeAccess, bucketTargets);
+        }
+        timer.stop(StageTimer.Stage.CONTOUR, contourStart);
+
+        long convertStart = timer.start(StageTimer.Stage.CONVERT);
         RouterOuterClass.IsochroneRouteReply.Builder replyBuilder = RouterOuterClass.IsochroneRouteReply.newBuilder();
-        for (int i = 0; i < pointsPerBucket.size(); i++) {
-            String isochronePolygon = getIsochronePolygon(request.getResultFormat().equals("multipoint"), geometryFactory,
-                    pointsPerBucket.get(i), snapResult, nodeAccess, bucketTargets.get(i));
+        for (int i = 0; i < isochrones.size(); i++) {
             replyBuilder.addBuckets(RouterOuterClass.IsochroneBucket.newBuilder()
                     .setBucket(i)
-                    .setGeometry(isochronePolygon)
+                    .setGeometry(GeometryEncoder.encode(isochrones.get(i), options))
             );
         }
+        timer.stop(StageTimer.Stage.CONVERT, convertStart);
 
+        timer.setPathCount(isochrones.size());
         responseObserver.onNext(replyBuilder.build());
         responseObserver.onCompleted();
     }
@@ -138,53 +191,55 @@ public class TransitIsochroneRouter {
         return z1;
     }
 
-    private String getIsochronePolygon(boolean multipoint, GeometryFactory geometryFactory, Map<Coordinate, Double> bucketPoints,
-                                       PtLocationSnapper.Result snapResult, NodeAccess nodeAccess, double targetZ) {
-        if (multipoint) {
-            MultiPoint exploredPoints = geometryFactory.createMultiPointFromCoords(bucketPoints.keySet().toArray(new Coordinate[0]));
-            return exploredPoints.toString();
-        } else {
-            MultiPoint exploredPoints = geometryFactory.createMultiPointFromCoords(bucketPoints.keySet().toArray(new Coordinate[0]));
-
-            // Get at least all nodes within our bounding box (I think convex hull would be enough.)
-            // I think then we should have all possible encroaching points. (Proof needed.)
-            graphHopper.getLocationIndex().query(BBox.fromEnvelope(exploredPoints.getEnvelopeInternal()), edgeId -> {
-                EdgeIteratorState edge = snapResult.queryGraph.getEdgeIteratorStateForKey(edgeId * 2);
-                bucketPoints.merge(new Coordinate(nodeAccess.getLon(edge.getBaseNode()), nodeAccess.getLat(edge.getBaseNode())), Double.MAX_VALUE, Math::min);
-                bucketPoints.merge(new Coordinate(nodeAccess.getLon(edge.getAdjNode()), nodeAccess.getLat(edge.getAdjNode())), Double.MAX_VALUE, Math::min);
-            });
-            exploredPoints = geometryFactory.createMultiPointFromCoords(bucketPoints.keySet().toArray(new Coordinate[0]));
-
-            CoordinateList siteCoords = DelaunayTriangulationBuilder.extractUniqueCoordinates(exploredPoints);
-            List<ConstraintVertex> constraintVertices = new ArrayList<>();
-            for (Object siteCoord : siteCoords) {
-                Coordinate coord = (Coordinate) siteCoord;
-                constraintVertices.add(new ConstraintVertex(coord));
-            }
+    /**
+     * Contours all buckets from a single triangulation of the points reached within the largest bucket's limit, with
+     * each vertex's z set to its arrival time. Street nodes within the points' bounding box that weren't reached get
+     * an infinite arrival time, so that the contours close around the reached points.
+     */
+    private List<Geometry> getIsochronePolygons(GeometryFactory geometryFactory, Map<Coordinate, Double> arrivalTimes,
+                                                PtLocationSnapper.Result snapResult, NodeAccess nodeAccess, List<Double> targetZs) {
+        Map<Coordinate, Double> points = new HashMap<>(arrivalTimes);
+        MultiPoint exploredPoints = geometryFactory.createMultiPointFromCoords(points.keySet().toArray(new Coordinate[0]));
+
+        // Get at least all nodes within our bounding box (I think convex hull would be enough.)
+        // I think then we should have all possible encroaching points. (Proof needed.)
+        graphHopper.getLocationIndex().query(BBox.fromEnvelope(exploredPoints.getEnvelopeInternal()), edgeId -> {
+            EdgeIteratorState edge = snapResult.queryGraph.getEdgeIteratorStateForKey(edgeId * 2);
+            points.merge(new Coordinate(nodeAccess.getLon(edge.getBaseNode()), nodeAccess.getLat(edge.getBaseNode())), Double.MAX_VALUE, Math::min);
+            points.merge(new Coordinate(nodeAccess.getLon(edge.getAdjNode()), nodeAccess.getLat(edge.getAdjNode())), Double.MAX_VALUE, Math::min);
+        });
+        exploredPoints = geometryFactory.createMultiPointFromCoords(points.keySet().toArray(new Coordinate[0]));
+
+        CoordinateList siteCoords = DelaunayTriangulationBuilder.extractUniqueCoordinates(exploredPoints);
+        List<ConstraintVertex> constraintVertices = new ArrayList<>();
+        for (Object siteCoord : siteCoords) {
+            Coordinate coord = (Coordinate) siteCoord;
+            constraintVertices.add(new ConstraintVertex(coord));
+        }
 
-            ConformingDelaunayTriangulator cdt = new ConformingDelaunayTriangulator(constraintVertices, JTS_TOLERANCE);
-            cdt.setConstraints(new ArrayList(), new ArrayList());
-            cdt.formInitialDelaunay();
+        ConformingDelaunayTriangulator cdt = new ConformingDelaunayTriangulator(constraintVertices, JTS_TOLERANCE);
+        cdt.setConstraints(new ArrayList(), new ArrayList());
+        cdt.formInitialDelaunay();
 
-            QuadEdgeSubdivision tin = cdt.getSubdivision();
+        QuadEdgeSubdivision tin = cdt.getSubdivision();
 
-            for (Vertex vertex : (Collection<Vertex>) tin.getVertices(true)) {
-                if (tin.isFrameVertex(vertex)) {
-                    vertex.setZ(Double.MAX_VALUE);
+        for (Vertex vertex : (Collection<Vertex>) tin.getVertices(true)) {
+            if (tin.isFrameVertex(vertex)) {
+                vertex.setZ(Double.MAX_VALUE);
+            } else {
+                Double aDouble = points.get(vertex.getCoordinate());
+                if (aDouble != null) {
+                    vertex.setZ(aDouble);
                 } else {
-                    Double aDouble = bucketPoints.get(vertex.getCoordinate());
-                    if (aDouble != null) {
-                        vertex.setZ(aDouble);
-                    } else {
-                        vertex.setZ(Double.MAX_VALUE);
-                    }
+                    vertex.setZ(Double.MAX_VALUE);
                 }
             }
-
-            ReadableTriangulation triangulation = ReadableTriangulation.wrap(tin);
-            ContourBuilder contourBuilder = new ContourBuilder(triangulation);
-            MultiPolygon isoline = contourBuilder.computeIsoline(targetZ, triangulation.getEdges());
-            return isoline.toString();
         }
+
+        // Each bucket's contour only reads the triangulation, so buckets are computed in parallel
+        ReadableTriangulation triangulation = ReadableTriangulation.wrap(tin);
+        Collection<ReadableQuadEdge> seedEdges = triangulation.getEdges();
+        ContourBuilder contourBuilder = new ContourBuilder(triangulation);
+        return contourExecutor.map(targetZs.size(), i -> contourBuilder.computeIsoline(targetZs.get(i), seedEdges));
     }
 }
@@ -1,6 +1,5 @@
 package com.replica.api;
 
-import com.google.common.collect.Lists;
 import com.google.rpc.Code;
 import com.google.rpc.Status;
 import com.graphhopper.GHResponse;
@@ -11,15 +10,21 @@ import com.graphhopper.gtfs.Request;
 import com.graphhopper.util.exceptions.PointNotFoundException;
 import com.replica.CustomPtLeg;
 import com.replica.CustomStreetLeg;
+import com.replica.util.MetricTags;
+import com.replica.util.MetricTags.RoutesFound;
 import com.replica.util.MetricUtils;
 import com.replica.util.RouterConverters;
+import com.replica.util.SnapCache;
+import com.replica.util.StageTimer;
 import com.timgroup.statsd.StatsDClient;
+import io.grpc.Context;
 import io.grpc.protobuf.StatusProto;
 import io.grpc.stub.StreamObserver;
 import org.locationtech.jts.geom.LineString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import router.RouterOuterClass.Point;
+import router.RouterOuterClass.PtPath;
 import router.RouterOuterClass.PtRouteReply;
 import router.RouterOuterClass.PtRouteRequest;
 
@@ -29,29 +34,54 @@ import java.util.Map;
 
 public class TransitRouter {
     private static final Logger logger = LoggerFactory.getLogger(TransitRouter.class);
+    // Snap cache keys are this prefix followed by the access (and egress) profile
+    public static final String SNAP_FILTER_KEY_PREFIX = "pt_";
     private final PtRouter ptRouter;
+    private final SnapCache snapCache;
     private Map<String, String> gtfsLinkMappings;
     private Map<String, List<String>> gtfsRouteInfo;
     private Map<String, String> gtfsFeedIdMapping;
     private final StatsDClient statsDClient;
-    private Map<String, String> customTags;
+    private final MetricTags metricTags;
 
+    /**
+     * @param snapCache if not null, points are snapped through it, provided ptRouter was built with
+     *                  SnapCache.requestScopedLocationIndex()
+     */
     public TransitRouter(PtRouter ptRouter,
+                         SnapCache snapCache,
                          Map<String, String> gtfsLinkMappings,
                          Map<String, List<String>> gtfsRouteInfo,
                          Map<String, String> gtfsFeedIdMapping,
                          StatsDClient statsDClient,
                          Map<String, String> customTags) {
         this.ptRouter = ptRouter;
+        this.snapCache = snapCache;
         this.gtfsLinkMappings = gtfsLinkMappings;
         this.gtfsRouteInfo = gtfsRouteInfo;
         this.gtfsFeedIdMapping = gtfsFeedIdMapping;
         this.statsDClient = statsDClient;
-        this.customTags = customTags;
+        this.metricTags = new MetricTags(customTags);
     }
 
     public void routePt(PtRouteRequest request, StreamObserver<PtRouteReply> responseObserver) {
+        routePt(request, responseObserver, false);
+    }
+
+    /**
+     * Like routePt(), but streams a separate reply for each path (containing only that path) as soon as the path
+     * has been augmented and converted, rather than building a single reply with all paths. GH's PtRouter
+     * returns all paths from one profile query at once, so the first reply is sent once routing is done, but
+     * clients can start processing paths while the rest are still being augmented, and converted paths
+     * don't have to be held until the whole reply is built.
+     */
+    public void routePtStream(PtRouteRequest request, StreamObserver<PtRouteReply> responseObserver) {
+        routePt(request, responseObserver, true);
+    }
+
+    private void routePt(PtRouteRequest request, StreamObserver<PtRouteReply> responseObserver, boolean streamPaths) {
         long startTime = System.currentTimeMillis();
+        StageTimer timer = StageTimer.current();
 
         Point fromPoint = request.getPoints(0);
         Point toPoint = request.getPoints(1);
@@ -59,33 +89,52 @@ public class TransitRouter {
 
         try {
             long routeStartTime = System.currentTimeMillis();
-            GHResponse ghResponse = ptRouter.route(ghPtRequest);
+            long routeStart = timer.start(StageTimer.Stage.ROUTE);
+            GHResponse ghResponse = route(ghPtRequest);
+            timer.stop(StageTimer.Stage.ROUTE, routeStart);
+            timer.setProfile("pt");
+            timer.addVisitedNodes(ghResponse.getHints().getLong("visited_nodes.sum", 0));
             double routeDuration = (System.currentTimeMillis() - routeStartTime) / 1000.0;
-            String[] tags = MetricUtils.applyCustomTags(new String[0], customTags);
+            String[] tags = metricTags.base();
             MetricUtils.sendInternalRoutingStats(statsDClient, tags, routeDuration, "internal_duration");
 
-            long augmentStartTime = System.currentTimeMillis();
-            List<ResponsePath> pathsWithStableIds = Lists.newArrayList();
+            long augmentMillis = 0;
+            long replyBuildMillis = 0;
+            int numPaths = 0;
+            PtRouteReply.Builder replyBuilder = PtRouteReply.newBuilder();
             for (ResponsePath path : ghResponse.getAll()) {
                 // Ignore walking-only responses, because we route those separately from PT
                 if (path.getLegs().size() == 1 && path.getLegs().get(0).type.equals("walk")) {
                     continue;
                 }
+                long augmentStartTime = System.currentTimeMillis();
+                long augmentStart = timer.start(StageTimer.Stage.AUGMENT);
                 augmentLegsForPt(path, ghPtRequest);
-                pathsWithStableIds.add(path);
+                timer.stop(StageTimer.Stage.AUGMENT, augmentStart);
+                long replyBuildStart = System.currentTimeMillis();
+                augmentMillis += replyBuildStart - augmentStartTime;
+
+                long convertStart = timer.start(StageTimer.Stage.CONVERT);
+                PtPath ptPath = RouterConverters.toPtPath(path);
+                timer.stop(StageTimer.Stage.CONVERT, convertStart);
+                if (streamPaths) {
+                    responseObserver.onNext(PtRouteReply.newBuilder().addPaths(ptPath).build());
+                } else {
+                    replyBuilder.addPaths(ptPath);
+                }
+                replyBuildMillis += System.currentTimeMillis() - replyBuildStart;
+                numPaths++;
             }
 
-            double augmentDuration = (System.currentTimeMillis() - augmentStartTime) / 1000.0;
-            MetricUtils.sendInternalRoutingStats(statsDClient, tags, augmentDuration, "augment_duration");
+            MetricUtils.sendInternalRoutingStats(statsDClient, tags, augmentMillis / 1000.0, "augment_duration");
 
-            if (pathsWithStableIds.size() == 0) {
+            if (numPaths == 0) {
                 String message = "Transit path could not be found between " + fromPoint.getLat() + "," +
                         fromPoint.getLon() + " to " + toPoint.getLat() + "," + toPoint.getLon();
                 // logger.warn(message);
 
                 double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-                tags = new String[]{"mode:pt", "api:grpc", "routes_found:false"};
-                tags = MetricUtils.applyCustomTags(tags, customTags);
+                tags = metricTags.routing("pt", RoutesFound.FALSE);
                 MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds, 0);
 
                 Status status = Status.newBuilder()
@@ -94,30 +143,17 @@ public class TransitRouter {
                         .build();
                 responseObserver.onError(StatusProto.toStatusRuntimeException(status));
             } else {
-                long replyBuildStart = System.currentTimeMillis();
-                PtRouteReply.Builder replyBuilder = PtRouteReply.newBuilder();
-                pathsWithStableIds.stream()
-                        .map(RouterConverters::toPtPath)
-                        .forEach(replyBuilder::addPaths);
-
-                double replyBuildDuration = (System.currentTimeMillis() - replyBuildStart) / 1000.0;
-                MetricUtils.sendInternalRoutingStats(statsDClient, tags, replyBuildDuration, "reply_build_duration");
+                MetricUtils.sendInternalRoutingStats(statsDClient, tags, replyBuildMillis / 1000.0, "reply_build_duration");
+                timer.setPathCount(numPaths);
 
                 double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-                tags = new String[]{"mode:pt", "api:grpc", "routes_found:true"};
-                tags = MetricUtils.applyCustomTags(tags, customTags);
-                MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds, pathsWithStableIds.size());
-
-                // Request info log for slow-running requests; uncomment if needed for debugging
-                /*
-                if (durationSeconds > 30) {
-                    logger.info("Slow request detected! Full request time: " + durationSeconds + "; internal routing time: "
-                            + routeDuration + "; augment duration: " + augmentDuration + "; reply build duration: " + replyBuildDuration
-                            + "; full request is " + request.toString());
-                }
-                */
+                tags = metricTags.routing("pt", RoutesFound.TRUE);
+                MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds, numPaths);
+                // Slow requests are logged (with the full request) by StageTimingInterceptor; see SLOW_REQUEST_THRESHOLD_SECS
 
-                responseObserver.onNext(replyBuilder.build());
+                if (!streamPaths) {
+                    responseObserver.onNext(replyBuilder.build());
+                }
                 responseObserver.onCompleted();
             }
         } catch (PointNotFoundException e) {
@@ -127,8 +163,7 @@ public class TransitRouter {
             // logger.warn(message);
 
             double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-            String[] tags = {"mode:pt", "api:grpc", "routes_found:false"};
-            tags = MetricUtils.applyCustomTags(tags, customTags);
+            String[] tags = metricTags.routing("pt", RoutesFound.FALSE);
             MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds, 0);
 
             Status status = Status.newBuilder()
@@ -140,8 +175,7 @@ public class TransitRouter {
             logger.error("GraphHopper internal error! ", e);
 
             double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-            String[] tags = {"mode:pt", "api:grpc", "routes_found:error"};
-            tags = MetricUtils.applyCustomTags(tags, customTags);
+            String[] tags = metricTags.routing("pt", RoutesFound.ERROR);
             MetricUtils.sendRoutingStats(statsDClient, tags, durationSeconds);
 
             Status status = Status.newBuilder()
@@ -153,6 +187,24 @@ public class TransitRouter {
         }
     }
 
+    /**
+     * Routes through the snap cache, if there is one, when the access and egress profiles are the same. A snap filter
+     * key has to hold for every snap made during the request, and PtRouter snaps the origin and destination with the
+     * access and egress profiles' filters respectively
+     */
+    private GHResponse route(Request ghPtRequest) {
+        if (snapCache == null || !ghPtRequest.getAccessProfile().equals(ghPtRequest.getEgressProfile())) {
+            return ptRouter.route(ghPtRequest);
+        }
+        Context snapContext = snapCache.withSnapFilterKey(SNAP_FILTER_KEY_PREFIX + ghPtRequest.getAccessProfile());
+        Context previous = snapContext.attach();
+        try {
+            return ptRouter.route(ghPtRequest);
+        } finally {
+            snapContext.detach(previous);
+        }
+    }
+
     /**
      * Performs public-transit-specific modifications to the legs of the ResponsePath. Specifically:
      *
@@ -212,7 +264,7 @@ public class TransitRouter {
                 long startTime = System.currentTimeMillis();
                 CustomPtLeg customPtLeg = RouterConverters.toCustomPtLeg(thisLeg, gtfsFeedIdMapping, gtfsLinkMappings, gtfsRouteInfo);
                 double durationSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
-                String[] tags = MetricUtils.applyCustomTags(new String[0], customTags);
+                String[] tags = metricTags.base();
                 MetricUtils.sendInternalRoutingStats(statsDClient, tags, durationSeconds, "to_custom_pt_leg_seconds");
 
                 path.getLegs().add(customPtLeg);
@@ -0,0 +1,97 @@
+package com.replica.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+/**
+ * Computes the contours of an isochrone's buckets in parallel, on a bounded pool of threads shared by all requests.
+ * Contouring only reads the triangulation, so buckets are independent of each other.
+ *
+ * The calling thread works through the buckets too, rather than just waiting, so a request always makes progress
+ * even when the pool is busy with other requests' buckets. With 0 threads, everything runs on the calling thread.
+ */
+public class ContourExecutor {
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    public ContourExecutor(int threads) {
+        this.threads = threads;
+        if (threads > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "contour-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Runs task for each index from 0 to n - 1, and returns the results in index order. If any task throws, the
+     * remaining tasks are skipped, and the first exception is rethrown.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> map(int n, IntFunction<T> task) {
+        Object[] results = new Object[n];
+        AtomicInteger nextIndex = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(n);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            int i;
+            while ((i = nextIndex.getAndIncrement()) < n) {
+                try {
+                    if (failure.get() == null) {
+                        results[i] = task.apply(i);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+
+        if (executor != null) {
+            // Helpers that start once all indices are taken just return
+            for (int helper = 0; helper < Math.min(n - 1, threads); helper++) {
+                executor.execute(worker);
+            }
+        }
+        worker.run();
+        awaitUninterruptibly(done);
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+        return (List<T>) Arrays.asList(results);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.replica.util;
+
+import com.google.protobuf.CodedOutputStream;
+import com.graphhopper.util.PointList;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ByteOrderValues;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encodes reply geometries in the format requested via RequestOptions. Route geometries are encoded straight from
+ * GH's PointList, so the non-WKT formats don't build any intermediate JTS geometries or WKT text.
+ */
+public final class GeometryEncoder {
+
+    private static final int WKB_LITTLE_ENDIAN = 1;
+    private static final int WKB_LINESTRING = 2;
+    // Max size of a zigzag-encoded 64-bit varint
+    private static final int MAX_VARINT_BYTES = 10;
+
+    private GeometryEncoder() {
+        // utility class
+    }
+
+    public static String encode(PointList points, RequestOptions options) {
+        switch (options.getGeometryFormat()) {
+            case NONE:
+                return "";
+            case POLYLINE:
+                return encodePolyline(points, options.getGeometryPrecision());
+            case PACKED:
+                return encodePacked(points, options.getGeometryPrecision());
+            case WKB:
+                return encodeWkb(points);
+            default:
+                // Kept identical to the output clients have always received
+                return points.toLineString(false).toString();
+        }
+    }
+
+    /**
+     * Encodes a geometry that has already been built with JTS (eg an isochrone polygon). Only formats for which
+     * GeometryFormat.supportsPolygons() is true can be used here.
+     */
+    public static String encode(Geometry geometry, RequestOptions options) {
+        switch (options.getGeometryFormat()) {
+            case NONE:
+                return "";
+            case WKB:
+                return Base64.getEncoder().encodeToString(new WKBWriter(2, ByteOrderValues.LITTLE_ENDIAN).write(geometry));
+            case WKT:
+                return geometry.toString();
+            default:
+                throw new IllegalArgumentException("Geometry format " + options.getGeometryFormat() + " isn't supported for " + geometry.getGeometryType());
+        }
+    }
+
+    static String encodePolyline(PointList points, int precision) {
+        double scale = Math.pow(10, precision);
+        StringBuilder encoded = new StringBuilder(points.size() * 8);
+        long previousLat = 0;
+        long previousLon = 0;
+        for (int i = 0; i < points.size(); i++) {
+            long lat = Math.round(points.getLat(i) * scale);
+            long lon = Math.round(points.getLon(i) * scale);
+            appendPolylineValue(encoded, lat - previousLat);
+            appendPolylineValue(encoded, lon - previousLon);
+            previousLat = lat;
+            previousLon = lon;
+        }
+        return encoded.toString();
+    }
+
+    private static void appendPolylineValue(StringBuilder encoded, long value) {
+        long zigzag = value < 0 ? ~(value << 1) : value << 1;
+        while (zigzag >= 0x20) {
+            encoded.append((char) ((0x20 | (zigzag & 0x1f)) + 63));
+            zigzag >>= 5;
+        }
+        encoded.append((char) (zigzag + 63));
+    }
+
+    static String encodePacked(PointList points, int precision) {
+        double scale = Math.pow(10, precision);
+        byte[] buffer = new byte[points.size() * 2 * MAX_VARINT_BYTES];
+        CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+        long previousLat = 0;
+        long previousLon = 0;
+        try {
+            for (int i = 0; i < points.size(); i++) {
+                long lat = Math.round(points.getLat(i) * scale);
+                long lon = Math.round(points.getLon(i) * scale);
+                output.writeSInt64NoTag(lat - previousLat);
+                output.writeSInt64NoTag(lon - previousLon);
+                previousLat = lat;
+                previousLon = lon;
+            }
+        } catch (IOException e) {
+            // Can't happen, the buffer is sized for the worst case
+            throw new UncheckedIOException(e);
+        }
+        return toBase64(ByteBuffer.wrap(buffer, 0, output.getTotalBytesWritten()));
+    }
+
+    static String encodeWkb(PointList points) {
+        ByteBuffer buffer = ByteBuffer.allocate(9 + points.size() * 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) WKB_LITTLE_ENDIAN)
+                .putInt(WKB_LINESTRING)
+                .putInt(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            buffer.putDouble(points.getLon(i)).putDouble(points.getLat(i));
+        }
+        buffer.flip();
+        return toBase64(buffer);
+    }
+
+    private static String toBase64(ByteBuffer bytes) {
+        ByteBuffer encoded = Base64.getEncoder().encode(bytes);
+        return new String(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining(), StandardCharsets.ISO_8859_1);
+    }
+}
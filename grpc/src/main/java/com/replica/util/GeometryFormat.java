@@ -0,0 +1,41 @@
+package com.replica.util;
+
+/**
+ * Encodings that can be requested for the geometries in routing replies (see RequestOptions)
+ */
+public enum GeometryFormat {
+    /** WKT text; the default, and the only format supported by older clients */
+    WKT(0),
+    /** Google encoded polyline (lat,lon order), with configurable precision */
+    POLYLINE(5),
+    /**
+     * Base64-encoded fixed-point coordinates (lat,lon order, scaled by 10^precision), with each coordinate stored
+     * as the zigzag varint delta from the previous point's coordinate
+     */
+    PACKED(6),
+    /** Base64-encoded little-endian WKB */
+    WKB(0),
+    /** Geometry is left empty */
+    NONE(0);
+
+    private final int defaultPrecision;
+
+    GeometryFormat(int defaultPrecision) {
+        this.defaultPrecision = defaultPrecision;
+    }
+
+    public int getDefaultPrecision() {
+        return defaultPrecision;
+    }
+
+    public boolean usesPrecision() {
+        return this == POLYLINE || this == PACKED;
+    }
+
+    /**
+     * Polyline and packed formats only describe a single line, so they can't be used for isochrone polygons
+     */
+    public boolean supportsPolygons() {
+        return !usesPrecision();
+    }
+}
@@ -0,0 +1,101 @@
+package com.replica.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.graphhopper.storage.index.Snap;
+import com.timgroup.statsd.StatsDClient;
+import org.locationtech.jts.geom.Geometry;
+import router.RouterOuterClass.IsochroneRouteRequest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process cache of street isochrone results: the final bucket geometries, before they're encoded, so that a hit
+ * skips the shortest path tree, the triangulation and the contouring, and can still be returned in any geometry
+ * format.
+ *
+ * Keys are built from where the center snapped to (the tower node, or the edge plus the snapped point rounded to
+ * 4 decimal places, ~10m), so that centers a few meters apart share an entry, and from the profile, limit,
+ * bucket count, flow direction, full geometry flag and tolerance. The cache is bounded by the estimated size of
+ * the stored geometries, evicting in LRU order, and entries expire a fixed time after they're computed.
+ *
+ * Apart from the TTL, nothing removes entries: the graph is loaded once at startup and never reloaded, so cached
+ * results are valid for as long as the process runs.
+ */
+public class IsochroneCache {
+
+    // Rough heap size of a JTS Coordinate, plus the reference to it
+    private static final long COORDINATE_BYTES = 48;
+    private static final double SNAPPED_POINT_SCALE = 1e4;
+
+    private final Cache<String, List<Geometry>> cache;
+    private final StatsDClient statsDClient;
+    private final MetricTags metricTags;
+
+    /**
+     * @param ttlSeconds how long after being computed an entry expires; 0 means entries don't expire
+     */
+    public IsochroneCache(long maxSizeBytes, long ttlSeconds, StatsDClient statsDClient, Map<String, String> customTags) {
+        CacheBuilder<String, List<Geometry>> cacheBuilder = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher((String key, List<Geometry> isochrones) -> weigh(key, isochrones));
+        if (ttlSeconds > 0) {
+            cacheBuilder.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS);
+        }
+        this.cache = cacheBuilder.build();
+        this.statsDClient = statsDClient;
+        this.metricTags = new MetricTags(customTags);
+    }
+
+    /**
+     * Must be called before a QueryGraph is built from the snap, as that changes its closest node
+     */
+    public String keyFor(IsochroneRouteRequest request, Snap snap) {
+        StringBuilder key = new StringBuilder()
+                .append(request.getMode()).append('|')
+                .append(request.getWeightLimit()).append(',')
+                .append(request.getDistanceLimit()).append(',')
+                .append(request.getTimeLimit()).append('|')
+                .append(request.getNBuckets()).append('|')
+                .append(request.getReverseFlow()).append(',')
+                .append(request.getFullGeometry()).append('|')
+                .append(request.getTolerance()).append('|');
+        if (snap.getSnappedPosition() == Snap.Position.TOWER) {
+            key.append('n').append(snap.getClosestNode());
+        } else {
+            key.append('e').append(snap.getClosestEdge().getEdgeKey()).append(',')
+                    .append(Math.round(snap.getSnappedPoint().getLat() * SNAPPED_POINT_SCALE)).append(',')
+                    .append(Math.round(snap.getSnappedPoint().getLon() * SNAPPED_POINT_SCALE));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the cached bucket geometries for the given key, or null if there are none. Hits and misses are
+     * reported per profile. The geometries are shared, and must not be modified.
+     */
+    public List<Geometry> get(String key, String profile) {
+        List<Geometry> isochrones = cache.getIfPresent(key);
+        MetricUtils.incrementCounter(statsDClient, isochrones != null ? "routers.isochrone_cache.hits" : "routers.isochrone_cache.misses",
+                metricTags.tag("mode", profile));
+        return isochrones;
+    }
+
+    public void put(String key, List<Geometry> isochrones) {
+        cache.put(key, List.copyOf(isochrones));
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static int weigh(String key, List<Geometry> isochrones) {
+        long bytes = key.length() * 2L;
+        for (Geometry isochrone : isochrones) {
+            bytes += isochrone.getNumPoints() * COORDINATE_BYTES;
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,34 @@
+package com.replica.util;
+
+import io.grpc.Codec;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * LZ4 (frame format) message compression for gRPC, registered as the "lz4" message encoding. Compresses several times
+ * faster than gzip, at a somewhat lower ratio, so it suits replies that are large but need to go out quickly.
+ */
+public class Lz4Codec implements Codec {
+
+    public static final String ENCODING = "lz4";
+
+    @Override
+    public String getMessageEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream os) throws IOException {
+        // The default 4MB block would be allocated (and mostly left empty) for each reply; most replies fit in 64KB
+        return new LZ4FrameOutputStream(os, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+    }
+
+    @Override
+    public InputStream decompress(InputStream is) throws IOException {
+        return new LZ4FrameInputStream(is);
+    }
+}
@@ -0,0 +1,228 @@
+package com.replica.util;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.timgroup.statsd.StatsDClient;
+import io.grpc.Codec;
+import io.grpc.Compressor;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compresses replies of at least minBytes (serialized), for clients that accept a supported encoding: lz4 is
+ * preferred, as it's much cheaper on CPU, then gzip. Smaller replies are sent uncompressed, as compressing them saves
+ * little network but costs a fixed overhead per message.
+ *
+ * For each compressed reply, records per method and encoding:
+ *
+ *   server.compression_uncompressed_bytes, server.compression_compressed_bytes,
+ *   server.compression_ratio_percent (compressed size as a percentage of uncompressed),
+ *   server.compression_seconds (time spent in the compressor, on the thread sending the reply)
+ *
+ * Values are recorded into the MetricsRegistry, and sent to StatsD as they're recorded unless the registry flushes
+ * its own aggregates (with METRICS_LOCAL_AGGREGATION on), like the routers' metrics (see MetricUtils).
+ *
+ * The compressors are wrapped to take these measurements, so the server must be built with compressorRegistry() and
+ * decompressorRegistry() as well as interceptor().
+ */
+public class MessageCompression {
+
+    private static final Metadata.Key<String> ACCEPT_ENCODING_KEY =
+            Metadata.Key.of("grpc-accept-encoding", Metadata.ASCII_STRING_MARSHALLER);
+    // Most preferred first
+    private static final List<String> ENCODINGS = List.of(Lz4Codec.ENCODING, "gzip");
+
+    // Set while a reply is being sent, so the compressor can record into it; compression happens synchronously in
+    // ServerCall.sendMessage()
+    private static final ThreadLocal<Sample> CURRENT_SAMPLE = new ThreadLocal<>();
+
+    private final MetricsRegistry registry;
+    private final StatsDClient statsDClient;
+    private final Map<String, String> customTags;
+    private final int minBytes;
+    private final Map<String, String[]> tagsByMethodAndEncoding = new ConcurrentHashMap<>();
+    private final CompressorRegistry compressorRegistry = CompressorRegistry.newEmptyInstance();
+    private final DecompressorRegistry decompressorRegistry;
+
+    /**
+     * @param statsDClient may be null, in which case measurements are only recorded into the registry
+     */
+    public MessageCompression(MetricsRegistry registry, StatsDClient statsDClient, Map<String, String> customTags, int minBytes) {
+        this.registry = registry;
+        this.statsDClient = statsDClient;
+        this.customTags = customTags;
+        this.minBytes = minBytes;
+        Lz4Codec lz4 = new Lz4Codec();
+        compressorRegistry.register(new MeteredCompressor(lz4));
+        compressorRegistry.register(new MeteredCompressor(new Codec.Gzip()));
+        // Requests can be lz4 compressed too; the default registry already has gzip
+        decompressorRegistry = DecompressorRegistry.getDefaultInstance().with(lz4, true);
+    }
+
+    public CompressorRegistry compressorRegistry() {
+        return compressorRegistry;
+    }
+
+    public DecompressorRegistry decompressorRegistry() {
+        return decompressorRegistry;
+    }
+
+    public ServerInterceptor interceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                String encoding = chooseEncoding(headers.get(ACCEPT_ENCODING_KEY));
+                if (encoding == null) {
+                    return next.startCall(call, headers);
+                }
+                String method = MethodDescriptor.extractBareMethodName(call.getMethodDescriptor().getFullMethodName());
+                String[] tags = tagsByMethodAndEncoding.computeIfAbsent(method + "/" + encoding, key ->
+                        MetricUtils.applyCustomTags(new String[]{"method:" + method, "encoding:" + encoding, "api:grpc"}, customTags));
+
+                return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+                    @Override
+                    public void sendHeaders(Metadata responseHeaders) {
+                        // Must be set before the headers are sent; messages are then compressed unless turned off below
+                        super.setCompression(encoding);
+                        super.sendHeaders(responseHeaders);
+                    }
+
+                    @Override
+                    public void sendMessage(RespT message) {
+                        long size = serializedSize(message);
+                        boolean compress = size < 0 || size >= minBytes;
+                        super.setMessageCompression(compress);
+                        if (!compress) {
+                            super.sendMessage(message);
+                            return;
+                        }
+                        Sample sample = new Sample();
+                        CURRENT_SAMPLE.set(sample);
+                        try {
+                            super.sendMessage(message);
+                        } finally {
+                            CURRENT_SAMPLE.remove();
+                        }
+                        record(sample, tags);
+                    }
+                }, headers);
+            }
+        };
+    }
+
+    private void record(Sample sample, String[] tags) {
+        // Nothing is recorded if the transport didn't compress (eg the client ended up not accepting the encoding)
+        if (sample.compressedBytes == null || sample.uncompressedBytes == 0) {
+            return;
+        }
+        long compressedBytes = sample.compressedBytes.getCount();
+        MetricUtils.recordValue(registry, statsDClient, "server.compression_uncompressed_bytes", tags, sample.uncompressedBytes);
+        MetricUtils.recordValue(registry, statsDClient, "server.compression_compressed_bytes", tags, compressedBytes);
+        MetricUtils.recordValue(registry, statsDClient, "server.compression_ratio_percent", tags, compressedBytes * 100 / sample.uncompressedBytes);
+        MetricUtils.recordSeconds(registry, statsDClient, "server.compression_seconds", tags, sample.nanos / 1e9);
+    }
+
+    static String chooseEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        List<String> accepted = List.of(acceptEncoding.split("\\s*,\\s*"));
+        for (String encoding : ENCODINGS) {
+            if (accepted.contains(encoding)) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    private static long serializedSize(Object message) {
+        if (message instanceof MessageLite) {
+            // memoized by generated messages, so serializing the reply doesn't compute it again
+            return ((MessageLite) message).getSerializedSize();
+        } else if (message instanceof ByteString) {
+            // pre-serialized replies (see RouterImpl)
+            return ((ByteString) message).size();
+        }
+        return -1;
+    }
+
+    private static class Sample {
+        private long uncompressedBytes;
+        private long nanos;
+        private CountingOutputStream compressedBytes;
+    }
+
+    /**
+     * Measures the bytes in and out of the wrapped compressor, and the time spent in it, for the reply being sent
+     */
+    private static class MeteredCompressor implements Compressor {
+        private final Compressor compressor;
+
+        MeteredCompressor(Compressor compressor) {
+            this.compressor = compressor;
+        }
+
+        @Override
+        public String getMessageEncoding() {
+            return compressor.getMessageEncoding();
+        }
+
+        @Override
+        public OutputStream compress(OutputStream os) throws IOException {
+            Sample sample = CURRENT_SAMPLE.get();
+            if (sample == null) {
+                return compressor.compress(os);
+            }
+            sample.compressedBytes = new CountingOutputStream(os);
+            long start = System.nanoTime();
+            OutputStream compressing = compressor.compress(sample.compressedBytes);
+            sample.nanos += System.nanoTime() - start;
+            return new FilterOutputStream(compressing) {
+                @Override
+                public void write(int b) throws IOException {
+                    long start = System.nanoTime();
+                    out.write(b);
+                    sample.nanos += System.nanoTime() - start;
+                    sample.uncompressedBytes++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    long start = System.nanoTime();
+                    out.write(b, off, len);
+                    sample.nanos += System.nanoTime() - start;
+                    sample.uncompressedBytes += len;
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    long start = System.nanoTime();
+                    out.flush();
+                    sample.nanos += System.nanoTime() - start;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    long start = System.nanoTime();
+                    out.close();
+                    sample.nanos += System.nanoTime() - start;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.replica.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds and caches the tag arrays used for router metrics, so that the same (immutable) array instance is
+ * reused for every metric call with the same tags, rather than a new array being built per call. Tag arrays are
+ * laid out as the request-specific tags, then "api:grpc", then the custom (region + helm release) tags.
+ *
+ * Returned arrays are shared, and must not be modified.
+ *
+ * Tag values often come from requests (eg the profile), and every distinct value becomes a new metric series,
+ * so callers should map values they don't recognize to UNKNOWN_VALUE. As a backstop, only the first
+ * MAX_VALUES_PER_TAG distinct values of each tag are kept; any others are reported as UNKNOWN_VALUE.
+ */
+public final class MetricTags {
+
+    public static final String UNKNOWN_VALUE = "unknown";
+    static final int MAX_VALUES_PER_TAG = 256;
+
+    private final Map<String, String> customTags;
+    private final String[] baseTags;
+    private final Map<String, Map<String, String[]>> tagsByName = new ConcurrentHashMap<>();
+    private final Map<String, String[][]> routingTagsByMode = new ConcurrentHashMap<>();
+
+    public MetricTags(Map<String, String> customTags) {
+        this.customTags = customTags;
+        this.baseTags = MetricUtils.applyCustomTags(new String[0], customTags);
+    }
+
+    /**
+     * Custom tags only
+     */
+    public String[] base() {
+        return baseTags;
+    }
+
+    /**
+     * eg {"mode:car", "api:grpc", custom tags...} for tag("mode", "car")
+     */
+    public String[] tag(String tagName, String tagValue) {
+        Map<String, String[]> tagsByValue = tagsByName.get(tagName);
+        if (tagsByValue == null) {
+            tagsByValue = tagsByName.computeIfAbsent(tagName, name -> new ConcurrentHashMap<>());
+        }
+        String[] tags = tagsByValue.get(tagValue);
+        if (tags == null) {
+            if (tagsByValue.size() >= MAX_VALUES_PER_TAG && !tagValue.equals(UNKNOWN_VALUE)) {
+                return tag(tagName, UNKNOWN_VALUE);
+            }
+            tags = tagsByValue.computeIfAbsent(tagValue,
+                    value -> MetricUtils.applyCustomTags(new String[]{tagName + ":" + value, "api:grpc"}, customTags));
+        }
+        return tags;
+    }
+
+    /**
+     * eg {"mode:car", "api:grpc", "routes_found:true", custom tags...}
+     */
+    public String[] routing(String mode, RoutesFound routesFound) {
+        String[][] tagsByOutcome = routingTagsByMode.get(mode);
+        if (tagsByOutcome == null) {
+            if (routingTagsByMode.size() >= MAX_VALUES_PER_TAG && !mode.equals(UNKNOWN_VALUE)) {
+                return routing(UNKNOWN_VALUE, routesFound);
+            }
+            tagsByOutcome = routingTagsByMode.computeIfAbsent(mode, this::buildRoutingTags);
+        }
+        return tagsByOutcome[routesFound.ordinal()];
+    }
+
+    private String[][] buildRoutingTags(String mode) {
+        RoutesFound[] outcomes = RoutesFound.values();
+        String[][] tagsByOutcome = new String[outcomes.length][];
+        for (RoutesFound outcome : outcomes) {
+            tagsByOutcome[outcome.ordinal()] = MetricUtils.applyCustomTags(
+                    new String[]{"mode:" + mode, "api:grpc", "routes_found:" + outcome.tagValue}, customTags);
+        }
+        return tagsByOutcome;
+    }
+
+    public enum RoutesFound {
+        TRUE("true"), FALSE("false"), ERROR("error");
+
+        private final String tagValue;
+
+        RoutesFound(String tagValue) {
+            this.tagValue = tagValue;
+        }
+    }
+}
@@ -1,26 +1,45 @@
 package com.replica.util;
 
-import com.google.common.collect.Lists;
 import com.timgroup.statsd.StatsDClient;
 
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 
 public final class MetricUtils {
 
+    // Optional in-process registry that all metrics are also recorded into; see MetricsRegistry
+    private static volatile MetricsRegistry registry;
+
     private MetricUtils () {
         // utility class
     }
 
+    public static void setRegistry(MetricsRegistry metricsRegistry) {
+        registry = metricsRegistry;
+    }
+
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
     public static void sendRoutingStats(StatsDClient statsDClient, String[] tags, double durationSeconds, int numRoutes) {
-        if (statsDClient != null) {
+        MetricsRegistry metricsRegistry = registry;
+        if (metricsRegistry != null) {
+            metricsRegistry.recordValue("routers.num_routes", tags, numRoutes);
+        }
+        if (sendToStatsD(statsDClient, metricsRegistry)) {
             statsDClient.histogram("routers.num_routes", numRoutes, tags);
         }
         sendRoutingStats(statsDClient, tags, durationSeconds);
     }
 
     public static void sendRoutingStats(StatsDClient statsDClient, String[] tags, double durationSeconds) {
-        if (statsDClient != null) {
+        MetricsRegistry metricsRegistry = registry;
+        if (metricsRegistry != null) {
+            metricsRegistry.increment("routers.num_requests", tags);
+            metricsRegistry.recordSeconds("routers.request_seconds", tags, durationSeconds);
+        }
+        if (sendToStatsD(statsDClient, metricsRegistry)) {
             statsDClient.incrementCounter("routers.num_requests", tags);
             statsDClient.histogram("routers.request_seconds", durationSeconds, tags);
         }
@@ -28,26 +47,74 @@ public final class MetricUtils {
 
     public static void sendInternalRoutingStats(StatsDClient statsDClient, String[] tags,
                                                 double durationSeconds, String statName) {
-        if (statsDClient != null) {
+        MetricsRegistry metricsRegistry = registry;
+        if (metricsRegistry != null) {
+            metricsRegistry.recordSeconds("routers." + statName, tags, durationSeconds);
+        }
+        if (sendToStatsD(statsDClient, metricsRegistry)) {
             statsDClient.histogram("routers." + statName, durationSeconds, tags);
         }
     }
 
-    // Apply region + helm release tags, if they exist
-    public static String[] applyCustomTags(String[] tags, Map<String, String> customTags) {
-        for (String tagName : customTags.keySet()) {
-            tags = applyTag(tags, tagName, customTags.get(tagName));
+    public static void incrementCounter(StatsDClient statsDClient, String name, String[] tags) {
+        MetricsRegistry metricsRegistry = registry;
+        if (metricsRegistry != null) {
+            metricsRegistry.increment(name, tags);
+        }
+        if (sendToStatsD(statsDClient, metricsRegistry)) {
+            statsDClient.incrementCounter(name, tags);
         }
-        return tags;
     }
 
-    private static String[] applyTag(String[] tags, String tagName, String tagValue) {
-        if (tagValue == null) {
-            return tags;
-        } else {
-            List<String> newTags = Lists.newArrayList(tags);
-            newTags.add(tagName + ":" + tagValue);
-            return newTags.toArray(new String[newTags.size()]);
+    /**
+     * Like incrementCounter(), but for classes that record into a registry of their own (eg one given to them for
+     * testing) rather than the global one
+     */
+    public static void increment(MetricsRegistry metricsRegistry, StatsDClient statsDClient, String name, String[] tags) {
+        metricsRegistry.increment(name, tags);
+        if (sendToStatsD(statsDClient, metricsRegistry)) {
+            statsDClient.incrementCounter(name, tags);
+        }
+    }
+
+    /**
+     * Records the value into the given registry, and sends it to StatsD as a histogram value unless the registry
+     * flushes its own aggregates to StatsD
+     */
+    public static void recordValue(MetricsRegistry metricsRegistry, StatsDClient statsDClient, String name, String[] tags, long value) {
+        metricsRegistry.recordValue(name, tags, value);
+        if (sendToStatsD(statsDClient, metricsRegistry)) {
+            statsDClient.histogram(name, value, tags);
+        }
+    }
+
+    public static void recordSeconds(MetricsRegistry metricsRegistry, StatsDClient statsDClient, String name, String[] tags, double durationSeconds) {
+        metricsRegistry.recordSeconds(name, tags, durationSeconds);
+        if (sendToStatsD(statsDClient, metricsRegistry)) {
+            statsDClient.histogram(name, durationSeconds, tags);
+        }
+    }
+
+    // Values are sent to StatsD one by one, unless the registry aggregates and flushes them instead
+    private static boolean sendToStatsD(StatsDClient statsDClient, MetricsRegistry metricsRegistry) {
+        return statsDClient != null && (metricsRegistry == null || !metricsRegistry.isReportingToStatsD());
+    }
+
+    // Apply region + helm release tags, if they exist. Prefer the cached tag arrays from MetricTags on hot paths
+    public static String[] applyCustomTags(String[] tags, Map<String, String> customTags) {
+        int numCustomTags = 0;
+        for (String tagValue : customTags.values()) {
+            if (tagValue != null) {
+                numCustomTags++;
+            }
+        }
+        String[] newTags = Arrays.copyOf(tags, tags.length + numCustomTags);
+        int index = tags.length;
+        for (Map.Entry<String, String> customTag : customTags.entrySet()) {
+            if (customTag.getValue() != null) {
+                newTags[index++] = customTag.getKey() + ":" + customTag.getValue();
+            }
         }
+        return newTags;
     }
 }
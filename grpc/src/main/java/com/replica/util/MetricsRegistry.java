@@ -0,0 +1,276 @@
+package com.replica.util;
+
+import com.google.common.collect.MapMaker;
+import com.timgroup.statsd.StatsDClient;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * In-process registry of router metrics. Histograms are recorded into HdrHistogram Recorders (wait-free for
+ * recording threads) and counters into LongAdders, so recording a metric doesn't allocate or send anything;
+ * recorded values are periodically drained and, if a StatsD client is given, flushed to StatsD as one set of
+ * aggregates per metric (count, avg, p50, p95, p99 and max gauges) instead of one packet per recorded value.
+ *
+ * Gauges (eg queue depths) are registered once with a supplier, which is read whenever the registry is flushed
+ * or snapshotted.
+ *
+ * Series are looked up by metric name and tag array. Lookups are by array identity first, so callers should
+ * use the canonical tag arrays from MetricTags; other arrays still work, but cost a value-based lookup.
+ */
+public class MetricsRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+    private static final int SIGNIFICANT_VALUE_DIGITS = 3;
+    private static final double MICROS_PER_SECOND = 1_000_000.0;
+
+    // Per-name maps are weak-keyed, so they compare tag arrays by identity, and don't keep arrays that were
+    // built per call alive
+    private final Map<String, Map<String[], Series>> seriesByName = new ConcurrentHashMap<>();
+    private final Map<List<Object>, Series> seriesByValue = new ConcurrentHashMap<>();
+    private volatile StatsDClient statsDClient;
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * Records a duration; durations are stored with microsecond resolution, and reported in seconds
+     */
+    public void recordSeconds(String name, String[] tags, double durationSeconds) {
+        series(name, tags, Series.Type.SECONDS).recorder.recordValue(Math.max(0, Math.round(durationSeconds * MICROS_PER_SECOND)));
+    }
+
+    public void recordValue(String name, String[] tags, long value) {
+        series(name, tags, Series.Type.VALUE).recorder.recordValue(Math.max(0, value));
+    }
+
+    public void increment(String name, String[] tags) {
+        series(name, tags, Series.Type.COUNTER).counter.increment();
+    }
+
+    /**
+     * Registers a gauge whose value is read from the given supplier; registering the same name and tags again
+     * replaces the supplier
+     */
+    public void registerGauge(String name, String[] tags, DoubleSupplier supplier) {
+        series(name, tags, Series.Type.GAUGE).gauge = supplier;
+    }
+
+    /**
+     * Starts periodically draining recorded values, and sending them to StatsD if a client is given
+     */
+    public synchronized void start(StatsDClient statsDClient, long flushIntervalSeconds) {
+        this.statsDClient = statsDClient;
+        if (flushExecutor != null) {
+            return;
+        }
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleAtFixedRate(() -> {
+            try {
+                flush();
+            } catch (Exception e) {
+                logger.warn("Failed to flush metrics", e);
+            }
+        }, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * True if recorded values are flushed to StatsD by this registry, in which case they shouldn't also be
+     * sent to StatsD individually
+     */
+    public boolean isReportingToStatsD() {
+        return statsDClient != null;
+    }
+
+    public synchronized void flush() {
+        drain();
+        StatsDClient statsDClient = this.statsDClient;
+        if (statsDClient == null) {
+            return;
+        }
+        for (Series series : allSeries()) {
+            if (series.type == Series.Type.GAUGE) {
+                statsDClient.gauge(series.name, series.gauge.getAsDouble(), series.tags);
+            } else if (series.type == Series.Type.COUNTER) {
+                long count = series.counter.sum();
+                long delta = count - series.reportedCount;
+                series.reportedCount = count;
+                if (delta > 0) {
+                    statsDClient.count(series.name, delta, series.tags);
+                }
+            } else {
+                Histogram interval = series.unreported;
+                if (interval.getTotalCount() > 0) {
+                    double scale = series.type == Series.Type.SECONDS ? MICROS_PER_SECOND : 1.0;
+                    statsDClient.count(series.name + ".count", interval.getTotalCount(), series.tags);
+                    statsDClient.gauge(series.name + ".avg", interval.getMean() / scale, series.tags);
+                    statsDClient.gauge(series.name + ".p50", interval.getValueAtPercentile(50) / scale, series.tags);
+                    statsDClient.gauge(series.name + ".p95", interval.getValueAtPercentile(95) / scale, series.tags);
+                    statsDClient.gauge(series.name + ".p99", interval.getValueAtPercentile(99) / scale, series.tags);
+                    statsDClient.gauge(series.name + ".max", interval.getMaxValue() / scale, series.tags);
+                    interval.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a point-in-time copy of every series, with cumulative values since the server started
+     */
+    public synchronized List<SeriesSnapshot> snapshot() {
+        drain();
+        List<SeriesSnapshot> snapshots = new ArrayList<>();
+        for (Series series : allSeries()) {
+            if (series.type == Series.Type.GAUGE) {
+                snapshots.add(new SeriesSnapshot(series.name, series.tags, series.type, null, 0, series.gauge.getAsDouble()));
+            } else if (series.type == Series.Type.COUNTER) {
+                snapshots.add(new SeriesSnapshot(series.name, series.tags, series.type, null, series.counter.sum(), 0));
+            } else {
+                snapshots.add(new SeriesSnapshot(series.name, series.tags, series.type, series.cumulative.copy(),
+                        series.cumulative.getTotalCount(), 0));
+            }
+        }
+        return snapshots;
+    }
+
+    // Moves values recorded since the last drain into the cumulative and not-yet-reported histograms
+    private void drain() {
+        for (Series series : allSeries()) {
+            if (series.recorder != null) {
+                Histogram interval = series.recorder.getIntervalHistogram(series.recycled);
+                series.cumulative.add(interval);
+                series.unreported.add(interval);
+                series.recycled = interval;
+            }
+        }
+    }
+
+    private List<Series> allSeries() {
+        return new ArrayList<>(seriesByValue.values());
+    }
+
+    private Series series(String name, String[] tags, Series.Type type) {
+        Map<String[], Series> seriesByTags = seriesByName.get(name);
+        if (seriesByTags == null) {
+            seriesByTags = seriesByName.computeIfAbsent(name, n -> new MapMaker().weakKeys().makeMap());
+        }
+        Series series = seriesByTags.get(tags);
+        if (series != null) {
+            return series;
+        }
+
+        series = seriesByValue.computeIfAbsent(Arrays.asList(name, Arrays.asList(tags)), key -> new Series(name, tags.clone(), type));
+        seriesByTags.putIfAbsent(tags, series);
+        return series;
+    }
+
+    private static class Series {
+        enum Type { SECONDS, VALUE, COUNTER, GAUGE }
+
+        final String name;
+        final String[] tags;
+        final Type type;
+        final Recorder recorder;
+        final LongAdder counter;
+        // Guarded by the registry's lock
+        final Histogram cumulative;
+        final Histogram unreported;
+        Histogram recycled;
+        long reportedCount;
+        volatile DoubleSupplier gauge;
+
+        Series(String name, String[] tags, Type type) {
+            this.name = name;
+            this.tags = tags;
+            this.type = type;
+            if (type == Type.COUNTER || type == Type.GAUGE) {
+                this.recorder = null;
+                this.counter = type == Type.COUNTER ? new LongAdder() : null;
+                this.cumulative = null;
+                this.unreported = null;
+            } else {
+                this.recorder = new Recorder(SIGNIFICANT_VALUE_DIGITS);
+                this.counter = null;
+                this.cumulative = new Histogram(SIGNIFICANT_VALUE_DIGITS);
+                this.unreported = new Histogram(SIGNIFICANT_VALUE_DIGITS);
+            }
+        }
+    }
+
+    public static class SeriesSnapshot {
+        private final String name;
+        private final String[] tags;
+        private final Series.Type type;
+        private final Histogram histogram;
+        private final long count;
+        private final double value;
+
+        SeriesSnapshot(String name, String[] tags, Series.Type type, Histogram histogram, long count, double value) {
+            this.name = name;
+            this.tags = tags;
+            this.type = type;
+            this.histogram = histogram;
+            this.count = count;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getTags() {
+            return tags.clone();
+        }
+
+        public boolean isCounter() {
+            return type == Series.Type.COUNTER;
+        }
+
+        public boolean isGauge() {
+            return type == Series.Type.GAUGE;
+        }
+
+        /**
+         * Current value of a gauge; 0 for other series
+         */
+        public double getValue() {
+            return value;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Value at the given percentile, in seconds for durations; 0 for counters and gauges
+         */
+        public double getValueAtPercentile(double percentile) {
+            return histogram == null ? 0 : scale(histogram.getValueAtPercentile(percentile));
+        }
+
+        /**
+         * Sum of all recorded values, in seconds for durations; the count for counters
+         */
+        public double getSum() {
+            return histogram == null ? count : scale(histogram.getMean() * histogram.getTotalCount());
+        }
+
+        private double scale(double value) {
+            return type == Series.Type.SECONDS ? value / MICROS_PER_SECOND : value;
+        }
+    }
+}
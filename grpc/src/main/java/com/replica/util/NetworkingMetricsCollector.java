@@ -0,0 +1,176 @@
+package com.replica.util;
+
+import com.timgroup.statsd.StatsDClient;
+import io.grpc.Attributes;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerTransportFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Samples in-flight calls and open connections on a fixed schedule, so that transport saturation can be told apart
+ * from compute saturation when tuning WORKER_EVENT_LOOP_THREADS and SERVER_THREADS. Each sample is recorded into the
+ * MetricsRegistry as a histogram value, so the reported percentiles describe the distribution over the flush interval
+ * rather than a single point-in-time reading. Unless the registry flushes its own aggregates to StatsD (with
+ * METRICS_LOCAL_AGGREGATION on), each sample is also sent to StatsD as it's taken, like the routers' metrics (see
+ * MetricUtils); that's one packet per method, per connection and for the connection count, every interval:
+ *
+ *   server.in_flight_calls (per method), server.in_flight_calls_per_connection (one value per open connection),
+ *   server.open_connections
+ *
+ * Event loop pending tasks and executor queue depth and active threads are gauges registered by RouterServer
+ * (netty.event_loop_pending_tasks, server.executor_queue_depth, server.executor_active_threads), so they're not
+ * sampled here.
+ *
+ * It also counts server.flow_control_stalls (per method): replies sent while the call wasn't ready, ie while
+ * the client's flow-control window or the transport's outbound buffer was full.
+ *
+ * In-flight calls and connections are tracked by interceptor() and transportFilter(), which must be installed on
+ * the server. Tracking costs a couple of atomic updates per call; sampling runs on a single daemon thread.
+ */
+public class NetworkingMetricsCollector {
+
+    private static final Logger logger = LoggerFactory.getLogger(NetworkingMetricsCollector.class);
+
+    private final MetricsRegistry registry;
+    private final StatsDClient statsDClient;
+    private final MetricTags metricTags;
+    private final Map<String, AtomicInteger> inFlightByMethod = new ConcurrentHashMap<>();
+    private final Map<SocketAddress, AtomicInteger> inFlightByConnection = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sampler;
+
+    /**
+     * @param statsDClient may be null, in which case samples are only recorded into the registry
+     */
+    public NetworkingMetricsCollector(MetricsRegistry registry, StatsDClient statsDClient, Map<String, String> customTags) {
+        this.registry = registry;
+        this.statsDClient = statsDClient;
+        this.metricTags = new MetricTags(customTags);
+    }
+
+    public synchronized void start(long sampleIntervalMillis) {
+        if (sampler != null) {
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "networking-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            try {
+                sample();
+            } catch (Exception e) {
+                logger.warn("Failed to sample networking metrics", e);
+            }
+        }, sampleIntervalMillis, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("Sampling networking metrics every " + sampleIntervalMillis + "ms");
+    }
+
+    void sample() {
+        for (Map.Entry<String, AtomicInteger> method : inFlightByMethod.entrySet()) {
+            MetricUtils.recordValue(registry, statsDClient, "server.in_flight_calls", metricTags.tag("method", method.getKey()), method.getValue().get());
+        }
+        List<AtomicInteger> connections = new ArrayList<>(inFlightByConnection.values());
+        MetricUtils.recordValue(registry, statsDClient, "server.open_connections", metricTags.base(), connections.size());
+        for (AtomicInteger inFlight : connections) {
+            MetricUtils.recordValue(registry, statsDClient, "server.in_flight_calls_per_connection", metricTags.base(), inFlight.get());
+        }
+    }
+
+    /**
+     * Tracks in-flight calls per method and per connection, and counts replies sent while the call wasn't ready
+     */
+    public ServerInterceptor interceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                String method = MethodDescriptor.extractBareMethodName(call.getMethodDescriptor().getFullMethodName());
+                AtomicInteger methodInFlight = inFlightByMethod.computeIfAbsent(method, m -> new AtomicInteger());
+                SocketAddress remoteAddress = call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR);
+                AtomicInteger connectionInFlight = remoteAddress != null
+                        ? inFlightByConnection.computeIfAbsent(remoteAddress, a -> new AtomicInteger())
+                        : null;
+                String[] stallTags = metricTags.tag("method", method);
+
+                methodInFlight.incrementAndGet();
+                if (connectionInFlight != null) {
+                    connectionInFlight.incrementAndGet();
+                }
+
+                ServerCall<ReqT, RespT> trackedCall = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+                    @Override
+                    public void sendMessage(RespT message) {
+                        if (!isReady()) {
+                            MetricUtils.increment(registry, statsDClient, "server.flow_control_stalls", stallTags);
+                        }
+                        super.sendMessage(message);
+                    }
+                };
+                return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(next.startCall(trackedCall, headers)) {
+                    // Exactly one of onComplete and onCancel is called for every call
+                    @Override
+                    public void onComplete() {
+                        finished();
+                        super.onComplete();
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        finished();
+                        super.onCancel();
+                    }
+
+                    private void finished() {
+                        methodInFlight.decrementAndGet();
+                        if (connectionInFlight != null) {
+                            connectionInFlight.decrementAndGet();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Tracks open connections, so that connections without any in-flight calls are counted too
+     */
+    public ServerTransportFilter transportFilter() {
+        return new ServerTransportFilter() {
+            @Override
+            public Attributes transportReady(Attributes transportAttrs) {
+                SocketAddress remoteAddress = transportAttrs.get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR);
+                if (remoteAddress != null) {
+                    inFlightByConnection.putIfAbsent(remoteAddress, new AtomicInteger());
+                }
+                return transportAttrs;
+            }
+
+            @Override
+            public void transportTerminated(Attributes transportAttrs) {
+                SocketAddress remoteAddress = transportAttrs.get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR);
+                if (remoteAddress != null) {
+                    inFlightByConnection.remove(remoteAddress);
+                }
+            }
+        };
+    }
+}
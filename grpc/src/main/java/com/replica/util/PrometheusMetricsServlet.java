@@ -0,0 +1,121 @@
+package com.replica.util;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serves the contents of the in-process MetricsRegistry in the Prometheus text exposition format, so that the
+ * server's metrics can be scraped (or just curl'd) without a StatsD agent.
+ *
+ * Metric names have dots replaced with underscores (routers.request_seconds -> routers_request_seconds), and
+ * "name:value" tags become labels. Histograms are exposed as summaries (p50/p95/p99 quantiles plus _sum and _count,
+ * cumulative since the server started), counters as counters with a _total suffix, and gauges as gauges.
+ */
+public class PrometheusMetricsServlet extends HttpServlet {
+
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        MetricsRegistry registry = MetricUtils.getRegistry();
+        if (registry == null) {
+            return;
+        }
+
+        List<MetricsRegistry.SeriesSnapshot> snapshots = registry.snapshot();
+        snapshots.sort(Comparator.comparing(MetricsRegistry.SeriesSnapshot::getName));
+
+        PrintWriter writer = response.getWriter();
+        String previousName = null;
+        for (MetricsRegistry.SeriesSnapshot series : snapshots) {
+            String name = metricName(series.getName());
+            String labels = labels(series.getTags());
+            if (series.isCounter()) {
+                name += "_total";
+            }
+            if (!name.equals(previousName)) {
+                writer.append("# TYPE ").append(name).append(' ')
+                        .append(series.isCounter() ? "counter" : series.isGauge() ? "gauge" : "summary").append('\n');
+                previousName = name;
+            }
+
+            if (series.isCounter()) {
+                writeSample(writer, name, labels, null, series.getCount());
+            } else if (series.isGauge()) {
+                writeSample(writer, name, labels, null, series.getValue());
+            } else {
+                for (double quantile : QUANTILES) {
+                    writeSample(writer, name, labels, "quantile=\"" + quantile + "\"", series.getValueAtPercentile(quantile * 100));
+                }
+                writeSample(writer, name + "_sum", labels, null, series.getSum());
+                writeSample(writer, name + "_count", labels, null, series.getCount());
+            }
+        }
+        writer.flush();
+    }
+
+    private static void writeSample(PrintWriter writer, String name, String labels, String extraLabel, double value) {
+        writer.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            writer.append('{').append(labels);
+            if (extraLabel != null) {
+                writer.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+            }
+            writer.append('}');
+        }
+        writer.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    static String metricName(String name) {
+        StringBuilder sanitized = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+                    || (i > 0 && c >= '0' && c <= '9');
+            sanitized.append(valid ? c : '_');
+        }
+        return sanitized.toString();
+    }
+
+    // Converts StatsD-style "name:value" tags to Prometheus labels; tags without a value are dropped
+    static String labels(String[] tags) {
+        StringBuilder labels = new StringBuilder();
+        for (String tag : tags) {
+            int separator = tag.indexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+            if (labels.length() > 0) {
+                labels.append(',');
+            }
+            labels.append(metricName(tag.substring(0, separator))).append("=\"");
+            String value = tag.substring(separator + 1);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    labels.append('\\').append(c);
+                } else if (c == '\n') {
+                    labels.append("\\n");
+                } else {
+                    labels.append(c);
+                }
+            }
+            labels.append('"');
+        }
+        return labels.toString();
+    }
+}
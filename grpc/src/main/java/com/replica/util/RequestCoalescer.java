@@ -0,0 +1,97 @@
+package com.replica.util;
+
+import com.google.protobuf.ByteString;
+import com.timgroup.statsd.StatsDClient;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces identical in-flight requests ("single-flight"): while a request with a given fingerprint is being
+ * computed, any further requests with the same fingerprint wait for that computation and share its serialized
+ * reply (or error), rather than being routed again.
+ *
+ * Waiting requests don't hold a thread; their replies are delivered from the thread that completes the
+ * shared computation.
+ */
+public class RequestCoalescer {
+
+    private final Map<Object, CompletableFuture<ByteString>> inFlight = new ConcurrentHashMap<>();
+    private final StatsDClient statsDClient;
+    private final MetricTags metricTags;
+
+    public RequestCoalescer(StatsDClient statsDClient, Map<String, String> customTags) {
+        this.statsDClient = statsDClient;
+        this.metricTags = new MetricTags(customTags);
+    }
+
+    /**
+     * @param fingerprint canonical identity of the request; must include everything that affects the reply
+     * @param mode used to tag the coalesced request count
+     * @param computation computes the reply and writes it to the given observer (as a single message) before
+     *                    returning
+     */
+    public void execute(Object fingerprint, String mode, Consumer<StreamObserver<ByteString>> computation,
+                        StreamObserver<ByteString> responseObserver) {
+        CompletableFuture<ByteString> future = new CompletableFuture<>();
+        CompletableFuture<ByteString> existing = inFlight.putIfAbsent(fingerprint, future);
+        if (existing != null) {
+            MetricUtils.incrementCounter(statsDClient, "routers.coalesced_requests", metricTags.tag("mode", mode));
+            existing.whenComplete((reply, t) -> deliver(reply, t, responseObserver));
+            return;
+        }
+
+        future.whenComplete((reply, t) -> inFlight.remove(fingerprint, future));
+        try {
+            computation.accept(new CompletingObserver(future));
+        } catch (Exception e) {
+            future.completeExceptionally(Status.INTERNAL.withDescription(e.getMessage()).withCause(e).asRuntimeException());
+        }
+        // Guard against computations that return without ever producing a reply or error
+        if (!future.isDone()) {
+            future.completeExceptionally(Status.INTERNAL.withDescription("Request completed without a reply").asRuntimeException());
+        }
+        future.whenComplete((reply, t) -> deliver(reply, t, responseObserver));
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static void deliver(ByteString reply, Throwable t, StreamObserver<ByteString> responseObserver) {
+        if (t != null) {
+            responseObserver.onError(t);
+        } else {
+            responseObserver.onNext(reply);
+            responseObserver.onCompleted();
+        }
+    }
+
+    private static class CompletingObserver implements StreamObserver<ByteString> {
+        private final CompletableFuture<ByteString> future;
+        private ByteString reply;
+
+        CompletingObserver(CompletableFuture<ByteString> future) {
+            this.future = future;
+        }
+
+        @Override
+        public void onNext(ByteString value) {
+            reply = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            future.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            future.complete(reply);
+        }
+    }
+}
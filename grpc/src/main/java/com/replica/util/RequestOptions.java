@@ -0,0 +1,132 @@
+package com.replica.util;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Per-request output options that aren't part of the request messages, because the request protos are shared
+ * with other services. Options are passed as request headers (named with an x-grpc- prefix so that they're
+ * forwarded by the grpc-web proxy), parsed by RequestOptionsInterceptor, and made available to the routers
+ * through the gRPC Context for the duration of the call.
+ *
+ * Anything here changes the reply, so it must be part of any cache key or coalescing fingerprint.
+ */
+public final class RequestOptions {
+
+    public static final Metadata.Key<String> GEOMETRY_FORMAT_HEADER =
+            Metadata.Key.of("x-grpc-geometry-format", Metadata.ASCII_STRING_MARSHALLER);
+    public static final Metadata.Key<String> GEOMETRY_PRECISION_HEADER =
+            Metadata.Key.of("x-grpc-geometry-precision", Metadata.ASCII_STRING_MARSHALLER);
+    /**
+     * If true, street and custom routes only return duration, distance and profile: no geometry, stable edge ids,
+     * edge durations or path details are computed
+     */
+    public static final Metadata.Key<String> SUMMARY_ONLY_HEADER =
+            Metadata.Key.of("x-grpc-summary-only", Metadata.ASCII_STRING_MARSHALLER);
+
+    public static final RequestOptions DEFAULT = new RequestOptions(GeometryFormat.WKT, 0, false);
+
+    static final Context.Key<RequestOptions> CONTEXT_KEY = Context.key("request-options");
+
+    private static final int MAX_GEOMETRY_PRECISION = 9;
+
+    private final GeometryFormat geometryFormat;
+    private final int geometryPrecision;
+    private final boolean summaryOnly;
+
+    public RequestOptions(GeometryFormat geometryFormat, int geometryPrecision, boolean summaryOnly) {
+        this.geometryFormat = geometryFormat;
+        this.geometryPrecision = geometryPrecision;
+        this.summaryOnly = summaryOnly;
+    }
+
+    /**
+     * Returns the options of the call being handled by the current thread, or the defaults if none were given
+     */
+    public static RequestOptions current() {
+        RequestOptions options = CONTEXT_KEY.get();
+        return options != null ? options : DEFAULT;
+    }
+
+    /**
+     * @throws IllegalArgumentException if any of the option headers has an invalid value
+     */
+    public static RequestOptions fromHeaders(Metadata headers) {
+        String formatHeader = headers.get(GEOMETRY_FORMAT_HEADER);
+        String precisionHeader = headers.get(GEOMETRY_PRECISION_HEADER);
+        String summaryOnlyHeader = headers.get(SUMMARY_ONLY_HEADER);
+        if (formatHeader == null && precisionHeader == null && summaryOnlyHeader == null) {
+            return DEFAULT;
+        }
+
+        boolean summaryOnly = false;
+        if (summaryOnlyHeader != null) {
+            String value = summaryOnlyHeader.trim().toLowerCase(Locale.ROOT);
+            if (value.equals("true") || value.equals("1")) {
+                summaryOnly = true;
+            } else if (!value.equals("false") && !value.equals("0")) {
+                throw new IllegalArgumentException("Summary-only flag must be true or false: " + summaryOnlyHeader);
+            }
+        }
+
+        GeometryFormat geometryFormat = GeometryFormat.WKT;
+        if (formatHeader != null) {
+            try {
+                geometryFormat = GeometryFormat.valueOf(formatHeader.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown geometry format " + formatHeader);
+            }
+        }
+
+        int geometryPrecision = geometryFormat.getDefaultPrecision();
+        if (precisionHeader != null && geometryFormat.usesPrecision()) {
+            try {
+                geometryPrecision = Integer.parseInt(precisionHeader.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Geometry precision is not a number: " + precisionHeader);
+            }
+            if (geometryPrecision < 0 || geometryPrecision > MAX_GEOMETRY_PRECISION) {
+                throw new IllegalArgumentException("Geometry precision must be between 0 and " + MAX_GEOMETRY_PRECISION);
+            }
+        }
+        return new RequestOptions(geometryFormat, geometryPrecision, summaryOnly);
+    }
+
+    public GeometryFormat getGeometryFormat() {
+        return geometryFormat;
+    }
+
+    public int getGeometryPrecision() {
+        return geometryPrecision;
+    }
+
+    public boolean isSummaryOnly() {
+        return summaryOnly;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        RequestOptions that = (RequestOptions) o;
+        return geometryFormat == that.geometryFormat && geometryPrecision == that.geometryPrecision
+                && summaryOnly == that.summaryOnly;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(geometryFormat, geometryPrecision, summaryOnly);
+    }
+
+    @Override
+    public String toString() {
+        return "geometry=" + geometryFormat + ":" + geometryPrecision + ",summary_only=" + summaryOnly;
+    }
+}
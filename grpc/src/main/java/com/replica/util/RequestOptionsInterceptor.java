@@ -0,0 +1,33 @@
+package com.replica.util;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Parses RequestOptions from request headers into the call's Context; calls with invalid option headers are
+ * rejected with INVALID_ARGUMENT before they reach the routers
+ */
+public class RequestOptionsInterceptor implements ServerInterceptor {
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        RequestOptions options;
+        try {
+            options = RequestOptions.fromHeaders(headers);
+        } catch (IllegalArgumentException e) {
+            call.close(Status.INVALID_ARGUMENT.withDescription(e.getMessage()), new Metadata());
+            return new ServerCall.Listener<>() {};
+        }
+
+        if (options.equals(RequestOptions.DEFAULT)) {
+            return next.startCall(call, headers);
+        }
+        return Contexts.interceptCall(Context.current().withValue(RequestOptions.CONTEXT_KEY, options), call, headers, next);
+    }
+}
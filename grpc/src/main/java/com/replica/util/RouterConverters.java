@@ -22,6 +22,7 @@ import java.time.Instant;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import static com.graphhopper.util.Parameters.Routing.CALC_POINTS;
 import static com.graphhopper.util.Parameters.Routing.INSTRUCTIONS;
 import static java.util.stream.Collectors.toList;
 
@@ -46,8 +47,12 @@ public final class RouterConverters {
         String routeType = routeInfo.get(3);
 
         List<Trip.Stop> stops = leg.stops;
+        String feedId = gtfsFeedIdMapping.get(leg.feed_id);
+        boolean streetBasedRoute = RouterConstants.STREET_BASED_ROUTE_TYPES.contains(Integer.parseInt(routeType));
         double legDistance = 0.0;
-        List<String> stableEdgeIdSegments = Lists.newArrayList();
+        // Stable IDs are de-duplicated while retaining order, which is
+        // needed because start/end of sequential segments overlap by 1 edge
+        Set<String> stableEdgeIds = Sets.newLinkedHashSet();
         for (int i = 0; i < stops.size() - 1; i++) {
             Trip.Stop from = stops.get(i);
             Trip.Stop to = stops.get(i + 1);
@@ -55,25 +60,15 @@ public final class RouterConverters {
                     from.geometry.getY(), from.geometry.getX(), to.geometry.getY(), to.geometry.getX()
             );
 
-            if (RouterConstants.STREET_BASED_ROUTE_TYPES.contains(Integer.parseInt(routeType))) {
+            if (streetBasedRoute) {
                 // Retrieve stable edge IDs for each stop->stop segment of leg
-                String stopPair = gtfsFeedIdMapping.get(leg.feed_id) + ":" + from.stop_id + "," + to.stop_id;
-                if (gtfsLinkMappings.containsKey(stopPair)) {
-                    if (!gtfsLinkMappings.get(stopPair).isEmpty()) {
-                        stableEdgeIdSegments.add(gtfsLinkMappings.get(stopPair));
-                    }
+                String segment = gtfsLinkMappings.get(feedId + ":" + from.stop_id + "," + to.stop_id);
+                if (segment != null && !segment.isEmpty()) {
+                    Collections.addAll(stableEdgeIds, segment.split(","));
                 }
             }
         }
-         List<String> stableEdgeIdsList = stableEdgeIdSegments.stream()
-                    .flatMap(segment -> Arrays.stream(segment.split(",")))
-                    .collect(toList());
-
-        // Remove duplicates from stable ID list while retaining order;
-        // needed because start/end of sequential segments overlap by 1 edge
-        Set<String> stableEdgeIdsWithoutDuplicates = Sets.newLinkedHashSet(stableEdgeIdsList);
-        stableEdgeIdsList.clear();
-        stableEdgeIdsList.addAll(stableEdgeIdsWithoutDuplicates);
+        List<String> stableEdgeIdsList = new ArrayList<>(stableEdgeIds);
 
         // Convert any missing info to empty string to prevent NPE
         routeInfo = routeInfo.stream().map(info -> info == null ? "" : info).collect(toList());
@@ -83,9 +78,9 @@ public final class RouterConverters {
         }
 
         // Add proper GTFS feed ID as prefix to all stop names in Leg
-        List<Trip.Stop> updatedStops = Lists.newArrayList();
+        List<Trip.Stop> updatedStops = new ArrayList<>(leg.stops.size());
         for (Trip.Stop stop : leg.stops) {
-            String updatedStopId = gtfsFeedIdMapping.get(leg.feed_id) + ":" + stop.stop_id;
+            String updatedStopId = feedId + ":" + stop.stop_id;
             updatedStops.add(new Trip.Stop(updatedStopId, stop.stop_sequence, stop.stop_name, stop.geometry, stop.arrivalTime,
                     stop.plannedArrivalTime, stop.predictedArrivalTime, stop.arrivalCancelled, stop.departureTime,
                     stop.plannedDepartureTime, stop.predictedDepartureTime, stop.departureCancelled));
@@ -96,68 +91,73 @@ public final class RouterConverters {
     }
 
     public static PtLeg toPtLeg(Trip.Leg leg) {
+        PtLeg.Builder ptLeg = PtLeg.newBuilder()
+                .setDepartureTime(toTimestamp(leg.getDepartureTime()))
+                .setArrivalTime(toTimestamp(leg.getArrivalTime()))
+                .setDistanceMeters(leg.getDistance());
         if (!leg.type.equals("pt")) {
             CustomStreetLeg streetLeg = (CustomStreetLeg) leg;
-            return PtLeg.newBuilder()
-                    .setDepartureTime(Timestamp.newBuilder()
-                            .setSeconds(streetLeg.getDepartureTime().getTime() / 1000) // getTime() returns millis
-                            .build())
-                    .setArrivalTime(Timestamp.newBuilder()
-                            .setSeconds(streetLeg.getArrivalTime().getTime() / 1000) // getTime() returns millis
-                            .build())
-                    .setDistanceMeters(streetLeg.getDistance())
+            return ptLeg
                     .addAllStableEdgeIds(streetLeg.stableEdgeIds)
                     .setTravelSegmentType(streetLeg.travelSegmentType)
                     .setMode(streetLeg.mode)
                     .build();
         } else { // leg is a PT leg
-            CustomPtLeg ptLeg = (CustomPtLeg) leg;
-            TransitMetadata ptMetadata = TransitMetadata.newBuilder()
-                    .setTripId(ptLeg.trip_id)
-                    .setRouteId(ptLeg.route_id)
-                    .setAgencyName(ptLeg.agencyName)
-                    .setRouteShortName(ptLeg.routeShortName)
-                    .setRouteLongName(ptLeg.routeLongName)
-                    .setRouteType(ptLeg.routeType)
-                    .setDirection(ptLeg.trip_headsign == null ? "unknown" : ptLeg.trip_headsign)
-                    .addAllStops(ptLeg.stops.stream().map(stop -> Stop.newBuilder()
-                            .setStopId(stop.stop_id)
-                            .setStopName(stop.stop_name)
-                            .setArrivalTime(stop.arrivalTime == null ? Timestamp.newBuilder().build()
-                                    : Timestamp.newBuilder().setSeconds(stop.arrivalTime.getTime() / 1000).build())
-                            .setDepartureTime(stop.departureTime == null ? Timestamp.newBuilder().build()
-                                    : Timestamp.newBuilder().setSeconds(stop.departureTime.getTime() / 1000).build())
-                            .setPoint(Point.newBuilder()
-                                    .setLat(stop.geometry.getY())
-                                    .setLon(stop.geometry.getX())
-                                    .build())
-                            .build()).collect(toList())
-                    ).build();
-            return PtLeg.newBuilder()
-                    .setDepartureTime(Timestamp.newBuilder()
-                            .setSeconds(ptLeg.getDepartureTime().getTime() / 1000) // getTime() returns millis
-                            .build())
-                    .setArrivalTime(Timestamp.newBuilder()
-                            .setSeconds(ptLeg.getArrivalTime().getTime() / 1000) // getTime() returns millis
-                            .build())
-                    .setDistanceMeters(ptLeg.getDistance())
-                    .addAllStableEdgeIds(ptLeg.stableEdgeIds)
-                    .setTransitMetadata(ptMetadata)
-                    .build();
+            CustomPtLeg customPtLeg = (CustomPtLeg) leg;
+            TransitMetadata.Builder ptMetadata = ptLeg.addAllStableEdgeIds(customPtLeg.stableEdgeIds)
+                    .getTransitMetadataBuilder()
+                    .setTripId(customPtLeg.trip_id)
+                    .setRouteId(customPtLeg.route_id)
+                    .setAgencyName(customPtLeg.agencyName)
+                    .setRouteShortName(customPtLeg.routeShortName)
+                    .setRouteLongName(customPtLeg.routeLongName)
+                    .setRouteType(customPtLeg.routeType)
+                    .setDirection(customPtLeg.trip_headsign == null ? "unknown" : customPtLeg.trip_headsign);
+            for (Trip.Stop stop : customPtLeg.stops) {
+                Timestamp arrivalTime = toTimestamp(stop.arrivalTime);
+                // Most intermediate stops have the same arrival and departure time, so the Timestamp can be shared
+                Timestamp departureTime = Objects.equals(stop.departureTime, stop.arrivalTime) ? arrivalTime : toTimestamp(stop.departureTime);
+                ptMetadata.addStopsBuilder()
+                        .setStopId(stop.stop_id)
+                        .setStopName(stop.stop_name)
+                        .setArrivalTime(arrivalTime)
+                        .setDepartureTime(departureTime)
+                        .getPointBuilder()
+                        .setLat(stop.geometry.getY())
+                        .setLon(stop.geometry.getX());
+            }
+            return ptLeg.build();
         }
     }
 
-    public static GHRequest toGHRequest(StreetRouteRequest request) {
+    /**
+     * Converts to a Timestamp with whole-second precision (null dates become the default, empty Timestamp)
+     */
+    private static Timestamp toTimestamp(Date date) {
+        if (date == null) {
+            return Timestamp.getDefaultInstance();
+        }
+        return Timestamp.newBuilder()
+                .setSeconds(date.getTime() / 1000) // getTime() returns millis
+                .build();
+    }
+
+    public static GHRequest toGHRequest(StreetRouteRequest request, RequestOptions options) {
         GHRequest ghRequest = new GHRequest(
                 request.getPointsList().stream()
                         .map(p -> new GHPoint(p.getLat(), p.getLon()))
                         .collect(Collectors.toList()));
         ghRequest.setProfile(request.getProfile());
         ghRequest.setLocale(Locale.US);
-        ghRequest.setPathDetails(getRequestedStreetPathDetails(request.getReturnFullPathDetails()));
+        ghRequest.setPathDetails(getRequestedStreetPathDetails(request.getReturnFullPathDetails(), options));
 
         PMap hints = new PMap();
         hints.putObject(INSTRUCTIONS, false);
+        if (options.isSummaryOnly()) {
+            // Only time, distance and weight are needed, so skip building point lists (and the path
+            // details, which are only computed along with points)
+            hints.putObject(CALC_POINTS, false);
+        }
         if (request.getAlternateRouteMaxPaths() > 1) {
             ghRequest.setAlgorithm("alternative_route");
             hints.putObject("alternative_route.max_paths", request.getAlternateRouteMaxPaths());
@@ -168,14 +168,14 @@ public final class RouterConverters {
         return ghRequest;
     }
 
-    public static GHRequest toGHRequest(CustomRouteRequest request) {
+    public static GHRequest toGHRequest(CustomRouteRequest request, RequestOptions options) {
         GHRequest ghRequest = new GHRequest(
                 request.getPointsList().stream()
                         .map(p -> new GHPoint(p.getLat(), p.getLon()))
                         .collect(Collectors.toList()));
         ghRequest.setProfile(request.getProfile());
         ghRequest.setLocale(Locale.US);
-        ghRequest.setPathDetails(getRequestedStreetPathDetails(request.getReturnFullPathDetails()));
+        ghRequest.setPathDetails(getRequestedStreetPathDetails(request.getReturnFullPathDetails(), options));
 
         PMap hints = new PMap();
         CustomModel customModel;
@@ -191,6 +191,11 @@ public final class RouterConverters {
         hints.putObject(Parameters.CH.DISABLE, true);
 
         hints.putObject(INSTRUCTIONS, false);
+        if (options.isSummaryOnly()) {
+            // Only time, distance and weight are needed, so skip building point lists (and the path
+            // details, which are only computed along with points)
+            hints.putObject(CALC_POINTS, false);
+        }
         if (request.getAlternateRouteMaxPaths() > 1) {
             ghRequest.setAlgorithm("alternative_route");
             hints.putObject("alternative_route.max_paths", request.getAlternateRouteMaxPaths());
@@ -201,7 +206,10 @@ public final class RouterConverters {
         return ghRequest;
     }
 
-    private static List<String> getRequestedStreetPathDetails(boolean returnFullPathDetails) {
+    private static List<String> getRequestedStreetPathDetails(boolean returnFullPathDetails, RequestOptions options) {
+        if (options.isSummaryOnly()) {
+            return ImmutableList.of();
+        }
         return returnFullPathDetails ?
                 ImmutableList.of(ReplicaPathDetails.STABLE_EDGE_IDS, ReplicaPathDetails.TIME, ReplicaPathDetails.SPEED, ReplicaPathDetails.OSM_ID) :
                 // if we're not returning the full path details to the client, we only need to request the stable edge
@@ -248,55 +256,52 @@ public final class RouterConverters {
         return ghPtRequest;
     }
 
-    public static StreetPath toStreetPath(ResponsePath responsePath, String profile, boolean returnFullPathDetails) {
-        List<String> pathStableEdgeIds = responsePath.getPathDetails().get(ReplicaPathDetails.STABLE_EDGE_IDS).stream()
-                .map(pathDetail -> (String) pathDetail.getValue())
-                .collect(Collectors.toList());
-
-        List<Long> edgeTimes = responsePath.getPathDetails().get(ReplicaPathDetails.TIME).stream()
-                .map(pathDetail -> (Long) pathDetail.getValue())
-                .collect(Collectors.toList());
-
+    public static StreetPath toStreetPath(ResponsePath responsePath, String profile, boolean returnFullPathDetails,
+                                          RequestOptions options) {
         StreetPath.Builder streetPath = StreetPath.newBuilder()
                 .setDurationMillis(responsePath.getTime())
                 .setDistanceMeters(responsePath.getDistance())
-                .addAllStableEdgeIds(pathStableEdgeIds)
-                .addAllEdgeDurationsMillis(edgeTimes)
-                .setPoints(responsePath.getPoints().toLineString(false).toString())
                 .setProfile(profile);
+        if (options.isSummaryOnly()) {
+            // No points or path details were computed for the path
+            return streetPath.build();
+        }
+
+        // Details are appended straight into the builder, whose repeated int64 fields hold primitives, so
+        // no intermediate (boxed) lists are built
+        Map<String, List<PathDetail>> pathDetails = responsePath.getPathDetails();
+        for (PathDetail stableEdgeId : pathDetails.get(ReplicaPathDetails.STABLE_EDGE_IDS)) {
+            streetPath.addStableEdgeIds((String) stableEdgeId.getValue());
+        }
+        for (PathDetail edgeTime : pathDetails.get(ReplicaPathDetails.TIME)) {
+            streetPath.addEdgeDurationsMillis((Long) edgeTime.getValue());
+        }
+        streetPath.setPoints(GeometryEncoder.encode(responsePath.getPoints(), options));
         if (returnFullPathDetails) {
-            streetPath.addAllPathDetails(responsePath.getPathDetails().entrySet().stream()
-                    .map(entry -> toStreetPathDetail(entry.getKey(), entry.getValue()))
-                    .collect(toList()));
+            for (Map.Entry<String, List<PathDetail>> entry : pathDetails.entrySet()) {
+                StreetPathDetail.Builder streetPathDetail = streetPath.addPathDetailsBuilder().setDetail(entry.getKey());
+                for (PathDetail pathDetail : entry.getValue()) {
+                    Object value = pathDetail.getValue();
+                    streetPathDetail.addValuesBuilder()
+                            .setValue(value instanceof String ? (String) value : String.valueOf(value))
+                            .setGhEdgeStartIndex(pathDetail.getFirst())
+                            .setGhEdgeEndIndex(pathDetail.getLast());
+                }
+            }
         }
 
         return streetPath.build();
     }
 
-    private static StreetPathDetail toStreetPathDetail(String detailName, List<PathDetail> pathDetails) {
-        return StreetPathDetail.newBuilder()
-                .setDetail(detailName)
-                .addAllValues(pathDetails.stream().map(RouterConverters::toStreetPathDetailValue).collect(toList()))
-                .build();
-    }
-
-    private static StreetPathDetailValue toStreetPathDetailValue(PathDetail pathDetail) {
-        return StreetPathDetailValue.newBuilder()
-                .setValue(pathDetail.getValue().toString())
-                .setGhEdgeStartIndex(pathDetail.getFirst())
-                .setGhEdgeEndIndex(pathDetail.getLast())
-                .build();
-    }
-
     public static PtPath toPtPath(ResponsePath responsePath) {
-        return PtPath.newBuilder()
+        PtPath.Builder ptPath = PtPath.newBuilder()
                 .setDurationMillis(responsePath.getTime())
                 .setDistanceMeters(responsePath.getDistance())
-                .setTransfers(responsePath.getNumChanges())
-                .addAllLegs(responsePath.getLegs().stream()
-                        .map(RouterConverters::toPtLeg)
-                        .collect(toList()))
-                .build();
+                .setTransfers(responsePath.getNumChanges());
+        for (Trip.Leg leg : responsePath.getLegs()) {
+            ptPath.addLegs(toPtLeg(leg));
+        }
+        return ptPath.build();
     }
 
     public static CustomStreetLeg toCustomStreetLeg(Trip.WalkLeg leg, String travelSegmentType, String mode) {
@@ -304,9 +309,12 @@ public final class RouterConverters {
     }
 
     private static List<String> fetchStreetLegStableIds(Trip.WalkLeg leg) {
-        return leg.details.get(ReplicaPathDetails.STABLE_EDGE_IDS).stream()
-                .map(idPathDetail -> (String) idPathDetail.getValue())
-                .collect(toList());
+        List<PathDetail> idPathDetails = leg.details.get(ReplicaPathDetails.STABLE_EDGE_IDS);
+        List<String> stableEdgeIds = new ArrayList<>(idPathDetails.size());
+        for (PathDetail idPathDetail : idPathDetails) {
+            stableEdgeIds.add((String) idPathDetail.getValue());
+        }
+        return stableEdgeIds;
     }
 
     public static CustomStreetLeg createEmptyCustomStreetLeg(org.locationtech.jts.geom.Point point, Date departureTime,
@@ -0,0 +1,82 @@
+package com.replica.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for router calls, so that slow requests can be lined up against GC pauses, lock
+ * contention, safepoints etc. in the same recording. Events are emitted by StageTimer and StageTimingInterceptor;
+ * when no recording is running (or the events are disabled in the recording's settings) they cost next to nothing.
+ *
+ * To record: java -XX:StartFlightRecording=settings=profile,filename=router.jfr ... (or jcmd <pid> JFR.start)
+ */
+public final class RoutingEvents {
+
+    private RoutingEvents() {
+        // only holds event classes
+    }
+
+    @Name("com.replica.RoutingRequest")
+    @Label("Routing Request")
+    @Description("A single gRPC call, from when it was received to when its status was sent")
+    @Category({"Router"})
+    @StackTrace(false)
+    public static class RoutingRequestEvent extends Event {
+        @Label("Method")
+        public String method;
+
+        @Label("Profile")
+        public String profile;
+
+        @Label("Status")
+        public String status;
+
+        @Label("Path Count")
+        public int pathCount;
+
+        @Label("Visited Nodes")
+        public long visitedNodes;
+
+        @Label("Payload Size")
+        @DataAmount
+        public long payloadBytes;
+    }
+
+    /**
+     * Spans one stage, from StageTimer.start() to stop(), so its duration is the time spent in the stage and JFR
+     * thresholds apply to it
+     */
+    @Name("com.replica.RoutingPhase")
+    @Label("Routing Phase")
+    @Description("Time spent in one stage (snap, route, augment, contour, convert, serialize) of a gRPC call")
+    @Category({"Router"})
+    @StackTrace(false)
+    public static class RoutingPhaseEvent extends Event {
+        @Label("Method")
+        public String method;
+
+        @Label("Phase")
+        public String phase;
+    }
+
+    @Name("com.replica.SlowRequest")
+    @Label("Slow Request")
+    @Description("A gRPC call that took longer than SLOW_REQUEST_THRESHOLD_SECS, with its full request message")
+    @Category({"Router"})
+    @StackTrace(false)
+    public static class SlowRequestEvent extends Event {
+        @Label("Method")
+        public String method;
+
+        @Label("Stage Timings")
+        public String stageTimings;
+
+        @Label("Request")
+        public String request;
+    }
+}
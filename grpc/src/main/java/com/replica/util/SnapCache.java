@@ -0,0 +1,201 @@
+package com.replica.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.storage.BaseGraph;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.DistanceCalcEarth;
+import com.graphhopper.util.shapes.BBox;
+import com.graphhopper.util.shapes.GHPoint3D;
+import com.timgroup.statsd.StatsDClient;
+import io.grpc.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Concurrent cache of snapping results, keyed by (rounded) query coordinates and a snap filter key, which
+ * identifies the filter that was used to snap (eg a profile name). Lookups that hit the cache skip the
+ * spatial index traversal and the snap filter evaluation.
+ *
+ * Snap objects are modified in place when a QueryGraph is built from them, so the cache only stores the
+ * information needed to rebuild a snap, and every lookup returns a fresh Snap object.
+ *
+ * Cached snaps refer to edges of the graph, which is loaded once at startup and never reloaded, so entries are
+ * never invalidated: they stay valid for the lifetime of the process.
+ */
+public class SnapCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapCache.class);
+
+    private static final Context.Key<ScopedSnapCache> CONTEXT_KEY = Context.key("snap-cache");
+
+    private final BaseGraph graph;
+    private final LocationIndex locationIndex;
+    private final Cache<String, CachedSnap> cache;
+    private final double coordinateScale;
+    private final StatsDClient statsDClient;
+    private final MetricTags metricTags;
+
+    public SnapCache(BaseGraph graph, LocationIndex locationIndex, long maxEntries, int coordinateDecimals,
+                     StatsDClient statsDClient, Map<String, String> customTags) {
+        this.graph = graph;
+        this.locationIndex = locationIndex;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .build();
+        this.coordinateScale = Math.pow(10, coordinateDecimals);
+        this.statsDClient = statsDClient;
+        this.metricTags = new MetricTags(customTags);
+    }
+
+    public Snap findClosest(double lat, double lon, String snapFilterKey, EdgeFilter snapFilter) {
+        String key = snapFilterKey + "|" + Math.round(lat * coordinateScale) + "," + Math.round(lon * coordinateScale);
+        CachedSnap cachedSnap = cache.getIfPresent(key);
+        MetricUtils.incrementCounter(statsDClient, cachedSnap != null ? "routers.snap_cache.hits" : "routers.snap_cache.misses",
+                metricTags.tag("snap_filter", snapFilterKey));
+
+        if (cachedSnap == null) {
+            Snap snap = locationIndex.findClosest(lat, lon, snapFilter);
+            cache.put(key, new CachedSnap(snap));
+            return snap;
+        }
+        return cachedSnap.toSnap(graph, lat, lon);
+    }
+
+    /**
+     * Returns a LocationIndex view of this cache that snaps with the given filter key, for use by classes that
+     * take a LocationIndex (eg PtLocationSnapper). All callers of the returned index must use the same snap filter
+     */
+    public LocationIndex asLocationIndex(String snapFilterKey) {
+        return new LocationIndex() {
+            @Override
+            public Snap findClosest(double lat, double lon, EdgeFilter snapFilter) {
+                return SnapCache.this.findClosest(lat, lon, snapFilterKey, snapFilter);
+            }
+
+            @Override
+            public void query(BBox queryBBox, Visitor function) {
+                locationIndex.query(queryBBox, function);
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the current Context in which indexes returned by requestScopedLocationIndex() snap through
+     * this cache, with the given filter key. All snaps made in the returned Context must use the same snap filter
+     */
+    public Context withSnapFilterKey(String snapFilterKey) {
+        return Context.current().withValue(CONTEXT_KEY, new ScopedSnapCache(this, snapFilterKey));
+    }
+
+    /**
+     * Returns a LocationIndex for classes that are built before any snap cache is (eg the PtRouter, which is shared
+     * by all RouterImpls): it snaps through the cache attached to the current Context by withSnapFilterKey(), if
+     * any, and with the given index otherwise
+     */
+    public static LocationIndex requestScopedLocationIndex(LocationIndex locationIndex) {
+        return new LocationIndex() {
+            @Override
+            public Snap findClosest(double lat, double lon, EdgeFilter snapFilter) {
+                ScopedSnapCache scoped = CONTEXT_KEY.get();
+                return scoped != null
+                        ? scoped.snapCache.findClosest(lat, lon, scoped.snapFilterKey, snapFilter)
+                        : locationIndex.findClosest(lat, lon, snapFilter);
+            }
+
+            @Override
+            public void query(BBox queryBBox, Visitor function) {
+                locationIndex.query(queryBBox, function);
+            }
+        };
+    }
+
+    /**
+     * Fills the cache with known request points, read from a file containing one `lat,lon,snap_filter_key`
+     * line per point.
+     *
+     * @param snapFiltersByKey provides the snap filter to use for each key found in the file
+     */
+    public void preload(Path preloadFile, Function<String, EdgeFilter> snapFiltersByKey) throws IOException {
+        int numPreloaded = 0;
+        try (BufferedReader reader = Files.newBufferedReader(preloadFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(",");
+                if (columns.length != 3) {
+                    continue;
+                }
+                double lat, lon;
+                try {
+                    lat = Double.parseDouble(columns[0].trim());
+                    lon = Double.parseDouble(columns[1].trim());
+                } catch (NumberFormatException e) {
+                    // header row or malformed line
+                    continue;
+                }
+                String snapFilterKey = columns[2].trim();
+                EdgeFilter snapFilter = snapFiltersByKey.apply(snapFilterKey);
+                if (snapFilter == null) {
+                    logger.warn("Skipping snap cache preload point with unknown snap filter " + snapFilterKey);
+                    continue;
+                }
+                findClosest(lat, lon, snapFilterKey, snapFilter);
+                numPreloaded++;
+            }
+        }
+        logger.info("Preloaded " + numPreloaded + " points into snap cache from " + preloadFile);
+    }
+
+    private static class ScopedSnapCache {
+        private final SnapCache snapCache;
+        private final String snapFilterKey;
+
+        ScopedSnapCache(SnapCache snapCache, String snapFilterKey) {
+            this.snapCache = snapCache;
+            this.snapFilterKey = snapFilterKey;
+        }
+    }
+
+    /**
+     * Minimal, immutable copy of a Snap
+     */
+    private static class CachedSnap {
+        private final boolean valid;
+        private final int closestNode;
+        private final int closestEdgeKey;
+        private final int wayIndex;
+        private final Snap.Position snappedPosition;
+
+        CachedSnap(Snap snap) {
+            this.valid = snap.isValid();
+            this.closestNode = snap.getClosestNode();
+            this.closestEdgeKey = valid ? snap.getClosestEdge().getEdgeKey() : -1;
+            this.wayIndex = snap.getWayIndex();
+            this.snappedPosition = snap.getSnappedPosition();
+        }
+
+        Snap toSnap(BaseGraph graph, double queryLat, double queryLon) {
+            Snap snap = new Snap(queryLat, queryLon);
+            if (!valid) {
+                return snap;
+            }
+            snap.setClosestNode(closestNode);
+            snap.setClosestEdge(graph.getEdgeIteratorStateForKey(closestEdgeKey));
+            snap.setWayIndex(wayIndex);
+            snap.setSnappedPosition(snappedPosition);
+            snap.calcSnappedPoint(DistanceCalcEarth.DIST_EARTH);
+            GHPoint3D snappedPoint = snap.getSnappedPoint();
+            snap.setQueryDistance(DistanceCalcEarth.DIST_EARTH.calcDist(queryLat, queryLon, snappedPoint.lat, snappedPoint.lon));
+            return snap;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.replica.util;
+
+import io.grpc.Context;
+
+import java.util.Locale;
+
+/**
+ * Accumulates the time a single call spends in each stage of request handling, so that latency can be broken down
+ * per stage, along with a few details of the routing work done (profile, visited nodes, path count) for the call's
+ * RoutingRequestEvent. When JFR is recording, each stage is also a RoutingPhaseEvent that begins in start() and ends
+ * in stop(), so it can be lined up against GC pauses and lock waits on the recording's timeline. A timer is attached
+ * to every call's Context by StageTimingInterceptor, which reports the totals when the call completes; routers record
+ * stages with:
+ *
+ *   long start = timer.start(Stage.ROUTE);
+ *   ...
+ *   timer.stop(Stage.ROUTE, start);
+ *
+ * Outside of a gRPC call (eg when a router is used directly) current() returns a timer that records nothing.
+ * A timer is only used by the thread handling its call, so it isn't synchronized.
+ */
+public class StageTimer {
+
+    public enum Stage {
+        /** Snapping request coordinates to the graph, where it's done outside of GH's route() call */
+        SNAP,
+        /** The graph search; for street routes this is all of GH's route(), which includes snapping and path details */
+        ROUTE,
+        /** Post-processing of GH's paths (PT leg augmentation) */
+        AUGMENT,
+        /** Building isochrone polygons from the search tree */
+        CONTOUR,
+        /** Converting results to reply protos, including geometry encoding */
+        CONVERT,
+        /** Encoding reply protos to bytes */
+        SERIALIZE;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+        // Reported as routers.stage_seconds.<stage>
+        final String statName = "stage_seconds." + label;
+    }
+
+    static final Context.Key<StageTimer> CONTEXT_KEY = Context.key("stage-timer");
+
+    private static final StageTimer NOOP = new StageTimer(null, false);
+
+    private final String method;
+    private final boolean enabled;
+    private final long[] stageNanos = new long[Stage.values().length];
+    // The JFR event of each stage in progress, if JFR is recording them
+    private final RoutingEvents.RoutingPhaseEvent[] phaseEvents = new RoutingEvents.RoutingPhaseEvent[Stage.values().length];
+    private String profile;
+    private int pathCount;
+    private long visitedNodes;
+
+    StageTimer(String method) {
+        this(method, true);
+    }
+
+    private StageTimer(String method, boolean enabled) {
+        this.method = method;
+        this.enabled = enabled;
+    }
+
+    public static StageTimer current() {
+        StageTimer timer = CONTEXT_KEY.get();
+        return timer != null ? timer : NOOP;
+    }
+
+    public long start(Stage stage) {
+        if (!enabled) {
+            return 0;
+        }
+        RoutingEvents.RoutingPhaseEvent event = new RoutingEvents.RoutingPhaseEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            phaseEvents[stage.ordinal()] = event;
+        }
+        return System.nanoTime();
+    }
+
+    public void stop(Stage stage, long startNanos) {
+        if (enabled) {
+            stageNanos[stage.ordinal()] += System.nanoTime() - startNanos;
+
+            RoutingEvents.RoutingPhaseEvent event = phaseEvents[stage.ordinal()];
+            if (event != null) {
+                phaseEvents[stage.ordinal()] = null;
+                event.end();
+                if (event.shouldCommit()) {
+                    event.method = method;
+                    event.phase = stage.label;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    public void setProfile(String profile) {
+        if (enabled) {
+            this.profile = profile;
+        }
+    }
+
+    public void setPathCount(int pathCount) {
+        if (enabled) {
+            this.pathCount = pathCount;
+        }
+    }
+
+    public void addVisitedNodes(long visitedNodes) {
+        if (enabled) {
+            this.visitedNodes += visitedNodes;
+        }
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getProfile() {
+        return profile;
+    }
+
+    int getPathCount() {
+        return pathCount;
+    }
+
+    long getVisitedNodes() {
+        return visitedNodes;
+    }
+
+    long getNanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    /**
+     * eg "route=12.345ms;convert=0.210ms", listing only stages that were recorded
+     */
+    String describe() {
+        StringBuilder description = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            long nanos = stageNanos[stage.ordinal()];
+            if (nanos > 0) {
+                if (description.length() > 0) {
+                    description.append(';');
+                }
+                description.append(stage.label).append('=')
+                        .append(String.format(Locale.ROOT, "%.3f", nanos / 1e6)).append("ms");
+            }
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package com.replica.util;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.timgroup.statsd.StatsDClient;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Attaches a StageTimer to every call, times reply serialization, and reports each recorded stage as a
+ * routers.stage_seconds.<stage> histogram (tagged with the method) when the call closes.
+ *
+ * The per-stage breakdown is also returned to the client in the x-stage-timing trailer for sampled calls: calls
+ * that send an x-grpc-stage-timing: true header, plus a configurable percentage of all calls.
+ *
+ * Every call is also recorded as a RoutingRequestEvent for JFR. Calls that take longer than the slow request
+ * threshold (if one is set) are logged, and recorded as a SlowRequestEvent along with their full request message.
+ */
+public class StageTimingInterceptor implements ServerInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(StageTimingInterceptor.class);
+
+    public static final Metadata.Key<String> STAGE_TIMING_HEADER =
+            Metadata.Key.of("x-grpc-stage-timing", Metadata.ASCII_STRING_MARSHALLER);
+    public static final Metadata.Key<String> STAGE_TIMING_TRAILER =
+            Metadata.Key.of("x-stage-timing", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final StatsDClient statsDClient;
+    private final MetricTags metricTags;
+    private final int trailerSamplePercent;
+    private final long slowRequestThresholdNanos;
+
+    /**
+     * @param slowRequestThresholdSecs calls slower than this are captured as slow requests; 0 turns capture off
+     */
+    public StageTimingInterceptor(StatsDClient statsDClient, Map<String, String> customTags, int trailerSamplePercent,
+                                  int slowRequestThresholdSecs) {
+        this.statsDClient = statsDClient;
+        this.metricTags = new MetricTags(customTags);
+        this.trailerSamplePercent = trailerSamplePercent;
+        this.slowRequestThresholdNanos = TimeUnit.SECONDS.toNanos(slowRequestThresholdSecs);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        long callStart = System.nanoTime();
+        String method = MethodDescriptor.extractBareMethodName(call.getMethodDescriptor().getFullMethodName());
+        StageTimer timer = new StageTimer(method);
+        boolean sampled = "true".equalsIgnoreCase(headers.get(STAGE_TIMING_HEADER))
+                || (trailerSamplePercent > 0 && ThreadLocalRandom.current().nextInt(100) < trailerSamplePercent);
+        String[] tags = metricTags.tag("method", method);
+        RoutingEvents.RoutingRequestEvent requestEvent = new RoutingEvents.RoutingRequestEvent();
+        requestEvent.begin();
+        AtomicReference<ReqT> request = new AtomicReference<>();
+
+        ServerCall<ReqT, RespT> timedCall = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+            private long payloadBytes = 0;
+
+            @Override
+            public void sendMessage(RespT message) {
+                long start = timer.start(StageTimer.Stage.SERIALIZE);
+                super.sendMessage(message);
+                timer.stop(StageTimer.Stage.SERIALIZE, start);
+                // Sizes are memoized by protobuf once a message has been serialized, so this is cheap
+                if (message instanceof MessageLite) {
+                    payloadBytes += ((MessageLite) message).getSerializedSize();
+                } else if (message instanceof ByteString) {
+                    payloadBytes += ((ByteString) message).size();
+                }
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                requestEvent.end();
+                if (requestEvent.shouldCommit()) {
+                    requestEvent.method = method;
+                    requestEvent.profile = timer.getProfile();
+                    requestEvent.status = status.getCode().name();
+                    requestEvent.pathCount = timer.getPathCount();
+                    requestEvent.visitedNodes = timer.getVisitedNodes();
+                    requestEvent.payloadBytes = payloadBytes;
+                    requestEvent.commit();
+                }
+                long durationNanos = System.nanoTime() - callStart;
+                if (slowRequestThresholdNanos > 0 && durationNanos > slowRequestThresholdNanos) {
+                    recordSlowRequest(method, durationNanos, timer, request.get());
+                }
+
+                for (StageTimer.Stage stage : StageTimer.Stage.values()) {
+                    long nanos = timer.getNanos(stage);
+                    if (nanos > 0) {
+                        MetricUtils.sendInternalRoutingStats(statsDClient, tags, nanos / 1e9, stage.statName);
+                    }
+                }
+                if (sampled) {
+                    trailers.put(STAGE_TIMING_TRAILER, timer.describe());
+                }
+                super.close(status, trailers);
+            }
+        };
+        ServerCall.Listener<ReqT> listener = Contexts.interceptCall(Context.current().withValue(StageTimer.CONTEXT_KEY, timer), timedCall, headers, next);
+        if (slowRequestThresholdNanos <= 0) {
+            return listener;
+        }
+        // Keep hold of the request message, in case the call turns out to be slow
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                request.set(message);
+                super.onMessage(message);
+            }
+        };
+    }
+
+    private static void recordSlowRequest(String method, long durationNanos, StageTimer timer, Object request) {
+        String requestText = request != null ? request.toString() : null;
+        logger.warn("Slow request detected! " + method + " took " + durationNanos / 1e9 + "s (" + timer.describe()
+                + "); full request is " + requestText);
+        RoutingEvents.SlowRequestEvent event = new RoutingEvents.SlowRequestEvent();
+        if (event.shouldCommit()) {
+            event.method = method;
+            event.stageTimings = timer.describe();
+            event.request = requestText;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.replica.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.ByteString;
+import com.timgroup.statsd.StatsDClient;
+import router.RouterOuterClass.CustomRouteRequest;
+import router.RouterOuterClass.Point;
+import router.RouterOuterClass.StreetRouteRequest;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process cache of serialized StreetRouteReply bytes, shared by the street and custom street endpoints.
+ *
+ * Keys are built from the request's coordinates (rounded to a configurable number of decimal places, so that
+ * near-identical ODs share an entry), the profile, the alternative route params, the path detail flags and the
+ * RequestOptions. Only successful replies are cached; the cache is bounded by the total size of the stored
+ * replies, and entries are evicted in LRU order once that bound is reached.
+ *
+ * There's no invalidation, as RouterServer loads the graph (and GTFS) once, at startup; a new graph means a new
+ * process, with an empty cache.
+ */
+public class StreetRouteCache {
+
+    private final Cache<String, ByteString> cache;
+    private final double coordinateScale;
+    private final StatsDClient statsDClient;
+    private final MetricTags metricTags;
+
+    public StreetRouteCache(long maxSizeBytes, int coordinateDecimals,
+                            StatsDClient statsDClient, Map<String, String> customTags) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher((String key, ByteString reply) -> key.length() * 2 + reply.size())
+                .recordStats()
+                .build();
+        this.coordinateScale = Math.pow(10, coordinateDecimals);
+        this.statsDClient = statsDClient;
+        this.metricTags = new MetricTags(customTags);
+    }
+
+    public String keyFor(StreetRouteRequest request, RequestOptions options) {
+        StringBuilder key = new StringBuilder("street|")
+                .append(options).append('|')
+                .append(request.getProfile()).append('|')
+                .append(request.getAlternateRouteMaxPaths()).append(',')
+                .append(request.getAlternateRouteMaxWeightFactor()).append(',')
+                .append(request.getAlternateRouteMaxShareFactor()).append('|')
+                .append(request.getReturnFullPathDetails()).append(',')
+                .append(request.getIncludeDuplicateRoutes()).append('|');
+        appendPoints(key, request.getPointsList());
+        return key.toString();
+    }
+
+    public String keyFor(CustomRouteRequest request, RequestOptions options) {
+        StringBuilder key = new StringBuilder("custom|")
+                .append(options).append('|')
+                .append(request.getProfile()).append('|')
+                .append(request.getAlternateRouteMaxPaths()).append(',')
+                .append(request.getAlternateRouteMaxWeightFactor()).append(',')
+                .append(request.getAlternateRouteMaxShareFactor()).append('|')
+                .append(request.getReturnFullPathDetails()).append('|');
+        appendPoints(key, request.getPointsList());
+        // The custom model is part of the routing semantics, so it has to be part of the key as well
+        return key.append('|').append(request.getCustomModel()).toString();
+    }
+
+    private void appendPoints(StringBuilder key, List<Point> points) {
+        for (Point point : points) {
+            key.append(Math.round(point.getLat() * coordinateScale)).append(',')
+                    .append(Math.round(point.getLon() * coordinateScale)).append(';');
+        }
+    }
+
+    /**
+     * Returns the cached reply bytes for the given key, or null if there are none. Hits and misses are
+     * reported per profile, so cache hit ratios can be tracked for each mode separately.
+     */
+    public ByteString get(String key, String profile) {
+        ByteString reply = cache.getIfPresent(key);
+        MetricUtils.incrementCounter(statsDClient, reply != null ? "routers.street_route_cache.hits" : "routers.street_route_cache.misses",
+                metricTags.tag("mode", profile));
+        return reply;
+    }
+
+    public void put(String key, ByteString reply) {
+        cache.put(key, reply);
+    }
+
+    public long size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,113 @@
+package com.replica.util;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.graphhopper.util.DistanceCalcEarth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A regular lat/lon grid of quantized travel costs (time, distance or weight), filled straight from shortest path
+ * tree labels as an alternative to isochrone polygons. Each cell holds the lowest cost of any point added to it, as
+ * a uint16 count of units, so a grid is 2 bytes per cell; cells that nothing reached hold UNREACHED.
+ *
+ * Encoded little-endian (so it can be read directly into typed arrays), as:
+ *
+ *   double west, double north          lon/lat of the north-west corner of the grid
+ *   double cellWidth, double cellHeight cell size in degrees
+ *   int width, int height              number of columns and rows
+ *   double unit                        cost of one step of a cell value (eg seconds, for time limits)
+ *   uint16[height][width] cells        rows from north to south, each from west to east
+ */
+public final class TravelTimeRaster {
+
+    public static final int UNREACHED = 0xFFFF;
+    public static final int MAX_VALUE = UNREACHED - 1;
+    // Caps a grid at 8MB
+    public static final int MAX_CELLS = 1 << 22;
+    public static final int HEADER_BYTES = 5 * Double.BYTES + 2 * Integer.BYTES;
+
+    private final double west;
+    private final double north;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int width;
+    private final int height;
+    private final double unit;
+    private final char[] cells;
+
+    /**
+     * Creates an empty grid covering the given bounds, with roughly square cells of the given size
+     *
+     * @param unit the cost of one step of a cell value; costs of more than MAX_VALUE units are stored as MAX_VALUE
+     * @throws IllegalArgumentException if the grid would have more than MAX_CELLS cells
+     */
+    public TravelTimeRaster(double minLat, double maxLat, double minLon, double maxLon, double cellSizeMeters, double unit) {
+        this.cellHeight = cellSizeMeters / DistanceCalcEarth.METERS_PER_DEGREE;
+        this.cellWidth = cellHeight / Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        this.west = minLon;
+        this.north = maxLat;
+        // Counted in doubles, as tiny cell sizes would overflow (or saturate) integer counts and slip past the check;
+        // NaN counts (from cell sizes that underflow to 0) fail it too
+        double columns = Math.floor((maxLon - minLon) / cellWidth) + 1;
+        double rows = Math.floor((maxLat - minLat) / cellHeight) + 1;
+        if (!(columns * rows <= MAX_CELLS)) {
+            throw new IllegalArgumentException(String.format("A %sm raster would have %.0fx%.0f cells, more than the maximum of %d; use a larger cell size",
+                    cellSizeMeters, columns, rows, MAX_CELLS));
+        }
+        this.width = (int) columns;
+        this.height = (int) rows;
+        this.unit = unit;
+        this.cells = new char[width * height];
+        Arrays.fill(cells, (char) UNREACHED);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Lowers the value of the cell containing the point to the given cost, if that's lower than its current value.
+     * Points outside the grid are ignored.
+     */
+    public void addPoint(double lat, double lon, double cost) {
+        int column = (int) ((lon - west) / cellWidth);
+        int row = (int) ((north - lat) / cellHeight);
+        if (column < 0 || column >= width || row < 0 || row >= height) {
+            return;
+        }
+        char value = (char) Math.min(Math.round(cost / unit), MAX_VALUE);
+        int index = row * width + column;
+        if (value < cells[index]) {
+            cells[index] = value;
+        }
+    }
+
+    /**
+     * Adds points along the straight line between two points, at half-cell spacing, with costs interpolated
+     * linearly between the costs at its ends
+     */
+    public void addSegment(double fromLat, double fromLon, double fromCost, double toLat, double toLon, double toCost) {
+        int steps = (int) Math.ceil(2 * Math.max(Math.abs(toLon - fromLon) / cellWidth, Math.abs(toLat - fromLat) / cellHeight));
+        for (int i = 0; i <= steps; i++) {
+            double fraction = steps == 0 ? 1 : (double) i / steps;
+            addPoint(fromLat + (toLat - fromLat) * fraction, fromLon + (toLon - fromLon) * fraction,
+                    fromCost + (toCost - fromCost) * fraction);
+        }
+    }
+
+    public ByteString toByteString() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + cells.length * Character.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putDouble(west).putDouble(north).putDouble(cellWidth).putDouble(cellHeight)
+                .putInt(width).putInt(height).putDouble(unit);
+        buffer.asCharBuffer().put(cells);
+        // The buffer isn't used after this, so it can be wrapped rather than copied
+        return UnsafeByteOperations.unsafeWrap(buffer.array());
+    }
+}
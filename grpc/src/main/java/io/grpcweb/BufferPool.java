@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020  Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.grpcweb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size byte[] chunks, reused across requests, so that framing and deframing large messages doesn't churn the
+ * heap. Chunks that aren't released (eg because a request was abandoned part way through) are just garbage
+ * collected; up to MAX_POOLED_CHUNKS are kept for reuse.
+ */
+final class BufferPool {
+  static final int CHUNK_SIZE = 32 * 1024;
+  private static final int MAX_POOLED_CHUNKS = 1024;
+
+  private static final ConcurrentLinkedQueue<byte[]> sChunks = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger sPooledChunks = new AtomicInteger();
+
+  private BufferPool() {
+  }
+
+  static byte[] acquire() {
+    byte[] chunk = sChunks.poll();
+    if (chunk == null) {
+      return new byte[CHUNK_SIZE];
+    }
+    sPooledChunks.decrementAndGet();
+    return chunk;
+  }
+
+  static void release(byte[] chunk) {
+    if (chunk.length != CHUNK_SIZE) return;
+    if (sPooledChunks.incrementAndGet() > MAX_POOLED_CHUNKS) {
+      sPooledChunks.decrementAndGet();
+      return;
+    }
+    sChunks.offer(chunk);
+  }
+}
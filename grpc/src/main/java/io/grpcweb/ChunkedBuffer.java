@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020  Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.grpcweb;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+
+/**
+ * A byte buffer made of chunks from the BufferPool, so a message can be held without being copied into ever larger
+ * arrays as it grows, and can be larger than 2GB - 1 (the limit for a byte[]). Bytes are written to the end, and read
+ * (or taken a chunk at a time) from the start; chunks go back to the pool once they've been read.
+ *
+ * Not thread-safe: a buffer has one owner at a time.
+ */
+class ChunkedBuffer extends OutputStream {
+  private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+  // bytes written to the last chunk
+  private int mTailLength = 0;
+  // bytes already read from the first chunk
+  private int mHeadOffset = 0;
+  // bytes written and not yet read
+  private long mSize = 0;
+
+  long size() {
+    return mSize;
+  }
+
+  boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  @Override
+  public void write(int b) {
+    tail()[mTailLength++] = (byte) b;
+    mSize++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    while (len > 0) {
+      byte[] tail = tail();
+      int n = Math.min(len, tail.length - mTailLength);
+      System.arraycopy(b, off, tail, mTailLength, n);
+      mTailLength += n;
+      mSize += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Writes everything from the given stream to the end of the buffer, and returns the number of bytes written. gRPC
+   * message streams are drained straight into the buffer, so a message is serialized once, and not copied.
+   */
+  long readFrom(InputStream in) throws IOException {
+    long start = mSize;
+    if (in instanceof Drainable) {
+      ((Drainable) in).drainTo(this);
+    } else {
+      while (true) {
+        byte[] tail = tail();
+        int n = in.read(tail, mTailLength, tail.length - mTailLength);
+        if (n < 0) break;
+        mTailLength += n;
+        mSize += n;
+      }
+    }
+    return mSize - start;
+  }
+
+  /** Overwrites the first bytes of the buffer, which must already have been written (eg a placeholder prefix) */
+  void overwriteHead(byte[] b) {
+    if (mHeadOffset != 0 || b.length > headEnd()) {
+      throw new IllegalStateException("can only overwrite bytes written to the first chunk");
+    }
+    System.arraycopy(b, 0, mChunks.peekFirst(), 0, b.length);
+  }
+
+  /** The number of bytes in the chunk that pollChunk() will return */
+  int headChunkLength() {
+    return headEnd() - mHeadOffset;
+  }
+
+  /**
+   * Removes the first chunk, which has headChunkLength() bytes, from the buffer. The caller should pass it to
+   * BufferPool.release() once it's done with it.
+   */
+  byte[] pollChunk() {
+    if (mHeadOffset != 0) {
+      throw new IllegalStateException("first chunk has been partly read");
+    }
+    mSize -= headChunkLength();
+    byte[] chunk = mChunks.pollFirst();
+    if (mChunks.isEmpty()) {
+      mTailLength = 0;
+    }
+    return chunk;
+  }
+
+  /** Returns all chunks to the pool, emptying the buffer */
+  void release() {
+    for (byte[] chunk : mChunks) {
+      BufferPool.release(chunk);
+    }
+    mChunks.clear();
+    mTailLength = 0;
+    mHeadOffset = 0;
+    mSize = 0;
+  }
+
+  /**
+   * Returns a buffer with this buffer's contents base64 encoded, emptying this one as it goes, so that only a chunk of
+   * both encodings is held at once on top of the message itself
+   */
+  ChunkedBuffer base64Encode() {
+    ChunkedBuffer encoded = new ChunkedBuffer();
+    try (OutputStream encoder = Base64.getEncoder().wrap(encoded)) {
+      while (!isEmpty()) {
+        int length = headChunkLength();
+        byte[] chunk = pollChunk();
+        encoder.write(chunk, 0, length);
+        BufferPool.release(chunk);
+      }
+    } catch (IOException e) {
+      // can't happen, as the encoder writes to memory
+      throw new UncheckedIOException(e);
+    }
+    return encoded;
+  }
+
+  /**
+   * Returns a stream that reads (and so empties) this buffer. It's a KnownLength stream if its length fits in an int,
+   * so that gRPC's protobuf marshallers can size their parse buffers.
+   */
+  InputStream newInputStream() {
+    return mSize <= Integer.MAX_VALUE ? new KnownLengthChunkInputStream() : new ChunkInputStream();
+  }
+
+  private byte[] tail() {
+    if (mChunks.isEmpty() || mTailLength == mChunks.peekLast().length) {
+      mChunks.addLast(BufferPool.acquire());
+      mTailLength = 0;
+    }
+    return mChunks.peekLast();
+  }
+
+  private int headEnd() {
+    if (mChunks.isEmpty()) return 0;
+    return mChunks.size() == 1 ? mTailLength : mChunks.peekFirst().length;
+  }
+
+  private void consumed(int n) {
+    mHeadOffset += n;
+    mSize -= n;
+    if (mHeadOffset == headEnd()) {
+      BufferPool.release(mChunks.pollFirst());
+      mHeadOffset = 0;
+      if (mChunks.isEmpty()) {
+        mTailLength = 0;
+      }
+    }
+  }
+
+  private class ChunkInputStream extends InputStream {
+    @Override
+    public int read() {
+      if (mSize == 0) return -1;
+      int b = mChunks.peekFirst()[mHeadOffset] & 0xff;
+      consumed(1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (mSize == 0) return -1;
+      int n = Math.min(len, headChunkLength());
+      System.arraycopy(mChunks.peekFirst(), mHeadOffset, b, off, n);
+      consumed(n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(mSize, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() {
+      release();
+    }
+  }
+
+  private class KnownLengthChunkInputStream extends ChunkInputStream implements KnownLength {
+  }
+}
@@ -16,20 +16,20 @@
 
 package io.grpcweb;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Singleton;
 import io.grpc.Channel;
+import io.grpc.ClientInterceptor;
 import io.grpc.ClientInterceptors;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
-import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
-import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
 
 import java.lang.invoke.MethodHandles;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 /**
- * TODO: Manage the connection pool to talk to the grpc-service
+ * Holds the channel to the grpc service. The service runs in the same JVM, so the channel uses the in-process
+ * transport: no loopback TCP connection, and messages are handed over without any HTTP/2 framing.
  */
 @Singleton
 class GrpcServiceConnectionManager {
@@ -37,16 +37,16 @@ class GrpcServiceConnectionManager {
       Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
   private final ManagedChannel mChannel;
 
-  GrpcServiceConnectionManager(int grpcPortNum) {
-    // TODO: Manage a connection pool.
-    mChannel = ManagedChannelBuilder.forAddress("localhost", grpcPortNum)
-            .usePlaintext()
-            .executor(Executors.newFixedThreadPool(1))
+  GrpcServiceConnectionManager(String inProcessServerName) {
+    // Client callbacks only queue bytes on the (non-blocking) SendResponse, so they run on the thread that
+    // delivers them, rather than being handed off to another executor
+    mChannel = InProcessChannelBuilder.forName(inProcessServerName)
+            .executor(MoreExecutors.directExecutor())
             .build();
     LOG.info("**** connection channel initiated");
   }
 
-  Channel getChannelWithClientInterceptor(GrpcWebClientInterceptor interceptor) {
-    return ClientInterceptors.intercept(mChannel, interceptor);
+  Channel getChannelWithClientInterceptors(ClientInterceptor... interceptors) {
+    return ClientInterceptors.intercept(mChannel, interceptors);
   }
 }
@@ -26,17 +26,14 @@ import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
 import io.grpc.Status;
-import java.util.concurrent.CountDownLatch;
 import javax.servlet.http.HttpServletResponse;
 
 class GrpcWebClientInterceptor implements ClientInterceptor {
 
-  private final CountDownLatch mLatch;
   private final HttpServletResponse mResp;
   private final SendResponse mSendResponse;
 
-  GrpcWebClientInterceptor(HttpServletResponse resp, CountDownLatch latch, SendResponse send) {
-    mLatch = latch;
+  GrpcWebClientInterceptor(HttpServletResponse resp, SendResponse send) {
     mResp = resp;
     mSendResponse = send;
   }
@@ -68,14 +65,13 @@ class GrpcWebClientInterceptor implements ClientInterceptor {
     @Override
     public void onClose(Status s, Metadata t) {
       if (!headersSent) {
-        // seems, sometimes onHeaders() is not called before this method is called!
-        // so far, they are the error cases. let onError() method in ClientListener
-        // handle this call. Could ignore this.
-        // TODO is this correct? what if onError() never gets called?
-      } else {
-        mSendResponse.writeTrailer(s, t);
-        mLatch.countDown();
+        // onHeaders() isn't called for trailers-only responses (ie most errors), whose status and metadata all
+        // arrive here
+        mSendResponse.writeHeaders(null);
       }
+      // The trailer is written here, rather than by the response observer, so that its metadata gets to the client;
+      // the observer's later attempt to write the status is then ignored
+      mSendResponse.writeTrailer(s, t);
       super.onClose(s, t);
     }
   }
@@ -21,11 +21,13 @@ import com.google.inject.Injector;
 
 class GrpcWebGuiceModule extends AbstractModule {
   private static Injector sInjector;
-  private static int sGrpcPortNum;
+  private static String sInProcessServerName;
+  private static MethodDispatchTable sMethodDispatchTable;
 
   // This method should be called only once.
-  static void init(int i) {
-    sGrpcPortNum = i;
+  static void init(String inProcessServerName, MethodDispatchTable methodDispatchTable) {
+    sInProcessServerName = inProcessServerName;
+    sMethodDispatchTable = methodDispatchTable;
     sInjector = Guice.createInjector(new GrpcWebGuiceModule());
   }
 
@@ -36,6 +38,7 @@ class GrpcWebGuiceModule extends AbstractModule {
   @Override
   protected void configure() {
     bind(GrpcServiceConnectionManager.class)
-        .toInstance(new GrpcServiceConnectionManager(sGrpcPortNum));
+        .toInstance(new GrpcServiceConnectionManager(sInProcessServerName));
+    bind(MethodDispatchTable.class).toInstance(sMethodDispatchTable);
   }
 }
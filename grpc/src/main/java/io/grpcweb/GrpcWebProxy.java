@@ -15,9 +15,15 @@
  */
 package io.grpcweb;
 
-public class GrpcPortNumRelay {
-  public static void setGrpcPortNum(int i) {
-    // TODO This class & method names are wrong - involves more than just setting the portnum
-    GrpcWebGuiceModule.init(i);
+import io.grpc.ServerServiceDefinition;
+import java.util.Collection;
+
+public class GrpcWebProxy {
+  /**
+   * Sets up the proxy to forward grpc-web requests to the given services, over the in-process server with the given
+   * name. Should be called only once, before the proxy servlet handles any requests.
+   */
+  public static void init(String inProcessServerName, Collection<ServerServiceDefinition> services) {
+    GrpcWebGuiceModule.init(inProcessServerName, new MethodDispatchTable(services));
   }
 }
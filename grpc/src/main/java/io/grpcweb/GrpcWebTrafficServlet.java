@@ -20,7 +20,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * The main class that handles all the grpc-web traffic.
+ * The main class that handles all the grpc-web traffic. Requests are handled asynchronously (see RequestHandler), so
+ * the servlet must be registered with async support.
  */
 public class GrpcWebTrafficServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
@@ -28,7 +29,7 @@ public class GrpcWebTrafficServlet extends HttpServlet {
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response) {
     RequestHandler reqHandler = GrpcWebGuiceModule.getInjector().getInstance(RequestHandler.class);
-    reqHandler.handle(request, response);
+    reqHandler.handle(request.startAsync(request, response));
   }
 
   @Override
@@ -16,18 +16,19 @@
 package io.grpcweb;
 
 import io.grpcweb.MessageHandler.ContentType;
-import java.io.IOException;
 import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.logging.Logger;
-import org.apache.commons.io.IOUtils;
 
 /**
- * Reads frames from the input bytes and returns a single message.
+ * Reads frames from the request body as it arrives, and concatenates their contents into a single message.
+ *
+ * Text (base64) bodies are decoded as they're read, one 4-character quantum at a time, so padding in the middle of a
+ * body (from clients that encode each chunk they send separately) is fine. The message goes straight into a
+ * ChunkedBuffer, so it isn't copied again once read, and frame lengths are read as unsigned: the message can be
+ * larger than 2GB - 1.
  */
 class MessageDeframer {
   private static final Logger LOG =
@@ -35,92 +36,136 @@ class MessageDeframer {
 
   static final byte DATA_BYTE = (byte) 0x00;
 
-  // TODO: fix this code to be able to handle upto 4GB input size.
-  private int mLength = 0;
-  private int mReadSoFar = 0;
+  private static final int[] BASE64_VALUES = new int[256];
+  static {
+    Arrays.fill(BASE64_VALUES, -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64_VALUES[alphabet.charAt(i)] = i;
+    }
+  }
+
+  private final boolean mIsText;
+  private final ChunkedBuffer mMsg = new ChunkedBuffer();
+  private final byte[] mPrefix = new byte[MessageFramer.PREFIX_LENGTH];
+  private int mPrefixRead = 0;
+  // bytes of the current frame's contents still to be read
+  private long mFrameRemaining = 0;
+  // set once a frame that isn't DATA is reached; anything from there on is ignored
+  private boolean mIsDataDone = false;
+  private int mNumFrames = 0;
+  private final byte[] mQuantum = new byte[4];
+  private int mQuantumLength = 0;
 
-  private ArrayList<byte[]> mFrames = new ArrayList<>();
-  private byte[] mMsg = null;
-  private int mNumFrames;
+  MessageDeframer(ContentType contentType) {
+    mIsText = contentType == ContentType.GRPC_WEB_TEXT;
+  }
 
-  byte[] getMessageBytes() { return mMsg;}
-  int getLength() { return mLength;}
+  /** Returns a stream of the message, which reads (and so releases) the deframed bytes */
+  InputStream getMessageStream() { return mMsg.newInputStream();}
+  long getLength() { return mMsg.size();}
   int getNumberOfFrames() {return mNumFrames;}
 
-  /** Reads the bytes from the given InputStream and populates bytes in {@link #mMsg}
+  /**
+   * Processes the next len bytes of the body. Returns false if they aren't valid, in which case the rest of the body
+   * should be ignored.
    */
-  boolean processInput(InputStream in, ContentType contentType) {
-    byte[] inBytes;
-    try {
-      InputStream inStream = (contentType == ContentType.GRPC_WEB_TEXT)
-          ? Base64.getDecoder().wrap(in)
-          : in;
-        inBytes = IOUtils.toByteArray(inStream);
-    } catch (IOException e) {
-      e.printStackTrace();
-      LOG.warning("invalid input");
-      return false;
-    }
-    if (inBytes.length < 5) {
-      LOG.fine("invalid input. Expected minimum of 5 bytes");
-      return false;
+  boolean processInput(byte[] in, int off, int len) {
+    if (!mIsText) {
+      processFrameBytes(in, off, len);
+      return true;
     }
-
-    while (getNextFrameBytes(inBytes)) {}
-    mNumFrames = mFrames.size();
-
-    // common case is only one frame.
-    if (mNumFrames == 1) {
-      mMsg = mFrames.get(0);
-    } else {
-      // concatenate all frames into one byte array
-      // TODO: this is inefficient.
-      mMsg = new byte[mLength];
-      int offset = 0;
-      for (byte[] f : mFrames) {
-        System.arraycopy(f, 0, mMsg, offset, f.length);
-        offset += f.length;
+    byte[] decoded = BufferPool.acquire();
+    try {
+      int decodedLength = 0;
+      for (int i = off; i < off + len; i++) {
+        mQuantum[mQuantumLength++] = in[i];
+        if (mQuantumLength < mQuantum.length) continue;
+        mQuantumLength = 0;
+        int n = decodeQuantum(decoded, decodedLength);
+        if (n < 0) {
+          LOG.fine("invalid base64 input");
+          return false;
+        }
+        decodedLength += n;
+        if (decodedLength > decoded.length - 3) {
+          processFrameBytes(decoded, 0, decodedLength);
+          decodedLength = 0;
+        }
       }
-      mFrames = null;
+      processFrameBytes(decoded, 0, decodedLength);
+      return true;
+    } finally {
+      BufferPool.release(decoded);
     }
-    return true;
   }
 
-  /** returns true if the next frame is a DATA frame */
-  private boolean getNextFrameBytes(byte[] inBytes) {
-    // Firstbyte should be 0x00 (for this to be a DATA frame)
-    int firstByteValue = inBytes[mReadSoFar] | DATA_BYTE;
-    if (firstByteValue != 0) {
-      LOG.fine("done with DATA bytes");
+  /** Called once the whole body has been processed. Returns false if it didn't hold a complete message. */
+  boolean finish() {
+    if (mQuantumLength != 0) {
+      LOG.fine("invalid input. base64 input isn't a multiple of 4 characters");
       return false;
     }
-
-    // Next 4 bytes = length of the bytes array starting after the 4 bytes.
-    int offset = mReadSoFar + 1;
-    int len = ByteBuffer.wrap(inBytes, offset, 4).getInt();
-
-    // Empty message is special case.
-    // TODO: Can this is special handling be removed?
-    if (len == 0) {
-      mFrames.add(new byte[0]);
+    if (mNumFrames == 0) {
+      LOG.fine("invalid input. Expected at least one DATA frame");
       return false;
     }
-
-    // Make sure we have enough bytes in the inputstream
-    int expectedNumBytes = len + 5 + mReadSoFar;
-    if (inBytes.length < expectedNumBytes) {
-      LOG.warning(String.format("input doesn't have enough bytes. expected: %d, found %d",
-          expectedNumBytes,  inBytes.length));
+    if (!mIsDataDone && (mPrefixRead != 0 || mFrameRemaining != 0)) {
+      LOG.warning(String.format("input doesn't have enough bytes. expected %d more",
+          mFrameRemaining + MessageFramer.PREFIX_LENGTH - mPrefixRead));
       return false;
     }
+    return true;
+  }
+
+  private void processFrameBytes(byte[] in, int off, int len) {
+    while (len > 0 && !mIsDataDone) {
+      if (mPrefixRead < mPrefix.length) {
+        int n = Math.min(len, mPrefix.length - mPrefixRead);
+        System.arraycopy(in, off, mPrefix, mPrefixRead, n);
+        mPrefixRead += n;
+        off += n;
+        len -= n;
+        if (mPrefixRead < mPrefix.length) return;
+        // First byte should be 0x00 (for this to be a DATA frame)
+        if (mPrefix[0] != DATA_BYTE) {
+          LOG.fine("done with DATA bytes");
+          mIsDataDone = true;
+          return;
+        }
+        // Next 4 bytes = length of the frame's contents
+        mFrameRemaining = Integer.toUnsignedLong(ByteBuffer.wrap(mPrefix, 1, 4).getInt());
+        mNumFrames++;
+      } else {
+        int n = (int) Math.min(len, mFrameRemaining);
+        mMsg.write(in, off, n);
+        mFrameRemaining -= n;
+        off += n;
+        len -= n;
+      }
+      if (mFrameRemaining == 0) {
+        // ready for the next frame's prefix
+        mPrefixRead = 0;
+      }
+    }
+  }
 
-    // Read "len" bytes into message
-    mLength += len;
-    offset += 4;
-    byte[] inputBytes = Arrays.copyOfRange(inBytes, offset, len + offset);
-    mFrames.add(inputBytes);
-    mReadSoFar += (len + 5);
-    // we have more frames to process, if there are bytes unprocessed
-    return inBytes.length > mReadSoFar;
+  /** Decodes mQuantum into out, and returns the number of bytes decoded, or -1 if it isn't valid base64 */
+  private int decodeQuantum(byte[] out, int off) {
+    int a = BASE64_VALUES[mQuantum[0] & 0xff];
+    int b = BASE64_VALUES[mQuantum[1] & 0xff];
+    if (a < 0 || b < 0) return -1;
+    out[off] = (byte) ((a << 2) | (b >> 4));
+    if (mQuantum[2] == '=') {
+      return mQuantum[3] == '=' ? 1 : -1;
+    }
+    int c = BASE64_VALUES[mQuantum[2] & 0xff];
+    if (c < 0) return -1;
+    out[off + 1] = (byte) ((b << 4) | (c >> 2));
+    if (mQuantum[3] == '=') return 2;
+    int d = BASE64_VALUES[mQuantum[3] & 0xff];
+    if (d < 0) return -1;
+    out[off + 2] = (byte) ((c << 6) | d);
+    return 3;
   }
 }
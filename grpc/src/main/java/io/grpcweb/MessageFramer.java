@@ -15,6 +15,10 @@
  */
 package io.grpcweb;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * Creates frames from the input bytes.
  */
@@ -29,9 +33,31 @@ class MessageFramer {
     }
   }
 
-  // TODO: handle more than single frame; i.e., input byte array size > (2GB - 1)
-  byte[] getPrefix(byte[] in, Type type) {
-    int len = in.length;
+  static final int PREFIX_LENGTH = 5;
+  // The length in the prefix is an unsigned 32-bit int
+  static final long MAX_FRAME_LENGTH = 0xffffffffL;
+
+  /**
+   * Frames the message read from the given stream. The message is read straight into pooled chunks after a
+   * placeholder prefix, which is filled in once the length is known.
+   */
+  ChunkedBuffer frame(InputStream in, Type type) throws IOException {
+    ChunkedBuffer frame = new ChunkedBuffer();
+    frame.write(new byte[PREFIX_LENGTH]);
+    long len = frame.readFrom(in);
+    if (len > MAX_FRAME_LENGTH) {
+      frame.release();
+      throw new IllegalArgumentException("message is too large for a grpc-web frame: " + len + " bytes");
+    }
+    frame.overwriteHead(getPrefix(len, type));
+    return frame;
+  }
+
+  ChunkedBuffer frame(byte[] in, Type type) throws IOException {
+    return frame(new ByteArrayInputStream(in), type);
+  }
+
+  byte[] getPrefix(long len, Type type) {
     return new byte[] {
         type.value,
         (byte) ((len >> 24) & 0xff),
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020  Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.grpcweb;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Maps grpc-web request paths ("/<service>/<method>") to the method descriptors used to call them, built once from
+ * the service definitions the proxy fronts. Calls are made with message streams in and out: the proxy passes on the
+ * deframed request as it is, and frames the reply it gets back, so it never needs the message classes.
+ *
+ * The passthrough marshaller relies on the in-process transport, which hands streams over rather than serializing
+ * them. A reply stream is only valid until the observer's onNext() returns, so it has to be read there.
+ *
+ * Only unary and server-streaming methods are included, as grpc-web doesn't support the other types.
+ */
+class MethodDispatchTable {
+  private static final Logger LOG =
+      Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+  static final MethodDescriptor.Marshaller<InputStream> PASSTHROUGH_MARSHALLER =
+      new MethodDescriptor.Marshaller<InputStream>() {
+        @Override
+        public InputStream stream(InputStream value) {
+          return value;
+        }
+
+        @Override
+        public InputStream parse(InputStream stream) {
+          return stream;
+        }
+      };
+
+  private final Map<String, MethodDescriptor<InputStream, InputStream>> mMethods = new HashMap<>();
+
+  MethodDispatchTable(Collection<ServerServiceDefinition> services) {
+    for (ServerServiceDefinition service : services) {
+      for (ServerMethodDefinition<?, ?> method : service.getMethods()) {
+        MethodDescriptor<?, ?> descriptor = method.getMethodDescriptor();
+        if (descriptor.getType() != MethodType.UNARY
+            && descriptor.getType() != MethodType.SERVER_STREAMING) {
+          continue;
+        }
+        mMethods.put("/" + descriptor.getFullMethodName(),
+            descriptor.toBuilder(PASSTHROUGH_MARSHALLER, PASSTHROUGH_MARSHALLER).build());
+      }
+    }
+    LOG.info("grpc-web proxy can dispatch " + mMethods.size() + " methods");
+  }
+
+  /** Returns the method for the given request path, or null if there isn't one */
+  MethodDescriptor<InputStream, InputStream> get(String path) {
+    return path == null ? null : mMethods.get(path);
+  }
+}
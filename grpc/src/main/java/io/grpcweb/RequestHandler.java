@@ -16,162 +16,309 @@
 package io.grpcweb;
 
 import com.google.inject.Inject;
+import io.grpc.CallOptions;
 import io.grpc.Channel;
+import io.grpc.ClientCall;
 import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
 import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.MetadataUtils;
-import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
-import java.lang.reflect.Method;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 
+/**
+ * Handles a grpc-web request asynchronously: the request body is read with a ReadListener, the gRPC call is started
+ * once it's all been read, and the response is written by SendResponse as the call's messages arrive. No container
+ * thread is held while the call runs. The method to call is looked up in the MethodDispatchTable, and the call is
+ * made over the in-process channel with the message bytes as they are, so the proxy never parses or re-serializes
+ * messages.
+ *
+ * The call gets a deadline from the request's grpc-timeout header (capped at, and defaulting to, 150s), and the
+ * AsyncContext times out shortly after that. If the request times out, or the client goes away, the gRPC call is
+ * cancelled.
+ */
 class RequestHandler {
   private static final Logger LOG =
       Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
 
+  private static final long MAX_TIMEOUT_MILLIS = 150000;
+  // The gRPC deadline should fail the call first, so that its status can still be sent to the client
+  private static final long ASYNC_TIMEOUT_SLACK_MILLIS = 5000;
+
   private final MessageHandler mMessageHandler;
   private final GrpcServiceConnectionManager mGrpcServiceConnectionManager;
+  private final MethodDispatchTable mMethodDispatchTable;
 
   @Inject
-  RequestHandler(GrpcServiceConnectionManager g, MessageHandler m) {
+  RequestHandler(GrpcServiceConnectionManager g, MessageHandler m, MethodDispatchTable t) {
     mMessageHandler = m;
     mGrpcServiceConnectionManager = g;
+    mMethodDispatchTable = t;
   }
 
-  public void handle(final HttpServletRequest req, final HttpServletResponse resp) {
+  public void handle(final AsyncContext asyncContext) {
+    HttpServletRequest req = (HttpServletRequest) asyncContext.getRequest();
+    HttpServletResponse resp = (HttpServletResponse) asyncContext.getResponse();
     DebugInfo.printRequest(req);
-    MessageHandler.ContentType contentType = mMessageHandler.validateContentType(req);
-    SendResponse sendResponse = new SendResponse(req, resp);
+    long timeoutMillis = getTimeoutMillis(req);
+    asyncContext.setTimeout(timeoutMillis + ASYNC_TIMEOUT_SLACK_MILLIS);
 
+    SendResponse sendResponse;
     try {
-      // From the request, get the rpc-method name and class name and then get their corresponding
-      // concrete objects.
-      Pair<String, String> classAndMethodNames = getClassAndMethod(req);
-      String className = classAndMethodNames.getLeft();
-      String methodName = classAndMethodNames.getRight();
-      Class cls = getClassObject(className);
-      if (cls == null) {
-        LOG.info("incorrect classname in the request: " + className);
-        // incorrect classname specified in the request.
+      sendResponse = new SendResponse(asyncContext);
+    } catch (IOException e) {
+      LOG.info("Exception occurred: " + e.getMessage());
+      resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      asyncContext.complete();
+      return;
+    }
+
+    try {
+      MessageHandler.ContentType contentType = mMessageHandler.validateContentType(req);
+      MethodDescriptor<InputStream, InputStream> method = mMethodDispatchTable.get(req.getPathInfo());
+      if (method == null) {
+        LOG.info("unknown method in the request: " + req.getPathInfo());
         sendResponse.returnUnimplementedStatusCode();
         return;
       }
 
-      // Create a ClientInterceptor object
-      CountDownLatch latch = new CountDownLatch(1);
-      GrpcWebClientInterceptor interceptor =
-          new GrpcWebClientInterceptor(resp, latch, sendResponse);
-      Channel channel = mGrpcServiceConnectionManager.getChannelWithClientInterceptor(interceptor);
-
-      // get the stub for the rpc call and the method to be called within the stub
-      io.grpc.stub.AbstractStub asyncStub = getRpcStub(channel, cls, "newStub");
+      // Create the ClientInterceptors: one to write the response headers and trailers, and one to pass the request's
+      // grpc metadata on to the service
+      GrpcWebClientInterceptor interceptor = new GrpcWebClientInterceptor(resp, sendResponse);
       Metadata headers = MetadataUtil.getHtpHeaders(req);
-      if (!headers.keys().isEmpty()) {
-        asyncStub = MetadataUtils.attachHeaders(asyncStub, headers);
-      }
-      Method asyncStubCall = getRpcMethod(asyncStub, methodName);
-      // Get the input object bytes
-      ServletInputStream in = req.getInputStream();
-      MessageDeframer deframer = new MessageDeframer();
-      Object inObj = null;
-      if (deframer.processInput(in, contentType)) {
-        inObj = mMessageHandler.getInputProtobufObj(asyncStubCall, deframer.getMessageBytes());
-      }
+      Channel channel = headers.keys().isEmpty()
+          ? mGrpcServiceConnectionManager.getChannelWithClientInterceptors(interceptor)
+          : mGrpcServiceConnectionManager.getChannelWithClientInterceptors(interceptor,
+              MetadataUtils.newAttachHeadersInterceptor(headers));
+      CallOptions callOptions = CallOptions.DEFAULT.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS);
 
-      // Invoke the rpc call
-      asyncStubCall.invoke(asyncStub, inObj,
-          new GrpcCallResponseReceiver(sendResponse, latch));
-      if (!latch.await(150000, TimeUnit.MILLISECONDS)) {
-        LOG.warning("grpc call took too long!");
+      boolean isStreaming = method.getType() == MethodDescriptor.MethodType.SERVER_STREAMING;
+      GrpcCallResponseReceiver receiver = new GrpcCallResponseReceiver(sendResponse, isStreaming);
+      sendResponse.setOnAbort(() -> receiver.cancel("grpc-web client went away"));
+      if (isStreaming) {
+        sendResponse.setStreaming(receiver::requestNext);
       }
+      asyncContext.addListener(new CancellingAsyncListener(receiver, sendResponse));
+
+      // Deframe the input message as its bytes arrive, without blocking; the call is made once they've all arrived.
+      // The message is passed to the service as it is, and it does the parsing.
+      MessageDeframer deframer = new MessageDeframer(contentType);
+      ServletInputStream in = req.getInputStream();
+      in.setReadListener(new RequestBodyReader(in, deframer, sendResponse, () -> {
+        if (receiver.isCancelled()) {
+          return;
+        }
+        ClientCall<InputStream, InputStream> call = channel.newCall(method, callOptions);
+        if (isStreaming) {
+          ClientCalls.asyncServerStreamingCall(call, deframer.getMessageStream(), receiver);
+        } else {
+          ClientCalls.asyncUnaryCall(call, deframer.getMessageStream(), receiver);
+        }
+      }));
     } catch (Exception e) {
       LOG.info("Exception occurred: " + e.getMessage());
-      resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      sendResponse.returnBadRequest();
     }
   }
 
-  private Pair<String, String> getClassAndMethod(HttpServletRequest req)
-      throws IllegalArgumentException {
-    String pathInfo = req.getPathInfo();
-    // pathInfo starts with "/". ignore that first char.
-    String[] rpcClassAndMethodTokens = pathInfo.substring(1).split("/");
-    if (rpcClassAndMethodTokens.length != 2) {
-      throw new IllegalArgumentException("incorrect pathinfo: " + pathInfo);
+  /**
+   * Parses the grpc-timeout header (eg "30S", "1500m"), capped at MAX_TIMEOUT_MILLIS
+   */
+  private static long getTimeoutMillis(HttpServletRequest req) {
+    String timeout = req.getHeader("grpc-timeout");
+    if (timeout == null || timeout.length() < 2) {
+      return MAX_TIMEOUT_MILLIS;
     }
-
-    String rpcClassName = rpcClassAndMethodTokens[0];
-    String rpcMethodNameRecvd = rpcClassAndMethodTokens[1];
-    String rpcMethodName = rpcMethodNameRecvd.substring(0, 1).toLowerCase()
-        + rpcMethodNameRecvd.substring(1);
-    return new ImmutablePair<>(rpcClassName, rpcMethodName);
-  }
-
-  private Class<?> getClassObject(String className) {
-    Class rpcClass = null;
+    long value;
     try {
-      rpcClass = Class.forName(className + "Grpc");
-    } catch (ClassNotFoundException e) {
-      LOG.info("no such class " + className);
+      value = Long.parseLong(timeout.substring(0, timeout.length() - 1));
+    } catch (NumberFormatException e) {
+      LOG.info("invalid grpc-timeout: " + timeout);
+      return MAX_TIMEOUT_MILLIS;
     }
-    return rpcClass;
-  }
-
-  private io.grpc.stub.AbstractStub getRpcStub(Channel ch, Class cls, String stubName) {
-    try {
-      Method m = cls.getDeclaredMethod(stubName, Channel.class);
-      return (io.grpc.stub.AbstractStub) m.invoke(null, ch);
-    } catch (Exception e) {
-      LOG.warning("Error when fetching " + stubName + " for: " + cls.getName());
-      throw new IllegalArgumentException(e);
+    long millis;
+    switch (timeout.charAt(timeout.length() - 1)) {
+      case 'H': millis = TimeUnit.HOURS.toMillis(value); break;
+      case 'M': millis = TimeUnit.MINUTES.toMillis(value); break;
+      case 'S': millis = TimeUnit.SECONDS.toMillis(value); break;
+      case 'm': millis = value; break;
+      case 'u': millis = TimeUnit.MICROSECONDS.toMillis(value); break;
+      case 'n': millis = TimeUnit.NANOSECONDS.toMillis(value); break;
+      default:
+        LOG.info("invalid grpc-timeout: " + timeout);
+        return MAX_TIMEOUT_MILLIS;
     }
+    return Math.max(1, Math.min(millis, MAX_TIMEOUT_MILLIS));
   }
 
   /**
-   * Find the matching method in the stub class.
+   * Deframes the request body as it becomes available, and runs onMessage once it's all been read. Invalid bodies
+   * are still read to the end, and then get a 400.
    */
-  private Method getRpcMethod(Object stub, String rpcMethodName) {
-    for (Method m : stub.getClass().getMethods()) {
-      if (m.getName().equals(rpcMethodName)) {
-        return m;
+  private static class RequestBodyReader implements ReadListener {
+    private final ServletInputStream mIn;
+    private final MessageDeframer mDeframer;
+    private final SendResponse mSendResponse;
+    private final Runnable mOnMessage;
+    private boolean mIsInvalid = false;
+
+    RequestBodyReader(ServletInputStream in, MessageDeframer deframer, SendResponse sendResponse,
+        Runnable onMessage) {
+      mIn = in;
+      mDeframer = deframer;
+      mSendResponse = sendResponse;
+      mOnMessage = onMessage;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+      byte[] buffer = BufferPool.acquire();
+      try {
+        while (mIn.isReady() && !mIn.isFinished()) {
+          int n = mIn.read(buffer);
+          if (n > 0 && !mIsInvalid && !mDeframer.processInput(buffer, 0, n)) {
+            mIsInvalid = true;
+          }
+        }
+      } finally {
+        BufferPool.release(buffer);
+      }
+    }
+
+    @Override
+    public void onAllDataRead() {
+      if (mIsInvalid || !mDeframer.finish()) {
+        mSendResponse.returnBadRequest();
+        return;
       }
+      mOnMessage.run();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      LOG.info("can't read request: " + t.getMessage());
+      mSendResponse.abort();
+    }
+  }
+
+  private static class CancellingAsyncListener implements AsyncListener {
+    private final GrpcCallResponseReceiver mReceiver;
+    private final SendResponse mSendResponse;
+
+    CancellingAsyncListener(GrpcCallResponseReceiver receiver, SendResponse sendResponse) {
+      mReceiver = receiver;
+      mSendResponse = sendResponse;
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      LOG.warning("grpc call took too long!");
+      mReceiver.cancel("grpc-web request timed out");
+      mSendResponse.timeout();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      mSendResponse.abort();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
     }
-    throw new IllegalArgumentException("Couldn't find rpcmethod: " + rpcMethodName);
   }
 
-  private static class GrpcCallResponseReceiver<Object> implements StreamObserver {
+  /**
+   * Writes the call's messages and status into the response. Implements ClientResponseObserver so that it gets hold
+   * of the call, which it can then cancel. For server-streaming calls, messages are requested one at a time, as
+   * SendResponse gets each one written.
+   */
+  private static class GrpcCallResponseReceiver implements ClientResponseObserver<InputStream, InputStream> {
     private final SendResponse sendResponse;
-    private final CountDownLatch latch;
+    private final boolean isStreaming;
+    private ClientCallStreamObserver<InputStream> call;
+    private String cancelReason;
 
-    GrpcCallResponseReceiver(SendResponse s, CountDownLatch c) {
+    GrpcCallResponseReceiver(SendResponse s, boolean streaming) {
       sendResponse = s;
-      latch = c;
+      isStreaming = streaming;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<InputStream> requestStream) {
+      if (isStreaming) {
+        requestStream.disableAutoRequestWithInitialRequest(1);
+      }
+      String reason;
+      synchronized (this) {
+        call = requestStream;
+        reason = cancelReason;
+      }
+      if (reason != null) {
+        requestStream.cancel(reason, null);
+      }
+    }
+
+    /**
+     * Cancels the call, or if it hasn't started yet, makes sure it's cancelled as soon as it starts. The call is
+     * cancelled outside this object's lock, as on the in-process channel that delivers its error (and so takes
+     * SendResponse's lock) on this thread.
+     */
+    void cancel(String reason) {
+      ClientCallStreamObserver<InputStream> c;
+      synchronized (this) {
+        if (cancelReason != null) return;
+        cancelReason = reason;
+        c = call;
+      }
+      if (c != null) {
+        c.cancel(reason, null);
+      }
+    }
+
+    synchronized boolean isCancelled() {
+      return cancelReason != null;
+    }
+
+    /** Requests the next message of a streaming call. Safe to call from any thread. */
+    void requestNext() {
+      ClientCallStreamObserver<InputStream> c;
+      synchronized (this) {
+        c = call;
+      }
+      c.request(1);
     }
 
     @Override
-    public void onNext(java.lang.Object resp) {
-      // TODO verify that the resp object is of Class instance returnedCls.
-      byte[] outB = ((com.google.protobuf.GeneratedMessageV3)resp).toByteArray();
-      sendResponse.writeResponse(outB);
+    public void onNext(InputStream resp) {
+      sendResponse.writeResponse(resp);
     }
 
     @Override
     public void onError(Throwable t) {
       Status s = Status.fromThrowable(t);
       sendResponse.writeError(s);
-      latch.countDown();
     }
 
     @Override
     public void onCompleted() {
       sendResponse.writeStatusTrailer(Status.OK);
-      latch.countDown();
     }
   }
 }
@@ -19,25 +19,89 @@ import io.grpc.Metadata;
 import io.grpc.Status;
 import io.grpcweb.MessageHandler.ContentType;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletOutputStream;
-import javax.servlet.http.HttpServletRequest;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Base64;
 
+/**
+ * Writes the grpc-web response for an async request. Output is non-blocking: framed messages are queued, and written
+ * whenever the servlet output stream is ready, so that a slow client never holds a container (or gRPC) thread. Once
+ * the final response (trailer or error) has been written, the AsyncContext is completed.
+ *
+ * Messages are framed (and base64 encoded, for text responses) into pooled chunks as they arrive, and the chunks are
+ * written as they are, so a message is never copied into one big array. A chunk goes back to the pool once the
+ * output stream is ready again, as that means the container is done with it.
+ *
+ * For server-streaming calls, each message is flushed once it's been written, so the client gets it straight away
+ * rather than when the container's buffer fills or the call ends, and the next message is only requested from the
+ * call once the output stream has taken the last one. A slow client so holds back the call, through gRPC flow
+ * control, rather than piling up framed messages here.
+ *
+ * Callbacks into the call (onAbort, onMessageWritten) can re-enter this object on the same thread (eg cancelling an
+ * in-process call delivers its error here straight away), so they're never run while holding this object's lock.
+ */
 class SendResponse {
   private static final Logger LOG =
       Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
 
   private final String mContentType;
+  private final boolean mIsText;
+  private final AsyncContext mAsyncContext;
   private final HttpServletResponse mResp;
+  private final ServletOutputStream mOut;
+  private final MessageFramer mFramer = new MessageFramer();
+  private final ArrayDeque<PendingFrame> mPending = new ArrayDeque<>();
+  // the chunk last written to the output stream, which may still be in use until the stream is ready again
+  private byte[] mInFlight = null;
   private boolean isFinalResponseSent = false;
+  private boolean isCompleted = false;
+  private boolean isStreaming = false;
+  private boolean isFlushNeeded = false;
+  private volatile Runnable mOnAbort = () -> {};
+  private volatile Runnable mOnMessageWritten = () -> {};
 
-  SendResponse(HttpServletRequest req, HttpServletResponse resp) {
-    mContentType = req.getContentType();
-    mResp = resp;
+  SendResponse(AsyncContext asyncContext) throws IOException {
+    mAsyncContext = asyncContext;
+    mContentType = asyncContext.getRequest().getContentType();
+    mIsText = MessageHandler.getContentType(mContentType) == ContentType.GRPC_WEB_TEXT;
+    mResp = (HttpServletResponse) asyncContext.getResponse();
+    mOut = mResp.getOutputStream();
+    mOut.setWriteListener(new WriteListener() {
+      @Override
+      public void onWritePossible() {
+        drain();
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        LOG.info("can't write response: " + t.getMessage());
+        abort();
+      }
+    });
+  }
+
+  /**
+   * Sets what to do (ie cancel the backend call) if the response can't be completed normally. It's run without holding
+   * this object's lock.
+   */
+  void setOnAbort(Runnable onAbort) {
+    mOnAbort = onAbort;
+  }
+
+  /**
+   * Makes this a streaming response: each message is flushed once written, and onMessageWritten (ie request the next
+   * message from the call) is run once the output stream has taken it. It's run without holding this object's lock.
+   */
+  synchronized void setStreaming(Runnable onMessageWritten) {
+    isStreaming = true;
+    mOnMessageWritten = onMessageWritten;
   }
 
   synchronized void writeHeaders(Metadata headers) {
@@ -47,33 +111,47 @@ class SendResponse {
     mResp.setHeader("trailer", "grpc-status,grpc-message");
     if (headers == null) return;
     Map<String, String> ht = MetadataUtil.getHttpHeadersFromMetadata(headers);
-    StringBuffer sb = new StringBuffer();
     for (String key : ht.keySet()) {
       mResp.setHeader(key, ht.get(key));
     }
   }
 
-  synchronized void returnUnimplementedStatusCode() {
-    if (isFinalResponseSent) return;
-    writeHeaders(null);
-    writeStatusTrailer(Status.UNIMPLEMENTED);
-    isFinalResponseSent = true;
+  void returnUnimplementedStatusCode() {
+    writeError(Status.UNIMPLEMENTED);
+  }
+
+  void writeError(Status s) {
+    synchronized (this) {
+      if (isFinalResponseSent) return;
+      writeHeaders(null);
+      enqueueTrailer(s, null);
+    }
+    drain();
   }
 
-  synchronized void writeError(Status s) {
+  /** Ends the request with a plain 400, for requests that aren't valid grpc-web */
+  synchronized void returnBadRequest() {
     if (isFinalResponseSent) return;
-    writeHeaders(null);
-    writeStatusTrailer(s);
     isFinalResponseSent = true;
+    mResp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    complete();
   }
 
-  synchronized void writeStatusTrailer(Status status) {
+  void writeStatusTrailer(Status status) {
     writeTrailer(status, null);
   }
 
-  synchronized void writeTrailer(Status status, Metadata trailer) {
-    if (isFinalResponseSent) return;
-    StringBuffer sb = new StringBuffer();
+  void writeTrailer(Status status, Metadata trailer) {
+    synchronized (this) {
+      if (isFinalResponseSent) return;
+      enqueueTrailer(status, trailer);
+    }
+    drain();
+  }
+
+  /** Queues the trailer as the final response; drain() writes it */
+  private void enqueueTrailer(Status status, Metadata trailer) {
+    StringBuilder sb = new StringBuilder();
     if (trailer != null) {
       Map<String, String> ht = MetadataUtil.getHttpHeadersFromMetadata(trailer);
       for (String key : ht.keySet()) {
@@ -82,41 +160,176 @@ class SendResponse {
     }
     sb.append(String.format("grpc-status:%d\r\n", status.getCode().value()));
     if (status.getDescription() != null && !status.getDescription().isEmpty()) {
-      sb.append(String.format("grpc-message:%s\r\n", status.getDescription()));
+      sb.append(String.format("grpc-message:%s\r\n", percentEncode(status.getDescription())));
     }
     LOG.fine("writing trailer: " + sb.toString());
-    writeResponse(sb.toString().getBytes(), MessageFramer.Type.TRAILER);
-    writeOk();
+    try {
+      enqueue(frame(mFramer.frame(sb.toString().getBytes(StandardCharsets.US_ASCII), MessageFramer.Type.TRAILER)),
+          false);
+    } catch (IOException e) {
+      // can't happen, as the trailer is read from memory
+      LOG.warning("can't frame trailer: " + e.getMessage());
+    }
+    mResp.setStatus(HttpServletResponse.SC_OK);
+    isFinalResponseSent = true;
   }
 
-  synchronized void writeResponse(byte[] out) {
-    writeResponse(out, MessageFramer.Type.DATA);
+  /**
+   * Frames the message read from the given stream, and queues it to be written. The message is read before this
+   * returns, so the stream can be closed afterwards.
+   */
+  void writeResponse(InputStream message) {
+    // Framed outside the lock, so a large message doesn't hold up writing the ones before it
+    ChunkedBuffer framed;
+    try {
+      framed = frame(mFramer.frame(message, MessageFramer.Type.DATA));
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.warning("can't frame response: " + e.getMessage());
+      writeError(Status.INTERNAL.withDescription("can't frame response: " + e.getMessage()));
+      mOnAbort.run();
+      return;
+    }
+    synchronized (this) {
+      enqueue(framed, true);
+    }
+    drain();
   }
 
-  private void writeResponse(byte[] out, MessageFramer.Type type) {
-    if (isFinalResponseSent) return;
-    try {
-      // PUNT multiple frames not handled
-      byte[] prefix = new MessageFramer().getPrefix(out, type);
-      ServletOutputStream oStream = mResp.getOutputStream();
-      // binary encode if it is "text" content type
-      if (MessageHandler.getContentType(mContentType) == ContentType.GRPC_WEB_TEXT) {
-        byte[] concated = new byte[out.length + 5];
-        System.arraycopy(prefix, 0, concated, 0, 5);
-        System.arraycopy(out, 0, concated, 5, out.length);
-        oStream.write(Base64.getEncoder().encode(concated));
+  /**
+   * Called when the request times out: whatever hasn't been written yet is dropped, and the request completed
+   * (with a DEADLINE_EXCEEDED status, if nothing else has been sent yet)
+   */
+  void timeout() {
+    writeError(Status.DEADLINE_EXCEEDED.withDescription("grpc-web request timed out"));
+    synchronized (this) {
+      clearPending();
+      complete();
+    }
+  }
+
+  /** Gives up on the response (eg because the client went away), and runs the abort handler */
+  void abort() {
+    synchronized (this) {
+      if (isCompleted) return;
+      isFinalResponseSent = true;
+      clearPending();
+      complete();
+    }
+    mOnAbort.run();
+  }
+
+  /** Base64 encodes the frame if it's a "text" content type */
+  private ChunkedBuffer frame(ChunkedBuffer framed) {
+    return mIsText ? framed.base64Encode() : framed;
+  }
+
+  /** Queues the frame to be written; drain() writes it */
+  private void enqueue(ChunkedBuffer framed, boolean isMessage) {
+    if (isFinalResponseSent) {
+      framed.release();
+      return;
+    }
+    mPending.add(new PendingFrame(framed, isMessage));
+  }
+
+  /**
+   * grpc-message values are percent-encoded (as in the gRPC spec), so that non-ASCII text and line breaks in a status
+   * description can't corrupt the trailer frame
+   */
+  private static String percentEncode(String message) {
+    StringBuilder sb = new StringBuilder(message.length());
+    for (byte b : message.getBytes(StandardCharsets.UTF_8)) {
+      if (b >= ' ' && b <= '~' && b != '%') {
+        sb.append((char) b);
       } else {
-        oStream.write(prefix);
-        oStream.write(out);
+        sb.append(String.format("%%%02X", b & 0xff));
       }
-    } catch (IOException e) {
-      // TODO what to do here?
-      LOG.warning("can't write?");
     }
+    return sb.toString();
   }
 
-  private void writeOk() {
-    mResp.setStatus(HttpServletResponse.SC_OK);
-    isFinalResponseSent = true;
+  /**
+   * Writes queued chunks for as long as the output stream can take them without blocking; when it can't, the
+   * container calls onWritePossible() once it can. Completes the request once the final response is written.
+   */
+  private void drain() {
+    int messagesWritten = 0;
+    boolean isWriteFailed = false;
+    synchronized (this) {
+      if (isCompleted) return;
+      try {
+        while (mOut.isReady()) {
+          // the last write has finished, so its chunk can be reused
+          if (mInFlight != null) {
+            BufferPool.release(mInFlight);
+            mInFlight = null;
+          }
+          if (isFlushNeeded) {
+            isFlushNeeded = false;
+            mOut.flush();
+            continue;
+          }
+          PendingFrame pending = mPending.peek();
+          if (pending == null) {
+            if (isFinalResponseSent) {
+              complete();
+            }
+            break;
+          }
+          if (pending.mFramed.isEmpty()) {
+            mPending.poll();
+            if (pending.isMessage) {
+              messagesWritten++;
+              isFlushNeeded = isStreaming;
+            }
+            continue;
+          }
+          int length = pending.mFramed.headChunkLength();
+          mInFlight = pending.mFramed.pollChunk();
+          mOut.write(mInFlight, 0, length);
+        }
+      } catch (IOException e) {
+        LOG.info("can't write response: " + e.getMessage());
+        isWriteFailed = true;
+      }
+    }
+    // Outside the lock, as cancelling the call, or requesting the next message, can call back into this object on
+    // this thread
+    if (isWriteFailed) {
+      abort();
+      return;
+    }
+    for (int i = 0; i < messagesWritten; i++) {
+      mOnMessageWritten.run();
+    }
+  }
+
+  private void clearPending() {
+    for (PendingFrame pending : mPending) {
+      pending.mFramed.release();
+    }
+    mPending.clear();
+  }
+
+  private void complete() {
+    if (isCompleted) return;
+    isCompleted = true;
+    try {
+      mAsyncContext.complete();
+    } catch (IllegalStateException e) {
+      // already completed by the container (eg after an error)
+      LOG.fine("async context already completed");
+    }
+  }
+
+  private static class PendingFrame {
+    private final ChunkedBuffer mFramed;
+    // a DATA frame, rather than the trailer
+    private final boolean isMessage;
+
+    PendingFrame(ChunkedBuffer framed, boolean isMessage) {
+      mFramed = framed;
+      this.isMessage = isMessage;
+    }
   }
 }
@@ -0,0 +1,536 @@
+package scripts;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.JsonFormat;
+import com.replica.util.Lz4Codec;
+import io.grpc.CallOptions;
+import io.grpc.Codec;
+import io.grpc.DecompressorRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.stub.ClientCalls;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import router.RouterGrpc;
+import router.RouterOuterClass;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for a running router server, covering every unary RPC (RouteStreetMode, RouteCustom,
+ * RouteIsochrone, RoutePt, RoutePtIsochrone). Replaces the sequential, single-stub PerformanceTest: requests are
+ * run concurrently, and latency is recorded into HdrHistograms, so tail latency under load can be measured as
+ * well as throughput.
+ *
+ * Two modes are supported:
+ * - closed loop (default): --concurrency workers each send a request, wait for its reply, then send the next.
+ *   Measures maximum throughput at a given concurrency, and the service time of each request
+ * - open loop (--qps=N): requests are sent on a fixed schedule regardless of how quickly replies come back, and
+ *   latency is measured from each request's *scheduled* send time rather than the time it was actually sent. If
+ *   the server (or this client) falls behind, the time requests spend waiting to be sent is included, so the
+ *   results aren't skewed by coordinated omission. Use this mode to measure latency at a given load
+ *
+ * Input is either an O/D CSV (one request per row, all for --method), or a .jsonl file with one request per line,
+ * eg {"method": "RoutePt", "request": {...}}, where request is the proto3 JSON form of the method's request message.
+ * O/D CSVs either have lat,lng,lat_work,lng_work columns (eg web/test-data/micro_nor_cal_golden_od_set.csv), or
+ * origin lat, origin lon, destination lat, destination lon as their first 4 columns (as used by PerformanceTest).
+ * Requests are sent round-robin until the run ends.
+ *
+ * Results are written to <output>.csv (latency percentiles and throughput per method, plus an "all" row) and
+ * <output>.json (the same, plus the run's settings and errors broken down by method and status code). Open loop
+ * requests still outstanding well after the run ends are counted as UNFINISHED errors.
+ *
+ * Example, against a local server on the Roseville test data (started with configs/run_local_server_gh_config.yaml):
+ *   java -cp graphhopper-grpc.jar scripts.LoadGenerator --input=web/test-data/micro_nor_cal_golden_od_set.csv \
+ *       --method=pt --qps=20 --duration-secs=120 --output=pt_20qps
+ *
+ * Other options (with defaults): --target=localhost:50051, --concurrency=8, --warmup-secs=10, --duration-secs=60,
+ * --max-outstanding=1000 (open loop only), --deadline-secs=60, --profile=car (street/custom/isochrone),
+ * --custom-model-file (custom), --departure-time=2019-10-15T13:30:00Z (pt/pt_isochrone), --use-pareto=false (pt),
+ * --time-limit-secs=600 and --buckets=3 (isochrones), --accept-encoding=lz4,gzip (reply compressions to accept, in
+ * the server's order of preference; "identity" for none)
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final String[] OUTPUT_FILE_COLUMN_HEADERS = {"method", "requests", "errors", "throughput_qps",
+            "mean_ms", "p50_ms", "p90_ms", "p99_ms", "p99.9_ms", "max_ms"};
+    // Latencies are recorded in microseconds, up to an hour
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+    // Error name for open loop requests still outstanding when the run ends
+    private static final String UNFINISHED = "UNFINISHED";
+
+    private final ManagedChannel channel;
+    private final List<LoadRequest> requests;
+    private final long deadlineSecs;
+    private final Map<String, Recorder> latencyByMethod = new ConcurrentHashMap<>();
+    private final Recorder allLatencies = new Recorder(MAX_LATENCY_MICROS, 3);
+    private final Map<String, LongAdder> errorCounts = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequest = new AtomicLong();
+
+    LoadGenerator(ManagedChannel channel, List<LoadRequest> requests, long deadlineSecs) {
+        this.channel = channel;
+        this.requests = requests;
+        this.deadlineSecs = deadlineSecs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String inputPath = options.get("input");
+        if (inputPath == null) {
+            throw new IllegalArgumentException("--input is required");
+        }
+        String outputPrefix = options.getOrDefault("output", "load_test");
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "8"));
+        double qps = Double.parseDouble(options.getOrDefault("qps", "0"));
+        long warmupSecs = Long.parseLong(options.getOrDefault("warmup-secs", "10"));
+        long durationSecs = Long.parseLong(options.getOrDefault("duration-secs", "60"));
+        int maxOutstanding = Integer.parseInt(options.getOrDefault("max-outstanding", "1000"));
+        long deadlineSecs = Long.parseLong(options.getOrDefault("deadline-secs", "60"));
+
+        List<LoadRequest> requests = inputPath.endsWith(".jsonl")
+                ? readJsonlRequests(inputPath)
+                : readCsvRequests(inputPath, options);
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("No requests found in " + inputPath);
+        }
+        logger.info(requests.size() + " requests loaded from " + inputPath);
+
+        String acceptEncoding = options.getOrDefault("accept-encoding", "lz4,gzip");
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(options.getOrDefault("target", "localhost:50051"))
+                .usePlaintext()
+                .decompressorRegistry(decompressorRegistry(acceptEncoding))
+                .build();
+        LoadGenerator loadGenerator = new LoadGenerator(channel, requests, deadlineSecs);
+        try {
+            long measuredNanos = qps > 0
+                    ? loadGenerator.runOpenLoop(qps, maxOutstanding, warmupSecs, durationSecs)
+                    : loadGenerator.runClosedLoop(concurrency, warmupSecs, durationSecs);
+            ObjectNode settings = new ObjectMapper().createObjectNode()
+                    .put("input", inputPath)
+                    .put("mode", qps > 0 ? "open_loop" : "closed_loop")
+                    .put("target_qps", qps)
+                    .put("concurrency", qps > 0 ? 0 : concurrency)
+                    .put("warmup_secs", warmupSecs)
+                    .put("duration_secs", durationSecs)
+                    .put("accept_encoding", acceptEncoding);
+            loadGenerator.writeResults(outputPrefix, settings, measuredNanos);
+        } finally {
+            channel.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Runs the given number of workers, each sending requests back to back; returns the length of the measured
+     * period in nanoseconds
+     */
+    long runClosedLoop(int concurrency, long warmupSecs, long durationSecs) throws InterruptedException {
+        logger.info("Running closed loop with " + concurrency + " workers for " + warmupSecs + "s warmup + "
+                + durationSecs + "s");
+        long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSecs);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSecs);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            workers.submit(() -> {
+                long start;
+                while ((start = System.nanoTime()) < end) {
+                    LoadRequest request = next();
+                    Status status;
+                    try {
+                        send(request).get();
+                        status = Status.OK;
+                    } catch (ExecutionException e) {
+                        status = Status.fromThrowable(e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    record(request, start, status, start >= measureStart);
+                }
+            });
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(warmupSecs + durationSecs + deadlineSecs + 10, TimeUnit.SECONDS)) {
+            logger.warn("Some workers' requests were still outstanding when the run ended; they aren't in the results");
+        }
+        return end - measureStart;
+    }
+
+    /**
+     * Sends requests at a fixed rate, measuring latency from each request's scheduled send time; returns the length
+     * of the measured period in nanoseconds
+     */
+    long runOpenLoop(double qps, int maxOutstanding, long warmupSecs, long durationSecs) throws InterruptedException {
+        logger.info("Running open loop at " + qps + " requests/s for " + warmupSecs + "s warmup + " + durationSecs + "s");
+        long intervalNanos = (long) (1e9 / qps);
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSecs);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSecs);
+        Semaphore outstanding = new Semaphore(maxOutstanding);
+        // Requests sent but not finished, by sequence number; whichever of the reply and the final wait removes a
+        // request records it, so a late reply can't be recorded twice
+        Map<Long, LoadRequest> inFlight = new ConcurrentHashMap<>();
+        long behindScheduleCount = 0;
+
+        for (long i = 0; ; i++) {
+            long scheduled = start + i * intervalNanos;
+            if (scheduled >= end) {
+                break;
+            }
+            long now;
+            while ((now = System.nanoTime()) < scheduled) {
+                LockSupport.parkNanos(scheduled - now);
+            }
+            if (now - scheduled > intervalNanos) {
+                behindScheduleCount++;
+            }
+            boolean measured = scheduled >= measureStart;
+            // Waiting for a free slot delays the send, but latency is still measured from the scheduled time
+            outstanding.acquire();
+            long sequence = i;
+            LoadRequest request = next();
+            inFlight.put(sequence, request);
+            Futures.addCallback(send(request), new FutureCallback<>() {
+                @Override
+                public void onSuccess(Object reply) {
+                    if (inFlight.remove(sequence) != null) {
+                        record(request, scheduled, Status.OK, measured);
+                    }
+                    outstanding.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (inFlight.remove(sequence) != null) {
+                        record(request, scheduled, Status.fromThrowable(t), measured);
+                    }
+                    outstanding.release();
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        if (behindScheduleCount > 0) {
+            logger.warn(behindScheduleCount + " requests were sent more than one interval behind schedule; the "
+                    + "client or server couldn't keep up with " + qps + " requests/s");
+        }
+        // Wait for outstanding requests to finish. Any that haven't by then (which their deadline should prevent)
+        // are recorded as UNFINISHED errors, with their latency so far, rather than left out of the results
+        if (!outstanding.tryAcquire(maxOutstanding, deadlineSecs + 10, TimeUnit.SECONDS)) {
+            long unfinishedCount = 0;
+            for (Long sequence : inFlight.keySet()) {
+                LoadRequest request = inFlight.remove(sequence);
+                if (request != null) {
+                    long scheduled = start + sequence * intervalNanos;
+                    record(request, scheduled, UNFINISHED, scheduled >= measureStart);
+                    unfinishedCount++;
+                }
+            }
+            logger.warn(unfinishedCount + " requests were still outstanding " + (deadlineSecs + 10) + "s after the run "
+                    + "ended; they're counted as " + UNFINISHED + " errors");
+        }
+        return end - measureStart;
+    }
+
+    private LoadRequest next() {
+        return requests.get((int) (nextRequest.getAndIncrement() % requests.size()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ListenableFuture<Object> send(LoadRequest request) {
+        MethodDescriptor<Object, Object> method = (MethodDescriptor<Object, Object>) request.method;
+        return ClientCalls.futureUnaryCall(
+                channel.newCall(method, CallOptions.DEFAULT.withDeadlineAfter(deadlineSecs, TimeUnit.SECONDS)),
+                request.request);
+    }
+
+    private void record(LoadRequest request, long startNanos, Status status, boolean measured) {
+        record(request, startNanos, status.isOk() ? null : status.getCode().name(), measured);
+    }
+
+    /**
+     * Records a request's latency, and counts it as an error if an error name is given. Requests started during
+     * warmup aren't recorded.
+     */
+    private void record(LoadRequest request, long startNanos, String error, boolean measured) {
+        if (!measured) {
+            return;
+        }
+        long latencyMicros = Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        String methodName = MethodDescriptor.extractBareMethodName(request.method.getFullMethodName());
+        latencyByMethod.computeIfAbsent(methodName, m -> new Recorder(MAX_LATENCY_MICROS, 3)).recordValue(latencyMicros);
+        allLatencies.recordValue(latencyMicros);
+        if (error != null) {
+            errorCounts.computeIfAbsent(methodName + ":" + error, k -> new LongAdder()).increment();
+        }
+    }
+
+    void writeResults(String outputPrefix, ObjectNode settings, long measuredNanos) throws IOException {
+        Map<String, Histogram> histograms = new TreeMap<>();
+        latencyByMethod.forEach((method, recorder) -> histograms.put(method, recorder.getIntervalHistogram()));
+        histograms.put("all", allLatencies.getIntervalHistogram());
+        Map<String, Long> errorsByMethod = Maps.newHashMap();
+        Map<String, Long> errorBreakdown = new TreeMap<>();
+        errorCounts.forEach((key, count) -> {
+            errorBreakdown.put(key, count.sum());
+            errorsByMethod.merge(key.substring(0, key.indexOf(':')), count.sum(), Long::sum);
+            errorsByMethod.merge("all", count.sum(), Long::sum);
+        });
+
+        ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        ObjectNode json = objectMapper.createObjectNode();
+        json.set("settings", settings);
+        ArrayNode methods = json.putArray("methods");
+        double measuredSecs = measuredNanos / 1e9;
+        try (CSVPrinter printer = new CSVPrinter(new FileWriter(outputPrefix + ".csv"), CSVFormat.DEFAULT.withHeader(OUTPUT_FILE_COLUMN_HEADERS))) {
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                long errors = errorsByMethod.getOrDefault(entry.getKey(), 0L);
+                double throughput = histogram.getTotalCount() / measuredSecs;
+                printer.printRecord(entry.getKey(), histogram.getTotalCount(), errors, throughput,
+                        histogram.getMean() / 1000.0, millisAt(histogram, 50), millisAt(histogram, 90),
+                        millisAt(histogram, 99), millisAt(histogram, 99.9), histogram.getMaxValue() / 1000.0);
+                methods.addObject()
+                        .put("method", entry.getKey())
+                        .put("requests", histogram.getTotalCount())
+                        .put("errors", errors)
+                        .put("throughput_qps", throughput)
+                        .put("mean_ms", histogram.getMean() / 1000.0)
+                        .put("p50_ms", millisAt(histogram, 50))
+                        .put("p90_ms", millisAt(histogram, 90))
+                        .put("p99_ms", millisAt(histogram, 99))
+                        .put("p99.9_ms", millisAt(histogram, 99.9))
+                        .put("max_ms", histogram.getMaxValue() / 1000.0);
+                logger.info(entry.getKey() + ": " + histogram.getTotalCount() + " requests (" + errors + " errors), "
+                        + String.format("%.1f", throughput) + " requests/s, p50 " + millisAt(histogram, 50)
+                        + "ms, p99 " + millisAt(histogram, 99) + "ms, max " + histogram.getMaxValue() / 1000.0 + "ms");
+            }
+        }
+        ObjectNode errors = json.putObject("errors");
+        errorBreakdown.forEach(errors::put);
+        objectMapper.writeValue(new File(outputPrefix + ".json"), json);
+        logger.info("Results written to " + outputPrefix + ".csv and " + outputPrefix + ".json");
+    }
+
+    private static double millisAt(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    /**
+     * The channel advertises (in grpc-accept-encoding) just the given compressions, so the server uses one of them
+     */
+    private static DecompressorRegistry decompressorRegistry(String acceptEncoding) {
+        DecompressorRegistry registry = DecompressorRegistry.emptyInstance();
+        for (String encoding : acceptEncoding.split(",")) {
+            switch (encoding.trim()) {
+                case Lz4Codec.ENCODING:
+                    registry = registry.with(new Lz4Codec(), true);
+                    break;
+                case "gzip":
+                    registry = registry.with(new Codec.Gzip(), true);
+                    break;
+                case "identity":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported --accept-encoding: " + encoding);
+            }
+        }
+        return registry;
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = Maps.newHashMap();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options must be given as --name=value; got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    private static List<LoadRequest> readJsonlRequests(String path) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonFormat.Parser parser = JsonFormat.parser().ignoringUnknownFields();
+        List<LoadRequest> requests = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path))) {
+            if (line.isBlank()) {
+                continue;
+            }
+            JsonNode node = objectMapper.readTree(line);
+            String method = node.get("method").asText();
+            Message.Builder builder;
+            MethodDescriptor<?, ?> descriptor;
+            switch (method) {
+                case "RouteStreetMode":
+                    builder = RouterOuterClass.StreetRouteRequest.newBuilder();
+                    descriptor = RouterGrpc.getRouteStreetModeMethod();
+                    break;
+                case "RouteCustom":
+                    builder = RouterOuterClass.CustomRouteRequest.newBuilder();
+                    descriptor = RouterGrpc.getRouteCustomMethod();
+                    break;
+                case "RouteIsochrone":
+                    builder = RouterOuterClass.IsochroneRouteRequest.newBuilder();
+                    descriptor = RouterGrpc.getRouteIsochroneMethod();
+                    break;
+                case "RoutePt":
+                    builder = RouterOuterClass.PtRouteRequest.newBuilder();
+                    descriptor = RouterGrpc.getRoutePtMethod();
+                    break;
+                case "RoutePtIsochrone":
+                    builder = RouterOuterClass.PtIsochroneRouteRequest.newBuilder();
+                    descriptor = RouterGrpc.getRoutePtIsochroneMethod();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported method " + method + " in " + path);
+            }
+            parser.merge(objectMapper.writeValueAsString(node.get("request")), builder);
+            requests.add(new LoadRequest(descriptor, builder.build()));
+        }
+        return requests;
+    }
+
+    private static List<LoadRequest> readCsvRequests(String path, Map<String, String> options) throws IOException {
+        String method = options.getOrDefault("method", "pt");
+        String profile = options.getOrDefault("profile", "car");
+        Timestamp departureTime = Timestamp.newBuilder()
+                .setSeconds(Instant.parse(options.getOrDefault("departure-time", "2019-10-15T13:30:00Z")).getEpochSecond())
+                .build();
+        boolean usePareto = Boolean.parseBoolean(options.getOrDefault("use-pareto", "false"));
+        int timeLimitSecs = Integer.parseInt(options.getOrDefault("time-limit-secs", "600"));
+        int buckets = Integer.parseInt(options.getOrDefault("buckets", "3"));
+        String customModel = options.containsKey("custom-model-file")
+                ? Files.readString(Paths.get(options.get("custom-model-file")))
+                : null;
+        if (method.equals("custom") && customModel == null) {
+            throw new IllegalArgumentException("--custom-model-file is required for custom routing");
+        }
+
+        List<LoadRequest> requests = new ArrayList<>();
+        try (Reader reader = new FileReader(path);
+             CSVParser csv = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader)) {
+            boolean namedColumns = csv.getHeaderMap().containsKey("lat_work");
+            for (CSVRecord record : csv) {
+                RouterOuterClass.Point from = namedColumns
+                        ? point(record.get("lat"), record.get("lng"))
+                        : point(record.get(0), record.get(1));
+                RouterOuterClass.Point to = namedColumns
+                        ? point(record.get("lat_work"), record.get("lng_work"))
+                        : point(record.get(2), record.get(3));
+                switch (method) {
+                    case "street":
+                        requests.add(new LoadRequest(RouterGrpc.getRouteStreetModeMethod(),
+                                RouterOuterClass.StreetRouteRequest.newBuilder()
+                                        .addPoints(from)
+                                        .addPoints(to)
+                                        .setProfile(profile)
+                                        .setReturnFullPathDetails(true)
+                                        .build()));
+                        break;
+                    case "custom":
+                        requests.add(new LoadRequest(RouterGrpc.getRouteCustomMethod(),
+                                RouterOuterClass.CustomRouteRequest.newBuilder()
+                                        .addPoints(from)
+                                        .addPoints(to)
+                                        .setProfile(profile)
+                                        .setCustomModel(customModel)
+                                        .setReturnFullPathDetails(true)
+                                        .build()));
+                        break;
+                    case "isochrone":
+                        requests.add(new LoadRequest(RouterGrpc.getRouteIsochroneMethod(),
+                                RouterOuterClass.IsochroneRouteRequest.newBuilder()
+                                        .setCenter(from)
+                                        .setMode(profile)
+                                        .setNBuckets(buckets)
+                                        .setTimeLimit(timeLimitSecs)
+                                        .setFullGeometry(true)
+                                        .build()));
+                        break;
+                    case "pt":
+                        // Same settings as the python client's defaults (and the old PerformanceTest)
+                        requests.add(new LoadRequest(RouterGrpc.getRoutePtMethod(),
+                                RouterOuterClass.PtRouteRequest.newBuilder()
+                                        .addPoints(from)
+                                        .addPoints(to)
+                                        .setEarliestDepartureTime(departureTime)
+                                        .setLimitSolutions(4)
+                                        .setMaxProfileDuration(10)
+                                        .setBetaWalkTime(1.5)
+                                        .setLimitStreetTimeSeconds(1440)
+                                        .setUsePareto(usePareto)
+                                        .setBetaTransfers(1440000)
+                                        .build()));
+                        break;
+                    case "pt_isochrone":
+                        requests.add(new LoadRequest(RouterGrpc.getRoutePtIsochroneMethod(),
+                                RouterOuterClass.PtIsochroneRouteRequest.newBuilder()
+                                        .setCenter(from)
+                                        .setNBuckets(buckets)
+                                        .setTimeLimit(timeLimitSecs)
+                                        .setEarliestDepartureTime(departureTime)
+                                        .build()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported method " + method
+                                + "; expected one of street, custom, isochrone, pt, pt_isochrone");
+                }
+            }
+        }
+        return requests;
+    }
+
+    private static RouterOuterClass.Point point(String lat, String lon) {
+        return RouterOuterClass.Point.newBuilder()
+                .setLat(Double.parseDouble(lat))
+                .setLon(Double.parseDouble(lon))
+                .build();
+    }
+
+    static class LoadRequest {
+        final MethodDescriptor<?, ?> method;
+        final Message request;
+
+        LoadRequest(MethodDescriptor<?, ?> method, Message request) {
+            this.method = method;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package scripts;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Timestamp;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.GraphHopperConfig;
+import com.graphhopper.gtfs.GraphHopperGtfs;
+import com.graphhopper.gtfs.PtRouter;
+import com.graphhopper.gtfs.PtRouterTripBasedImpl;
+import com.graphhopper.http.GraphHopperManaged;
+import com.graphhopper.isochrone.algorithm.JTSTriangulator;
+import com.graphhopper.jackson.Jackson;
+import com.replica.api.CustomStreetRouter;
+import com.replica.api.IsochroneRouter;
+import com.replica.api.StreetRouter;
+import com.replica.api.TransitRouter;
+import com.replica.util.ContourExecutor;
+import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import router.RouterOuterClass;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * In-process scaling benchmark for the routing engines. Replaces the single-threaded PerformanceTestJava: the graph is
+ * loaded once through GraphHopperManaged, then each workload is run with an increasing number of threads, so that
+ * throughput scaling (and where it stops scaling) can be measured without any gRPC or network overhead.
+ *
+ * Workloads call the same router classes the server uses, with O/D pairs from a CSV:
+ * - street: StreetRouter (CH, all profiles matching --profile)
+ * - custom: CustomStreetRouter (custom model, so CH is off)
+ * - isochrone: IsochroneRouter, centered on each origin
+ * - pt: TransitRouter (only if the graph was built with GTFS)
+ *
+ * For each workload and thread count, a row is written to the output CSV with throughput, latency percentiles,
+ * allocation rate (from per-thread allocation counters) and GC count/time over the measured period. Use it to size
+ * SERVER_THREADS and hardware: throughput should grow roughly linearly with threads until cores, memory bandwidth
+ * or contention run out, and allocation rate shows how much of that is being paid for in GC.
+ *
+ * Example, on the Roseville test data:
+ *   java -Xmx4g -cp graphhopper-grpc.jar scripts.ScalingBenchmark --config=configs/run_local_server_gh_config.yaml \
+ *       --od-file=web/test-data/micro_nor_cal_golden_od_set.csv --thread-counts=1,2,4,8 --output=scaling.csv
+ *
+ * Other options (with defaults): --workloads=street,custom,isochrone,pt, --thread-counts (powers of two up to the
+ * number of cores), --warmup-secs=10, --duration-secs=30, --profile=car, --custom-model-file,
+ * --departure-time=2019-10-15T13:30:00Z, --isochrone-time-limit-secs=600, --contour-threads=0 (isochrone contour
+ * pool shared by all workers; see CONTOUR_THREADS)
+ */
+public class ScalingBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(ScalingBenchmark.class);
+    private static final String[] OUTPUT_FILE_COLUMN_HEADERS = {"workload", "threads", "requests", "errors",
+            "throughput_qps", "mean_ms", "p50_ms", "p90_ms", "p99_ms", "max_ms", "alloc_mb_per_sec",
+            "alloc_kb_per_request", "gc_count", "gc_ms", "gc_time_pct"};
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+    // Used for the custom workload if no --custom-model-file is given
+    private static final String DEFAULT_CUSTOM_MODEL = "{\"speed\": [{\"if\": \"road_class == MOTORWAY\", \"multiply_by\": \"0.8\"}]}";
+
+    private static final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Routes the request with the given index (modulo the number of requests); returns false if routing failed
+     */
+    private interface Workload {
+        boolean route(long index);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parseOptions(args);
+        String configPath = options.get("config");
+        String odFilePath = options.get("od-file");
+        if (configPath == null || odFilePath == null) {
+            throw new IllegalArgumentException("--config and --od-file are required");
+        }
+        List<String> workloadNames = Arrays.asList(options.getOrDefault("workloads", "street,custom,isochrone,pt").split(","));
+        List<Integer> threadCounts = options.containsKey("thread-counts")
+                ? Arrays.stream(options.get("thread-counts").split(",")).map(Integer::parseInt).collect(Collectors.toList())
+                : defaultThreadCounts(Runtime.getRuntime().availableProcessors());
+        long warmupSecs = Long.parseLong(options.getOrDefault("warmup-secs", "10"));
+        long durationSecs = Long.parseLong(options.getOrDefault("duration-secs", "30"));
+        String outputPath = options.getOrDefault("output", "scaling.csv");
+
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            logger.warn("Per-thread allocation counters aren't supported by this JVM; allocation rates will be 0");
+        } else {
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        // Start GH instance based on config given as command-line arg
+        ObjectMapper yaml = Jackson.initObjectMapper(new ObjectMapper(new YAMLFactory()));
+        JsonNode yamlNode = yaml.readTree(new File(configPath));
+        GraphHopperConfig graphHopperConfiguration = yaml.convertValue(yamlNode.get("graphhopper"), GraphHopperConfig.class);
+        GraphHopperManaged graphHopperManaged = new GraphHopperManaged(graphHopperConfiguration);
+        graphHopperManaged.start();
+        GraphHopper graphHopper = graphHopperManaged.getGraphHopper();
+
+        List<double[]> odPairs = readOdPairs(odFilePath);
+        logger.info(odPairs.size() + " O/D pairs loaded from " + odFilePath);
+        Map<String, Workload> workloads = createWorkloads(graphHopper, graphHopperConfiguration, odPairs, options);
+
+        try (CSVPrinter printer = new CSVPrinter(new FileWriter(outputPath), CSVFormat.DEFAULT.withHeader(OUTPUT_FILE_COLUMN_HEADERS))) {
+            for (String workloadName : workloadNames) {
+                Workload workload = workloads.get(workloadName);
+                if (workload == null) {
+                    logger.warn("Skipping workload " + workloadName + ", which isn't available for this graph");
+                    continue;
+                }
+                for (int threads : threadCounts) {
+                    runConfiguration(workloadName, workload, threads, warmupSecs, durationSecs, printer);
+                    printer.flush();
+                }
+            }
+        } finally {
+            graphHopperManaged.stop();
+        }
+        logger.info("Done! Results written to " + outputPath);
+    }
+
+    private static void runConfiguration(String workloadName, Workload workload, int threads, long warmupSecs,
+                                         long durationSecs, CSVPrinter printer) throws Exception {
+        logger.info("Running " + workloadName + " with " + threads + " threads");
+        Recorder latencies = new Recorder(MAX_LATENCY_MICROS, 3);
+        LongAdder errors = new LongAdder();
+        LongAdder allocatedBytes = new LongAdder();
+        AtomicLong nextRequest = new AtomicLong();
+        long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSecs);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSecs);
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.submit(() -> {
+                long threadId = Thread.currentThread().getId();
+                long allocatedAtMeasureStart = -1;
+                long start;
+                while ((start = System.nanoTime()) < end) {
+                    boolean measured = start >= measureStart;
+                    if (measured && allocatedAtMeasureStart < 0) {
+                        allocatedAtMeasureStart = threadMXBean.getThreadAllocatedBytes(threadId);
+                    }
+                    boolean succeeded;
+                    try {
+                        succeeded = workload.route(nextRequest.getAndIncrement());
+                    } catch (Exception e) {
+                        succeeded = false;
+                    }
+                    if (measured) {
+                        latencies.recordValue(Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+                        if (!succeeded) {
+                            errors.increment();
+                        }
+                    }
+                }
+                if (allocatedAtMeasureStart >= 0) {
+                    allocatedBytes.add(threadMXBean.getThreadAllocatedBytes(threadId) - allocatedAtMeasureStart);
+                }
+            });
+        }
+
+        // GC activity is JVM-wide, so it's sampled around the measured period from here
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, measureStart - System.nanoTime()));
+        long[] gcAtStart = gcCountAndMillis();
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, end - System.nanoTime()));
+        long[] gcAtEnd = gcCountAndMillis();
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.MINUTES);
+
+        Histogram histogram = latencies.getIntervalHistogram();
+        double measuredSecs = durationSecs;
+        long requests = histogram.getTotalCount();
+        long gcMillis = gcAtEnd[1] - gcAtStart[1];
+        double throughput = requests / measuredSecs;
+        printer.printRecord(workloadName, threads, requests, errors.sum(), throughput,
+                histogram.getMean() / 1000.0,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getMaxValue() / 1000.0,
+                allocatedBytes.sum() / measuredSecs / (1024 * 1024),
+                requests > 0 ? allocatedBytes.sum() / 1024.0 / requests : 0,
+                gcAtEnd[0] - gcAtStart[0],
+                gcMillis,
+                100.0 * gcMillis / (measuredSecs * 1000));
+        logger.info(workloadName + " x " + threads + " threads: " + String.format("%.1f", throughput) + " requests/s, p50 "
+                + histogram.getValueAtPercentile(50) / 1000.0 + "ms, p99 " + histogram.getValueAtPercentile(99) / 1000.0
+                + "ms, " + gcMillis + "ms in GC");
+    }
+
+    private static long[] gcCountAndMillis() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gcBean.getCollectionCount());
+            millis += Math.max(0, gcBean.getCollectionTime());
+        }
+        return new long[]{count, millis};
+    }
+
+    private static Map<String, Workload> createWorkloads(GraphHopper graphHopper, GraphHopperConfig graphHopperConfiguration,
+                                                         List<double[]> odPairs, Map<String, String> options) throws Exception {
+        String profile = options.getOrDefault("profile", "car");
+        String customModel = options.containsKey("custom-model-file")
+                ? Files.readString(Paths.get(options.get("custom-model-file")))
+                : DEFAULT_CUSTOM_MODEL;
+        Timestamp departureTime = Timestamp.newBuilder()
+                .setSeconds(Instant.parse(options.getOrDefault("departure-time", "2019-10-15T13:30:00Z")).getEpochSecond())
+                .build();
+        int isochroneTimeLimitSecs = Integer.parseInt(options.getOrDefault("isochrone-time-limit-secs", "600"));
+        Map<String, String> customTags = Collections.emptyMap();
+
+        Map<String, Workload> workloads = new LinkedHashMap<>();
+
+        StreetRouter streetRouter = new StreetRouter(graphHopper, null, customTags);
+        List<RouterOuterClass.StreetRouteRequest> streetRequests = odPairs.stream()
+                .map(od -> RouterOuterClass.StreetRouteRequest.newBuilder()
+                        .addPoints(point(od[0], od[1]))
+                        .addPoints(point(od[2], od[3]))
+                        .setProfile(profile)
+                        .setReturnFullPathDetails(true)
+                        .build())
+                .collect(Collectors.toList());
+        workloads.put("street", index -> {
+            ResultObserver<RouterOuterClass.StreetRouteReply> observer = new ResultObserver<>();
+            streetRouter.routeStreetMode(streetRequests.get((int) (index % streetRequests.size())), observer);
+            return observer.succeeded;
+        });
+
+        CustomStreetRouter customStreetRouter = new CustomStreetRouter(graphHopper, null, customTags);
+        List<RouterOuterClass.CustomRouteRequest> customRequests = odPairs.stream()
+                .map(od -> RouterOuterClass.CustomRouteRequest.newBuilder()
+                        .addPoints(point(od[0], od[1]))
+                        .addPoints(point(od[2], od[3]))
+                        .setProfile(profile)
+                        .setCustomModel(customModel)
+                        .setReturnFullPathDetails(true)
+                        .build())
+                .collect(Collectors.toList());
+        workloads.put("custom", index -> {
+            ResultObserver<RouterOuterClass.StreetRouteReply> observer = new ResultObserver<>();
+            customStreetRouter.routeCustom(customRequests.get((int) (index % customRequests.size())), observer);
+            return observer.succeeded;
+        });
+
+        ContourExecutor contourExecutor = new ContourExecutor(Integer.parseInt(options.getOrDefault("contour-threads", "0")));
+        IsochroneRouter isochroneRouter = new IsochroneRouter(graphHopper, new JTSTriangulator(graphHopper.getRouterConfig()), null,
+                contourExecutor, null);
+        List<RouterOuterClass.IsochroneRouteRequest> isochroneRequests = odPairs.stream()
+                .map(od -> RouterOuterClass.IsochroneRouteRequest.newBuilder()
+                        .setCenter(point(od[0], od[1]))
+                        .setMode(profile)
+                        .setNBuckets(3)
+                        .setTimeLimit(isochroneTimeLimitSecs)
+                        .setFullGeometry(true)
+                        .build())
+                .collect(Collectors.toList());
+        workloads.put("isochrone", index -> {
+            ResultObserver<RouterOuterClass.IsochroneRouteReply> observer = new ResultObserver<>();
+            isochroneRouter.routeIsochrone(isochroneRequests.get((int) (index % isochroneRequests.size())), observer);
+            return observer.succeeded;
+        });
+
+        if (graphHopper instanceof GraphHopperGtfs) {
+            PtRouter ptRouter = new PtRouterTripBasedImpl(graphHopper, graphHopperConfiguration, graphHopper.getTranslationMap(),
+                    graphHopper.getBaseGraph(), graphHopper.getEncodingManager(), graphHopper.getLocationIndex(),
+                    ((GraphHopperGtfs) graphHopper).getGtfsStorage(), graphHopper.getPathDetailsBuilderFactory());
+            // Load GTFS link mapping and GTFS info maps the same way RouterServer does, so replies are built in full
+            Map<String, String> gtfsLinkMappings = null;
+            Map<String, List<String>> gtfsRouteInfo = null;
+            Map<String, String> gtfsFeedIdMapping = null;
+            File linkMappingsDbFile = new File("transit_data/gtfs_link_mappings/gtfs_link_mappings.db");
+            if (linkMappingsDbFile.exists()) {
+                DB db = DBMaker.newFileDB(linkMappingsDbFile).readOnly().make();
+                gtfsLinkMappings = db.getHashMap("gtfsLinkMappings");
+                gtfsRouteInfo = db.getHashMap("gtfsRouteInfo");
+                gtfsFeedIdMapping = db.getHashMap("gtfsFeedIdMap");
+            }
+            TransitRouter transitRouter = new TransitRouter(ptRouter, null, gtfsLinkMappings, gtfsRouteInfo, gtfsFeedIdMapping, null, customTags);
+            List<RouterOuterClass.PtRouteRequest> ptRequests = odPairs.stream()
+                    .map(od -> RouterOuterClass.PtRouteRequest.newBuilder()
+                            .addPoints(point(od[0], od[1]))
+                            .addPoints(point(od[2], od[3]))
+                            .setEarliestDepartureTime(departureTime)
+                            .setLimitSolutions(4)
+                            .setMaxProfileDuration(10)
+                            .setBetaWalkTime(1.5)
+                            .setLimitStreetTimeSeconds(1440)
+                            .setUsePareto(false)
+                            .setBetaTransfers(1440000)
+                            .build())
+                    .collect(Collectors.toList());
+            workloads.put("pt", index -> {
+                ResultObserver<RouterOuterClass.PtRouteReply> observer = new ResultObserver<>();
+                transitRouter.routePt(ptRequests.get((int) (index % ptRequests.size())), observer);
+                return observer.succeeded;
+            });
+        }
+        return workloads;
+    }
+
+    // O/D CSVs either have lat,lng,lat_work,lng_work columns, or origin and destination coordinates as their first 4 columns
+    private static List<double[]> readOdPairs(String path) throws Exception {
+        List<double[]> odPairs = new ArrayList<>();
+        try (Reader reader = new FileReader(path);
+             CSVParser csv = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader)) {
+            boolean namedColumns = csv.getHeaderMap().containsKey("lat_work");
+            for (CSVRecord record : csv) {
+                odPairs.add(namedColumns
+                        ? new double[]{Double.parseDouble(record.get("lat")), Double.parseDouble(record.get("lng")),
+                                Double.parseDouble(record.get("lat_work")), Double.parseDouble(record.get("lng_work"))}
+                        : new double[]{Double.parseDouble(record.get(0)), Double.parseDouble(record.get(1)),
+                                Double.parseDouble(record.get(2)), Double.parseDouble(record.get(3))});
+            }
+        }
+        return odPairs;
+    }
+
+    private static List<Integer> defaultThreadCounts(int cores) {
+        List<Integer> threadCounts = Lists.newArrayList();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+        return threadCounts;
+    }
+
+    private static RouterOuterClass.Point point(double lat, double lon) {
+        return RouterOuterClass.Point.newBuilder().setLat(lat).setLon(lon).build();
+    }
+
+    private static class ResultObserver<T> implements StreamObserver<T> {
+        boolean succeeded = false;
+
+        @Override
+        public void onNext(T value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            succeeded = false;
+        }
+
+        @Override
+        public void onCompleted() {
+            succeeded = true;
+        }
+    }
+}
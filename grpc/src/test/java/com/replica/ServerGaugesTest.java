@@ -0,0 +1,74 @@
+package com.replica;
+
+import com.replica.util.MetricTags;
+import com.replica.util.MetricsRegistry;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the executor and event loop gauges RouterServer registers, by blocking the executor's and an event loop's
+ * threads and queueing tasks behind them
+ */
+public class ServerGaugesTest {
+
+    @Test
+    public void testExecutorAndEventLoopGauges() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        ThreadPoolExecutor serverExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        EventLoopGroup workerEventLoopGroup = new NioEventLoopGroup(2);
+        EventLoopGroup bossEventLoopGroup = new NioEventLoopGroup(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            RouterServer.registerServerGauges(registry, new MetricTags(Map.of()), serverExecutor, workerEventLoopGroup, bossEventLoopGroup);
+
+            CountDownLatch blocked = new CountDownLatch(2);
+            Runnable block = () -> {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            };
+            serverExecutor.execute(block);
+            EventExecutor firstWorker = workerEventLoopGroup.iterator().next();
+            firstWorker.execute(block);
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                serverExecutor.execute(() -> {});
+                firstWorker.execute(() -> {});
+            }
+
+            assertEquals(3, gauge(registry, "server.executor_queue_depth", null));
+            assertEquals(1, gauge(registry, "server.executor_active_threads", null));
+            // One gauge per event loop
+            assertEquals(3, gauge(registry, "netty.event_loop_pending_tasks", "event_loop:worker-0"));
+            assertEquals(0, gauge(registry, "netty.event_loop_pending_tasks", "event_loop:worker-1"));
+            assertEquals(0, gauge(registry, "netty.event_loop_pending_tasks", "event_loop:boss-0"));
+        } finally {
+            release.countDown();
+            serverExecutor.shutdownNow();
+            workerEventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+            bossEventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    private static double gauge(MetricsRegistry registry, String name, String tag) {
+        return registry.snapshot().stream()
+                .filter(s -> s.isGauge() && s.getName().equals(name) && (tag == null || Arrays.asList(s.getTags()).contains(tag)))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("no gauge " + name + " " + tag))
+                .getValue();
+    }
+}
@@ -0,0 +1,194 @@
+package com.replica.util;
+
+import com.google.protobuf.ByteString;
+import com.timgroup.statsd.StatsDClient;
+import io.grpc.CallOptions;
+import io.grpc.Codec;
+import io.grpc.Decompressor;
+import io.grpc.DecompressorRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ServerCalls;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Calls a test service, over the Netty transport (the in-process transport doesn't compress), on a server set up with
+ * MessageCompression as RouterServer sets it up. Clients count the replies they have to decompress, so it's the
+ * per-message compression flag on the wire that's checked.
+ */
+public class MessageCompressionTest {
+
+    private static final int MIN_BYTES = 1024;
+
+    private static final MethodDescriptor.Marshaller<ByteString> BYTE_STRING_MARSHALLER = new MethodDescriptor.Marshaller<>() {
+        @Override
+        public InputStream stream(ByteString value) {
+            return value.newInput();
+        }
+
+        @Override
+        public ByteString parse(InputStream stream) {
+            try {
+                return ByteString.readFrom(stream);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    // Replies with as many (compressible) bytes as the number in the request
+    private static final MethodDescriptor<ByteString, ByteString> REPLY_METHOD =
+            MethodDescriptor.<ByteString, ByteString>newBuilder()
+                    .setType(MethodDescriptor.MethodType.UNARY)
+                    .setFullMethodName(MethodDescriptor.generateFullMethodName("test.CompressionTest", "Reply"))
+                    .setRequestMarshaller(BYTE_STRING_MARSHALLER)
+                    .setResponseMarshaller(BYTE_STRING_MARSHALLER)
+                    .build();
+
+    private static MetricsRegistry metricsRegistry;
+    // The registry doesn't flush to StatsD (no local aggregation), so measurements are sent as they're recorded
+    private static StatsDClient statsDClient;
+    private static Server server;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        ServerServiceDefinition service = ServerServiceDefinition.builder("test.CompressionTest")
+                .addMethod(REPLY_METHOD, ServerCalls.asyncUnaryCall((request, responseObserver) -> {
+                    byte[] reply = new byte[Integer.parseInt(request.toStringUtf8())];
+                    for (int i = 0; i < reply.length; i++) {
+                        reply[i] = (byte) ('a' + i % 10);
+                    }
+                    responseObserver.onNext(ByteString.copyFrom(reply));
+                    responseObserver.onCompleted();
+                }))
+                .build();
+        metricsRegistry = new MetricsRegistry();
+        statsDClient = mock(StatsDClient.class);
+        MessageCompression messageCompression = new MessageCompression(metricsRegistry, statsDClient, Map.of(), MIN_BYTES);
+        server = NettyServerBuilder.forPort(0)
+                .intercept(messageCompression.interceptor())
+                .compressorRegistry(messageCompression.compressorRegistry())
+                .decompressorRegistry(messageCompression.decompressorRegistry())
+                .addService(service)
+                .build()
+                .start();
+    }
+
+    @AfterAll
+    public static void stopServer() throws InterruptedException {
+        server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"lz4", "gzip"})
+    public void testLargeReplyIsCompressed(String encoding) throws InterruptedException {
+        CountingDecompressor decompressor = new CountingDecompressor(encoding.equals(Lz4Codec.ENCODING) ? new Lz4Codec() : new Codec.Gzip());
+        MetricsRegistry.SeriesSnapshot before = compressionSeries("server.compression_compressed_bytes", encoding);
+        ByteString reply = call(decompressor, 100_000);
+
+        assertEquals(100_000, reply.size());
+        assertEquals(1, decompressor.calls.get());
+        MetricsRegistry.SeriesSnapshot after = compressionSeries("server.compression_compressed_bytes", encoding);
+        assertNotNull(after);
+        assertEquals((before == null ? 0 : before.getCount()) + 1, after.getCount());
+        assertTrue(after.getSum() - (before == null ? 0 : before.getSum()) < 100_000);
+        verify(statsDClient, atLeastOnce()).histogram(eq("server.compression_compressed_bytes"), anyLong(), any(String[].class));
+        verify(statsDClient, atLeastOnce()).histogram(eq("server.compression_seconds"), anyDouble(), any(String[].class));
+    }
+
+    @Test
+    public void testLz4PreferredOverGzip() throws InterruptedException {
+        CountingDecompressor lz4 = new CountingDecompressor(new Lz4Codec());
+        CountingDecompressor gzip = new CountingDecompressor(new Codec.Gzip());
+        ManagedChannel channel = channel(DecompressorRegistry.emptyInstance().with(gzip, true).with(lz4, true));
+        try {
+            assertEquals(10_000, ClientCalls.blockingUnaryCall(channel, REPLY_METHOD, CallOptions.DEFAULT, ByteString.copyFromUtf8("10000")).size());
+        } finally {
+            channel.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(1, lz4.calls.get());
+        assertEquals(0, gzip.calls.get());
+    }
+
+    @Test
+    public void testSmallReplyIsNotCompressed() throws InterruptedException {
+        CountingDecompressor decompressor = new CountingDecompressor(new Lz4Codec());
+        ByteString reply = call(decompressor, MIN_BYTES - 1);
+
+        assertEquals(MIN_BYTES - 1, reply.size());
+        assertEquals(0, decompressor.calls.get());
+    }
+
+    private static ByteString call(Decompressor decompressor, int replyBytes) throws InterruptedException {
+        ManagedChannel channel = channel(DecompressorRegistry.emptyInstance().with(decompressor, true));
+        try {
+            return ClientCalls.blockingUnaryCall(channel, REPLY_METHOD, CallOptions.DEFAULT, ByteString.copyFromUtf8(Integer.toString(replyBytes)));
+        } finally {
+            channel.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    // The channel advertises (in grpc-accept-encoding) just the encodings in the registry
+    private static ManagedChannel channel(DecompressorRegistry decompressorRegistry) {
+        return NettyChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .decompressorRegistry(decompressorRegistry)
+                .build();
+    }
+
+    // Null if nothing has been recorded yet; values are cumulative across tests
+    private static MetricsRegistry.SeriesSnapshot compressionSeries(String name, String encoding) {
+        List<MetricsRegistry.SeriesSnapshot> snapshots = metricsRegistry.snapshot();
+        return snapshots.stream()
+                .filter(s -> s.getName().equals(name) && Arrays.asList(s.getTags()).contains("encoding:" + encoding))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static class CountingDecompressor implements Decompressor {
+        private final Decompressor decompressor;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        CountingDecompressor(Decompressor decompressor) {
+            this.decompressor = decompressor;
+        }
+
+        @Override
+        public String getMessageEncoding() {
+            return decompressor.getMessageEncoding();
+        }
+
+        @Override
+        public InputStream decompress(InputStream is) throws IOException {
+            calls.incrementAndGet();
+            return decompressor.decompress(is);
+        }
+    }
+}
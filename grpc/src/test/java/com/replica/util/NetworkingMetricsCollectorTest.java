@@ -0,0 +1,156 @@
+package com.replica.util;
+
+import com.timgroup.statsd.StatsDClient;
+import io.grpc.CallOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ServerCalls;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class NetworkingMetricsCollectorTest {
+
+    private static final MethodDescriptor.Marshaller<byte[]> BYTES_MARSHALLER = new MethodDescriptor.Marshaller<>() {
+        @Override
+        public InputStream stream(byte[] value) {
+            return new ByteArrayInputStream(value);
+        }
+
+        @Override
+        public byte[] parse(InputStream stream) {
+            return new byte[0];
+        }
+    };
+
+    // Replies once the test releases it
+    private static final MethodDescriptor<byte[], byte[]> HOLD_METHOD = MethodDescriptor.<byte[], byte[]>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName("test.NetworkingTest", "Hold"))
+            .setRequestMarshaller(BYTES_MARSHALLER)
+            .setResponseMarshaller(BYTES_MARSHALLER)
+            .build();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private MetricsRegistry registry;
+    private NetworkingMetricsCollector collector;
+    private CountDownLatch started;
+    private Server server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        registry = new MetricsRegistry();
+        collector = new NetworkingMetricsCollector(registry, null, Map.of());
+        started = new CountDownLatch(2);
+        ServerServiceDefinition service = ServerServiceDefinition.builder("test.NetworkingTest")
+                .addMethod(HOLD_METHOD, ServerCalls.asyncUnaryCall((request, responseObserver) -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    responseObserver.onNext(new byte[0]);
+                    responseObserver.onCompleted();
+                }))
+                .build();
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .intercept(collector.interceptor())
+                .addTransportFilter(collector.transportFilter())
+                .addService(service)
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    @Test
+    public void testInFlightCalls() throws Exception {
+        List<Future<byte[]>> replies = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            replies.add(ClientCalls.futureUnaryCall(channel.newCall(HOLD_METHOD, CallOptions.DEFAULT), new byte[0]));
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        collector.sample();
+        assertEquals(2, series("server.in_flight_calls", "method:Hold").getValueAtPercentile(100));
+        // Both calls are on the one in-process connection
+        assertEquals(1, series("server.open_connections", null).getValueAtPercentile(100));
+        assertEquals(2, series("server.in_flight_calls_per_connection", null).getValueAtPercentile(100));
+
+        release.countDown();
+        for (Future<byte[]> reply : replies) {
+            reply.get(10, TimeUnit.SECONDS);
+        }
+        // Calls are finished on the server shortly after their replies are sent
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        do {
+            assertTrue(System.nanoTime() < deadline, "calls never finished");
+            Thread.sleep(1);
+            collector.sample();
+        } while (series("server.in_flight_calls", "method:Hold").getValueAtPercentile(0) != 0);
+    }
+
+    @Test
+    public void testNoDuplicateServerGauges() {
+        // Executor and event loop saturation are RouterServer's gauges; the collector doesn't sample them again
+        collector.sample();
+        for (MetricsRegistry.SeriesSnapshot snapshot : registry.snapshot()) {
+            assertFalse(snapshot.getName().startsWith("netty.") || snapshot.getName().startsWith("server.executor"),
+                    snapshot.getName());
+        }
+    }
+
+    @Test
+    public void testSamplesSentToStatsD() {
+        // Without local aggregation, the registry doesn't flush to StatsD, so samples are sent as they're taken
+        StatsDClient statsDClient = mock(StatsDClient.class);
+        new NetworkingMetricsCollector(registry, statsDClient, Map.of()).sample();
+        verify(statsDClient).histogram(eq("server.open_connections"), eq(0L), any(String[].class));
+
+        // With it, they're only sent in the registry's aggregates (the registry doesn't flush during the test)
+        MetricsRegistry aggregatingRegistry = new MetricsRegistry();
+        StatsDClient aggregatedStatsDClient = mock(StatsDClient.class);
+        aggregatingRegistry.start(aggregatedStatsDClient, 3600);
+        new NetworkingMetricsCollector(aggregatingRegistry, aggregatedStatsDClient, Map.of()).sample();
+        verify(aggregatedStatsDClient, never()).histogram(eq("server.open_connections"), anyLong(), any(String[].class));
+    }
+
+    private MetricsRegistry.SeriesSnapshot series(String name, String tag) {
+        return registry.snapshot().stream()
+                .filter(s -> s.getName().equals(name) && (tag == null || Arrays.asList(s.getTags()).contains(tag)))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("nothing recorded for " + name));
+    }
+}
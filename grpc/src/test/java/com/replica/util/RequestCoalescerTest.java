@@ -0,0 +1,199 @@
+package com.replica.util;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The shared computation blocks until the test releases it, so that further requests are sure to arrive while it's
+ * in flight
+ */
+public class RequestCoalescerTest {
+
+    private static final String COALESCED_REQUESTS = "routers.coalesced_requests";
+
+    private MetricsRegistry metricsRegistry;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() {
+        metricsRegistry = new MetricsRegistry();
+        MetricUtils.setRegistry(metricsRegistry);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        MetricUtils.setRegistry(null);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOverlappingRequestsShareOneComputation() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(null, Map.of());
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger computations = new AtomicInteger();
+        Consumer<StreamObserver<ByteString>> computation = observer -> {
+            int n = computations.incrementAndGet();
+            awaitUninterruptibly(release);
+            observer.onNext(ByteString.copyFromUtf8("reply " + n));
+            observer.onCompleted();
+        };
+
+        RecordingObserver leader = new RecordingObserver();
+        executor.submit(() -> coalescer.execute("request", "car", computation, leader));
+        awaitInFlight(coalescer);
+
+        // These arrive while the first is being computed, so they wait for it, without blocking this thread
+        List<RecordingObserver> followers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            RecordingObserver follower = new RecordingObserver();
+            coalescer.execute("request", "car", computation, follower);
+            followers.add(follower);
+        }
+        assertEquals(3, coalescedRequests());
+        for (RecordingObserver follower : followers) {
+            assertEquals(1, follower.done.getCount());
+        }
+
+        release.countDown();
+        leader.await();
+        assertEquals(ByteString.copyFromUtf8("reply 1"), leader.reply);
+        for (RecordingObserver follower : followers) {
+            follower.await();
+            assertSame(leader.reply, follower.reply);
+        }
+        assertEquals(1, computations.get());
+        assertEquals(0, coalescer.getInFlightCount());
+
+        // Nothing is kept once the computation is done: the next identical request is computed again
+        RecordingObserver later = new RecordingObserver();
+        coalescer.execute("request", "car", computation, later);
+        later.await();
+        assertEquals(ByteString.copyFromUtf8("reply 2"), later.reply);
+        assertEquals(3, coalescedRequests());
+    }
+
+    @Test
+    public void testDifferentRequestsAreNotCoalesced() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(null, Map.of());
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingObserver blocked = new RecordingObserver();
+        executor.submit(() -> coalescer.execute("request", "car", observer -> {
+            awaitUninterruptibly(release);
+            observer.onNext(ByteString.copyFromUtf8("blocked"));
+            observer.onCompleted();
+        }, blocked));
+        awaitInFlight(coalescer);
+
+        RecordingObserver other = new RecordingObserver();
+        coalescer.execute("other request", "car", observer -> {
+            observer.onNext(ByteString.copyFromUtf8("other"));
+            observer.onCompleted();
+        }, other);
+        other.await();
+        assertEquals(ByteString.copyFromUtf8("other"), other.reply);
+        assertEquals(0, coalescedRequests());
+
+        release.countDown();
+        blocked.await();
+        assertEquals(ByteString.copyFromUtf8("blocked"), blocked.reply);
+    }
+
+    @Test
+    public void testErrorsAreShared() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(null, Map.of());
+        CountDownLatch release = new CountDownLatch(1);
+        Consumer<StreamObserver<ByteString>> computation = observer -> {
+            awaitUninterruptibly(release);
+            observer.onError(Status.NOT_FOUND.withDescription("no route").asRuntimeException());
+        };
+
+        RecordingObserver leader = new RecordingObserver();
+        executor.submit(() -> coalescer.execute("request", "car", computation, leader));
+        awaitInFlight(coalescer);
+        RecordingObserver follower = new RecordingObserver();
+        coalescer.execute("request", "car", computation, follower);
+
+        release.countDown();
+        leader.await();
+        follower.await();
+        assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(leader.error).getCode());
+        assertSame(leader.error, follower.error);
+        assertEquals(1, coalescedRequests());
+    }
+
+    @Test
+    public void testComputationWithoutReply() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(null, Map.of());
+        RecordingObserver observer = new RecordingObserver();
+        coalescer.execute("request", "car", o -> {}, observer);
+        observer.await();
+        assertEquals(Status.Code.INTERNAL, Status.fromThrowable(observer.error).getCode());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    private long coalescedRequests() {
+        return metricsRegistry.snapshot().stream()
+                .filter(s -> s.getName().equals(COALESCED_REQUESTS))
+                .mapToLong(MetricsRegistry.SeriesSnapshot::getCount)
+                .sum();
+    }
+
+    private static void awaitInFlight(RequestCoalescer coalescer) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (coalescer.getInFlightCount() == 0) {
+            assertTrue(System.nanoTime() < deadline, "request never started");
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class RecordingObserver implements StreamObserver<ByteString> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile ByteString reply;
+        private volatile Throwable error;
+
+        @Override
+        public void onNext(ByteString value) {
+            reply = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS), "no reply");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.replica.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TravelTimeRasterTest {
+
+    // Roughly the extent of a 30 minute drive around Roseville
+    private static final double MIN_LAT = 38.6;
+    private static final double MAX_LAT = 38.9;
+    private static final double MIN_LON = -121.5;
+    private static final double MAX_LON = -121.1;
+
+    @Test
+    public void testGridSize() {
+        TravelTimeRaster raster = new TravelTimeRaster(MIN_LAT, MAX_LAT, MIN_LON, MAX_LON, 100, 1);
+        assertTrue(raster.getWidth() * raster.getHeight() <= TravelTimeRaster.MAX_CELLS);
+        // ~33km north to south and ~35km west to east
+        assertEquals(334, raster.getHeight(), 2);
+        assertEquals(347, raster.getWidth(), 2);
+        assertEquals(TravelTimeRaster.HEADER_BYTES + raster.getWidth() * raster.getHeight() * 2, raster.toByteString().size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(doubles = {1, 0.01, 1e-9, 1e-300, Double.MIN_VALUE})
+    public void testTooManyCellsRejected(double cellSizeMeters) {
+        // Tiny cell sizes would overflow integer cell counts, so they must be caught before any cell is allocated
+        assertThrows(IllegalArgumentException.class,
+                () -> new TravelTimeRaster(MIN_LAT, MAX_LAT, MIN_LON, MAX_LON, cellSizeMeters, 1));
+    }
+
+    @Test
+    public void testSinglePoint() {
+        TravelTimeRaster raster = new TravelTimeRaster(MIN_LAT, MIN_LAT, MIN_LON, MIN_LON, 50, 1);
+        assertEquals(1, raster.getWidth());
+        assertEquals(1, raster.getHeight());
+    }
+}
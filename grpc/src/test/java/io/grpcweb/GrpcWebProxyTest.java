@@ -0,0 +1,316 @@
+/*
+ * Copyright 2020  Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.grpcweb;
+
+import static io.grpcweb.MessageFramerTest.randomBytes;
+import static io.grpcweb.MessageFramerTest.readAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Runs grpc-web requests through the proxy servlet, in Jetty, to a test service on an in-process gRPC server, as
+ * RouterServer sets them up. The test service works on raw bytes, so requests and replies can be checked byte for
+ * byte.
+ */
+public class GrpcWebProxyTest {
+  private static final String IN_PROCESS_SERVER_NAME = "grpc-web-proxy-test";
+  private static final String SERVICE_NAME = "grpcweb.test.TestService";
+  private static final String BINARY = "application/grpc-web+proto";
+  private static final String TEXT = "application/grpc-web-text";
+
+  private static final MethodDescriptor.Marshaller<byte[]> BYTES_MARSHALLER =
+      new MethodDescriptor.Marshaller<byte[]>() {
+        @Override
+        public InputStream stream(byte[] value) {
+          return new ByteArrayInputStream(value);
+        }
+
+        @Override
+        public byte[] parse(InputStream stream) {
+          try {
+            return readAll(stream);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+      };
+
+  // Replies with the request
+  private static final MethodDescriptor<byte[], byte[]> ECHO_METHOD = method(MethodType.UNARY, "Echo");
+  // Replies with as many copies of the request as its first byte
+  private static final MethodDescriptor<byte[], byte[]> REPEAT_METHOD = method(MethodType.SERVER_STREAMING, "Repeat");
+  // Streams 16KB messages, as fast as the client takes them, until the call is cancelled
+  private static final MethodDescriptor<byte[], byte[]> FOREVER_METHOD = method(MethodType.SERVER_STREAMING, "Forever");
+  // Never replies
+  private static final MethodDescriptor<byte[], byte[]> HANG_METHOD = method(MethodType.UNARY, "Hang");
+
+  // A permit is released each time the test service sees a call cancelled
+  private static final Semaphore sCancelledCalls = new Semaphore(0);
+
+  private static Server sGrpcServer;
+  private static org.eclipse.jetty.server.Server sJetty;
+  private static int sPort;
+
+  @BeforeAll
+  public static void startServers() throws Exception {
+    ServerServiceDefinition service = ServerServiceDefinition.builder(SERVICE_NAME)
+        .addMethod(ECHO_METHOD, ServerCalls.asyncUnaryCall((request, responseObserver) -> {
+          responseObserver.onNext(request);
+          responseObserver.onCompleted();
+        }))
+        .addMethod(REPEAT_METHOD, ServerCalls.asyncServerStreamingCall((request, responseObserver) -> {
+          for (int i = 0; i < request[0]; i++) {
+            responseObserver.onNext(request);
+          }
+          responseObserver.onCompleted();
+        }))
+        .addMethod(FOREVER_METHOD, ServerCalls.asyncServerStreamingCall((request, responseObserver) -> {
+          ServerCallStreamObserver<byte[]> call = (ServerCallStreamObserver<byte[]>) responseObserver;
+          call.setOnCancelHandler(sCancelledCalls::release);
+          byte[] message = new byte[16 * 1024];
+          call.setOnReadyHandler(() -> {
+            while (call.isReady() && !call.isCancelled()) {
+              call.onNext(message);
+            }
+          });
+        }))
+        .addMethod(HANG_METHOD, ServerCalls.asyncUnaryCall((request, responseObserver) ->
+            ((ServerCallStreamObserver<byte[]>) responseObserver).setOnCancelHandler(sCancelledCalls::release)))
+        .build();
+    sGrpcServer = InProcessServerBuilder.forName(IN_PROCESS_SERVER_NAME).addService(service).build().start();
+    GrpcWebProxy.init(IN_PROCESS_SERVER_NAME, List.of(service));
+
+    // Registered as RouterServer registers it
+    sJetty = new org.eclipse.jetty.server.Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    ServletHolder grpcWebServlet = new ServletHolder(new GrpcWebTrafficServlet());
+    grpcWebServlet.setAsyncSupported(true);
+    context.addServlet(grpcWebServlet, "/api/*");
+    sJetty.setHandler(context);
+    sJetty.start();
+    sPort = ((ServerConnector) sJetty.getConnectors()[0]).getLocalPort();
+  }
+
+  @AfterAll
+  public static void stopServers() throws Exception {
+    sJetty.stop();
+    sGrpcServer.shutdownNow();
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {BINARY, TEXT})
+  public void testUnary(String contentType) throws IOException {
+    // Larger than a pooled chunk, so framing and base64 coding both cross chunk boundaries
+    byte[] message = randomBytes(3 * BufferPool.CHUNK_SIZE + 1);
+    Reply reply = post("Echo", contentType, message, Map.of());
+
+    assertEquals(HttpURLConnection.HTTP_OK, reply.mHttpStatus);
+    assertEquals(contentType, reply.mContentType);
+    assertEquals(1, reply.mMessages.size());
+    assertArrayEquals(message, reply.mMessages.get(0));
+    assertEquals(0, reply.getGrpcStatus());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {BINARY, TEXT})
+  public void testServerStreaming(String contentType) throws IOException {
+    byte[] message = {3, 1, 4, 1, 5};
+    Reply reply = post("Repeat", contentType, message, Map.of());
+
+    assertEquals(HttpURLConnection.HTTP_OK, reply.mHttpStatus);
+    assertEquals(3, reply.mMessages.size());
+    for (byte[] received : reply.mMessages) {
+      assertArrayEquals(message, received);
+    }
+    assertEquals(0, reply.getGrpcStatus());
+  }
+
+  @Test
+  public void testEmptyStream() throws IOException {
+    Reply reply = post("Repeat", TEXT, new byte[] {0}, Map.of());
+    assertEquals(0, reply.mMessages.size());
+    assertEquals(0, reply.getGrpcStatus());
+  }
+
+  @Test
+  public void testUnknownMethod() throws IOException {
+    Reply reply = post("Missing", BINARY, new byte[] {1}, Map.of());
+    assertEquals(HttpURLConnection.HTTP_OK, reply.mHttpStatus);
+    assertEquals(0, reply.mMessages.size());
+    assertEquals(12, reply.getGrpcStatus());
+  }
+
+  @Test
+  public void testMalformedBody() throws IOException {
+    // Text content type, but not base64
+    HttpURLConnection connection = send("Echo", TEXT, "not*base64".getBytes(StandardCharsets.US_ASCII), Map.of());
+    assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+
+    // A frame prefix claiming more bytes than the body has
+    byte[] truncated = Arrays.copyOf(frame(new byte[10]), 8);
+    connection = send("Echo", BINARY, truncated, Map.of());
+    assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+  }
+
+  @Test
+  public void testUnsupportedContentType() throws IOException {
+    HttpURLConnection connection = send("Echo", "application/json", new byte[0], Map.of());
+    assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    Reply reply = post("Hang", BINARY, new byte[] {1}, Map.of("grpc-timeout", "200m"));
+
+    assertEquals(HttpURLConnection.HTTP_OK, reply.mHttpStatus);
+    assertEquals(0, reply.mMessages.size());
+    // DEADLINE_EXCEEDED
+    assertEquals(4, reply.getGrpcStatus());
+    assertTrue(sCancelledCalls.tryAcquire(10, TimeUnit.SECONDS), "call wasn't cancelled at its deadline");
+  }
+
+  @Test
+  public void testClientCancel() throws Exception {
+    byte[] body = frame(new byte[] {1});
+    try (Socket socket = new Socket("localhost", sPort)) {
+      OutputStream out = socket.getOutputStream();
+      out.write(("POST /api/" + SERVICE_NAME + "/Forever HTTP/1.1\r\n"
+          + "Host: localhost\r\n"
+          + "Content-Type: " + BINARY + "\r\n"
+          + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.write(body);
+      out.flush();
+      // Wait for the stream to start, then go away without reading the rest of it
+      assertTrue(socket.getInputStream().read(new byte[1024]) > 0);
+    }
+    assertTrue(sCancelledCalls.tryAcquire(10, TimeUnit.SECONDS), "call wasn't cancelled when the client went away");
+  }
+
+  private static MethodDescriptor<byte[], byte[]> method(MethodType type, String name) {
+    return MethodDescriptor.<byte[], byte[]>newBuilder()
+        .setType(type)
+        .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, name))
+        .setRequestMarshaller(BYTES_MARSHALLER)
+        .setResponseMarshaller(BYTES_MARSHALLER)
+        .build();
+  }
+
+  private static byte[] frame(byte[] message) throws IOException {
+    return readAll(new MessageFramer().frame(message, MessageFramer.Type.DATA).newInputStream());
+  }
+
+  private static HttpURLConnection send(String method, String contentType, byte[] body, Map<String, String> headers)
+      throws IOException {
+    HttpURLConnection connection = (HttpURLConnection)
+        new URL("http://localhost:" + sPort + "/api/" + SERVICE_NAME + "/" + method).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", contentType);
+    headers.forEach(connection::setRequestProperty);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    }
+    return connection;
+  }
+
+  /** Sends the message, framed (and base64 encoded, for text), and reads the reply */
+  private static Reply post(String method, String contentType, byte[] message, Map<String, String> headers)
+      throws IOException {
+    boolean isText = contentType.equals(TEXT);
+    byte[] body = isText ? Base64.getEncoder().encode(frame(message)) : frame(message);
+    HttpURLConnection connection = send(method, contentType, body, headers);
+    int status = connection.getResponseCode();
+    byte[] replyBody = status == HttpURLConnection.HTTP_OK ? readAll(connection.getInputStream()) : new byte[0];
+    return new Reply(status, connection.getContentType(), isText ? decodeBase64Frames(replyBody) : replyBody);
+  }
+
+  /** Each frame of a text reply is encoded separately, so there may be padding part way through */
+  private static byte[] decodeBase64Frames(byte[] body) {
+    ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    for (int i = 0; i < body.length; i += 4) {
+      byte[] quantum = Base64.getDecoder().decode(Arrays.copyOfRange(body, i, i + 4));
+      decoded.write(quantum, 0, quantum.length);
+    }
+    return decoded.toByteArray();
+  }
+
+  private static class Reply {
+    private final int mHttpStatus;
+    private final String mContentType;
+    private final List<byte[]> mMessages = new ArrayList<>();
+    private final StringBuilder mTrailer = new StringBuilder();
+
+    Reply(int httpStatus, String contentType, byte[] frames) {
+      mHttpStatus = httpStatus;
+      mContentType = contentType;
+      ByteBuffer buffer = ByteBuffer.wrap(frames);
+      while (buffer.hasRemaining()) {
+        byte type = buffer.get();
+        byte[] contents = new byte[buffer.getInt()];
+        buffer.get(contents);
+        if (type == MessageFramer.Type.DATA.value) {
+          mMessages.add(contents);
+        } else {
+          mTrailer.append(new String(contents, StandardCharsets.US_ASCII));
+        }
+      }
+    }
+
+    int getGrpcStatus() {
+      for (String line : mTrailer.toString().split("\r\n")) {
+        if (line.startsWith("grpc-status:")) {
+          return Integer.parseInt(line.substring("grpc-status:".length()));
+        }
+      }
+      throw new AssertionError("no grpc-status in trailer: " + mTrailer);
+    }
+  }
+}
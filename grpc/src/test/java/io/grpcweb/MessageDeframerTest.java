@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020  Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.grpcweb;
+
+import static io.grpcweb.MessageFramerTest.randomBytes;
+import static io.grpcweb.MessageFramerTest.readAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.grpcweb.MessageHandler.ContentType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import org.junit.jupiter.api.Test;
+
+public class MessageDeframerTest {
+  private final MessageFramer mFramer = new MessageFramer();
+
+  @Test
+  public void testBinaryRoundTrip() throws IOException {
+    byte[] message = randomBytes(1000);
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_BINARY);
+    byte[] body = frame(message);
+
+    assertTrue(deframer.processInput(body, 0, body.length));
+    assertTrue(deframer.finish());
+    assertEquals(1, deframer.getNumberOfFrames());
+    assertEquals(message.length, deframer.getLength());
+    assertArrayEquals(message, readAll(deframer.getMessageStream()));
+  }
+
+  @Test
+  public void testBinaryOneByteAtATime() throws IOException {
+    byte[] message = randomBytes(BufferPool.CHUNK_SIZE + 3);
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_BINARY);
+    assertTrue(feed(deframer, frame(message), 1));
+    assertTrue(deframer.finish());
+    assertArrayEquals(message, readAll(deframer.getMessageStream()));
+  }
+
+  @Test
+  public void testDataFramesAreConcatenated() throws IOException {
+    byte[] first = randomBytes(10);
+    byte[] second = randomBytes(20);
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_BINARY);
+    assertTrue(feed(deframer, concat(frame(first), frame(second)), 7));
+    assertTrue(deframer.finish());
+    assertEquals(2, deframer.getNumberOfFrames());
+    assertArrayEquals(concat(first, second), readAll(deframer.getMessageStream()));
+  }
+
+  @Test
+  public void testEmptyMessage() throws IOException {
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_BINARY);
+    assertTrue(feed(deframer, frame(new byte[0]), 5));
+    assertTrue(deframer.finish());
+    assertEquals(1, deframer.getNumberOfFrames());
+    assertEquals(0, deframer.getLength());
+  }
+
+  @Test
+  public void testTrailerFrameEndsData() throws IOException {
+    byte[] message = randomBytes(10);
+    byte[] trailer = readAll(mFramer.frame("x:y\r\n".getBytes(StandardCharsets.US_ASCII),
+        MessageFramer.Type.TRAILER).newInputStream());
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_BINARY);
+    assertTrue(feed(deframer, concat(frame(message), trailer, frame(randomBytes(5))), 4));
+    assertTrue(deframer.finish());
+    assertEquals(1, deframer.getNumberOfFrames());
+    assertArrayEquals(message, readAll(deframer.getMessageStream()));
+  }
+
+  @Test
+  public void testTextRoundTrip() throws IOException {
+    // A multiple of neither 3 nor 4, so there's padding, and chunks split base64 quanta
+    byte[] message = randomBytes(2 * BufferPool.CHUNK_SIZE + 1);
+    byte[] body = Base64.getEncoder().encode(frame(message));
+    for (int chunkSize : new int[] {1, 3, 5, 4099, body.length}) {
+      MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_TEXT);
+      assertTrue(feed(deframer, body, chunkSize));
+      assertTrue(deframer.finish());
+      assertArrayEquals(message, readAll(deframer.getMessageStream()), "chunk size " + chunkSize);
+    }
+  }
+
+  @Test
+  public void testTextWithPaddingInTheMiddle() throws IOException {
+    // Clients that encode each chunk they send separately produce padding part way through the body
+    byte[] framed = frame(randomBytes(100));
+    byte[] body = concat(
+        Base64.getEncoder().encode(Arrays.copyOfRange(framed, 0, 4)),
+        Base64.getEncoder().encode(Arrays.copyOfRange(framed, 4, 50)),
+        Base64.getEncoder().encode(Arrays.copyOfRange(framed, 50, framed.length)));
+    assertTrue(new String(body, StandardCharsets.US_ASCII).indexOf('=') < body.length - 4);
+
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_TEXT);
+    assertTrue(feed(deframer, body, 3));
+    assertTrue(deframer.finish());
+    assertArrayEquals(Arrays.copyOfRange(framed, MessageFramer.PREFIX_LENGTH, framed.length),
+        readAll(deframer.getMessageStream()));
+  }
+
+  @Test
+  public void testFrameLengthIsUnsigned() {
+    // A frame of 4GB - 1 bytes: a signed length would be negative. The body is cut short, so it isn't complete, but
+    // the bytes that did arrive are all part of the message.
+    byte[] prefix = mFramer.getPrefix(MessageFramer.MAX_FRAME_LENGTH, MessageFramer.Type.DATA);
+    byte[] body = concat(prefix, randomBytes(100));
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_BINARY);
+    assertTrue(deframer.processInput(body, 0, body.length));
+    assertEquals(1, deframer.getNumberOfFrames());
+    assertEquals(100, deframer.getLength());
+    assertFalse(deframer.finish());
+  }
+
+  @Test
+  public void testInvalidBase64() {
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_TEXT);
+    byte[] body = "AAAA*AAA".getBytes(StandardCharsets.US_ASCII);
+    assertFalse(deframer.processInput(body, 0, body.length));
+  }
+
+  @Test
+  public void testInvalidPadding() {
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_TEXT);
+    byte[] body = "QQ=A".getBytes(StandardCharsets.US_ASCII);
+    assertFalse(deframer.processInput(body, 0, body.length));
+  }
+
+  @Test
+  public void testIncompleteBase64Quantum() throws IOException {
+    byte[] body = Base64.getEncoder().encode(frame(randomBytes(3)));
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_TEXT);
+    assertTrue(deframer.processInput(body, 0, body.length - 1));
+    assertFalse(deframer.finish());
+  }
+
+  @Test
+  public void testTruncatedFrame() throws IOException {
+    byte[] body = frame(randomBytes(10));
+    MessageDeframer deframer = new MessageDeframer(ContentType.GRPC_WEB_BINARY);
+    assertTrue(deframer.processInput(body, 0, body.length - 1));
+    assertFalse(deframer.finish());
+
+    MessageDeframer prefixOnly = new MessageDeframer(ContentType.GRPC_WEB_BINARY);
+    assertTrue(prefixOnly.processInput(body, 0, 3));
+    assertFalse(prefixOnly.finish());
+  }
+
+  @Test
+  public void testEmptyBody() {
+    assertFalse(new MessageDeframer(ContentType.GRPC_WEB_BINARY).finish());
+    assertFalse(new MessageDeframer(ContentType.GRPC_WEB_TEXT).finish());
+  }
+
+  private byte[] frame(byte[] message) throws IOException {
+    return readAll(mFramer.frame(message, MessageFramer.Type.DATA).newInputStream());
+  }
+
+  /** Feeds the body to the deframer in chunks of the given size, as the servlet would as it arrives */
+  private static boolean feed(MessageDeframer deframer, byte[] body, int chunkSize) {
+    for (int off = 0; off < body.length; off += chunkSize) {
+      // copied, so the deframer can't read past the chunk
+      byte[] chunk = Arrays.copyOfRange(body, off, Math.min(off + chunkSize, body.length));
+      if (!deframer.processInput(chunk, 0, chunk.length)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020  Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.grpcweb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.grpc.KnownLength;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class MessageFramerTest {
+  private final MessageFramer mFramer = new MessageFramer();
+
+  @Test
+  public void testFrameHasPrefixThenMessage() throws IOException {
+    byte[] message = randomBytes(300);
+    byte[] framed = readAll(mFramer.frame(message, MessageFramer.Type.DATA).newInputStream());
+
+    assertEquals(MessageFramer.PREFIX_LENGTH + message.length, framed.length);
+    assertArrayEquals(new byte[] {0x00, 0x00, 0x00, 0x01, 0x2c}, Arrays.copyOf(framed, MessageFramer.PREFIX_LENGTH));
+    assertArrayEquals(message, Arrays.copyOfRange(framed, MessageFramer.PREFIX_LENGTH, framed.length));
+  }
+
+  @Test
+  public void testEmptyMessage() throws IOException {
+    byte[] framed = readAll(mFramer.frame(new byte[0], MessageFramer.Type.DATA).newInputStream());
+    assertArrayEquals(new byte[] {0x00, 0x00, 0x00, 0x00, 0x00}, framed);
+  }
+
+  @Test
+  public void testTrailerFrameType() throws IOException {
+    byte[] framed = readAll(mFramer.frame("grpc-status:0\r\n".getBytes(), MessageFramer.Type.TRAILER).newInputStream());
+    assertEquals((byte) 0x80, framed[0]);
+    assertEquals(15, framed[4]);
+  }
+
+  @Test
+  public void testMessageLargerThanAChunk() throws IOException {
+    byte[] message = randomBytes(3 * BufferPool.CHUNK_SIZE + 7);
+    ChunkedBuffer frame = mFramer.frame(message, MessageFramer.Type.DATA);
+    assertEquals(MessageFramer.PREFIX_LENGTH + message.length, frame.size());
+
+    InputStream in = frame.newInputStream();
+    assertTrue(in instanceof KnownLength);
+    byte[] framed = readAll(in);
+    assertArrayEquals(mFramer.getPrefix(message.length, MessageFramer.Type.DATA),
+        Arrays.copyOf(framed, MessageFramer.PREFIX_LENGTH));
+    assertArrayEquals(message, Arrays.copyOfRange(framed, MessageFramer.PREFIX_LENGTH, framed.length));
+    assertTrue(frame.isEmpty());
+  }
+
+  @Test
+  public void testPrefixLengthIsUnsigned() {
+    // Lengths from 2GB up to 4GB - 1 fit the prefix's unsigned 32-bit length
+    assertArrayEquals(new byte[] {0x00, (byte) 0x80, 0x00, 0x00, 0x00},
+        mFramer.getPrefix(1L << 31, MessageFramer.Type.DATA));
+    assertArrayEquals(new byte[] {0x00, (byte) 0xb2, (byte) 0xd0, 0x5e, 0x00},
+        mFramer.getPrefix(3_000_000_000L, MessageFramer.Type.DATA));
+    assertArrayEquals(new byte[] {0x00, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff},
+        mFramer.getPrefix(MessageFramer.MAX_FRAME_LENGTH, MessageFramer.Type.DATA));
+  }
+
+  @Test
+  public void testBase64EncodeAcrossChunks() throws IOException {
+    // Not a multiple of 3, so the encoding ends in padding, and the chunk boundaries fall inside base64 quanta
+    byte[] message = randomBytes(2 * BufferPool.CHUNK_SIZE + 100);
+    ChunkedBuffer frame = mFramer.frame(message, MessageFramer.Type.DATA);
+    byte[] expected = readAll(mFramer.frame(message, MessageFramer.Type.DATA).newInputStream());
+
+    ChunkedBuffer encoded = frame.base64Encode();
+    assertTrue(frame.isEmpty());
+    assertEquals(Base64.getEncoder().encodeToString(expected), new String(readAll(encoded.newInputStream())));
+  }
+
+  @Test
+  public void testPollChunks() throws IOException {
+    byte[] message = randomBytes(BufferPool.CHUNK_SIZE + 10);
+    ChunkedBuffer frame = mFramer.frame(message, MessageFramer.Type.DATA);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    while (!frame.isEmpty()) {
+      int length = frame.headChunkLength();
+      byte[] chunk = frame.pollChunk();
+      out.write(chunk, 0, length);
+      BufferPool.release(chunk);
+    }
+    byte[] framed = out.toByteArray();
+    assertEquals(MessageFramer.PREFIX_LENGTH + message.length, framed.length);
+    assertArrayEquals(message, Arrays.copyOfRange(framed, MessageFramer.PREFIX_LENGTH, framed.length));
+  }
+
+  @Test
+  public void testPollChunkAfterPartialReadFails() throws IOException {
+    ChunkedBuffer frame = mFramer.frame(randomBytes(10), MessageFramer.Type.DATA);
+    frame.newInputStream().read();
+    assertThrows(IllegalStateException.class, frame::pollChunk);
+    frame.release();
+    assertTrue(frame.isEmpty());
+  }
+
+  static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  static byte[] readAll(InputStream in) throws IOException {
+    try (in) {
+      return in.readAllBytes();
+    }
+  }
+}
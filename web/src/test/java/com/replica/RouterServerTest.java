@@ -24,29 +24,47 @@ import com.graphhopper.ReplicaPathDetails;
 import com.graphhopper.gtfs.GraphHopperGtfs;
 import com.graphhopper.gtfs.PtRouter;
 import com.graphhopper.gtfs.PtRouterTripBasedImpl;
+import com.replica.util.RequestOptions;
+import com.replica.util.SnapCache;
+import com.replica.util.StageTimingInterceptor;
+import com.replica.util.TravelTimeRaster;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.protobuf.services.ProtoReflectionService;
+import io.grpc.stub.MetadataUtils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
 import org.locationtech.jts.io.WKTReader;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import router.RouterExtensionsOuterClass;
 import router.RouterOuterClass;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -141,24 +159,25 @@ public class RouterServerTest extends ReplicaGraphHopperTest {
     private static router.RouterGrpc.RouterBlockingStub routerStub = null;
     private static WKTReader wktReader = new WKTReader();
 
+    private static GraphHopper graphHopper = null;
+    private static PtRouter ptRouter = null;
+    private static Map<String, String> gtfsLinkMappings = null;
+    private static Map<String, List<String>> gtfsRouteInfo = null;
+    private static Map<String, String> gtfsFeedIdMapping = null;
+
     @BeforeAll
     public static void startTestServer() throws Exception {
         // Grab instances of auto/bike/ped router and PT router
-        GraphHopper graphHopper = graphHopperManaged.getGraphHopper();
-        PtRouter ptRouter = null;
+        graphHopper = graphHopperManaged.getGraphHopper();
         if (graphHopper instanceof GraphHopperGtfs) {
             ptRouter = new PtRouterTripBasedImpl(graphHopper, graphHopperConfiguration,
                     graphHopper.getTranslationMap(), graphHopper.getBaseGraph(),
-                    graphHopper.getEncodingManager(), graphHopper.getLocationIndex(),
+                    graphHopper.getEncodingManager(), SnapCache.requestScopedLocationIndex(graphHopper.getLocationIndex()),
                     ((GraphHopperGtfs) graphHopper).getGtfsStorage(),
                     graphHopper.getPathDetailsBuilderFactory());
         }
 
         // Load GTFS link mapping and GTFS info maps for use in building responses
-        Map<String, String> gtfsLinkMappings = null;
-        Map<String, List<String>> gtfsRouteInfo = null;
-        Map<String, String> gtfsFeedIdMapping = null;
-
         File linkMappingsDbFile = new File("transit_data/gtfs_link_mappings/gtfs_link_mappings.db");
         if (linkMappingsDbFile.exists()) {
             DB db = DBMaker.newFileDB(linkMappingsDbFile).readOnly().make();
@@ -167,19 +186,23 @@ public class RouterServerTest extends ReplicaGraphHopperTest {
             gtfsFeedIdMapping = db.getHashMap("gtfsFeedIdMap");
         }
 
-        // Start in-process test server + instantiate stub
+        routerStub = router.RouterGrpc.newBlockingStub(startInProcessServer(Map.of()));
+    }
+
+    // Starts an in-process test server with the given properties, and returns a channel connected to it
+    private static ManagedChannel startInProcessServer(Map<String, Integer> properties) throws Exception {
+        RouterImpl routerImpl = new RouterImpl(graphHopper, ptRouter, gtfsLinkMappings,
+                gtfsRouteInfo, gtfsFeedIdMapping, null, TEST_REGION_NAME, TEST_RELEASE_NAME, properties);
         String uniqueName = InProcessServerBuilder.generateName();
         InProcessServerBuilder.forName(uniqueName)
                 .directExecutor() // directExecutor is fine for unit tests
-                .addService(new RouterImpl(graphHopper, ptRouter, gtfsLinkMappings,
-                        gtfsRouteInfo, gtfsFeedIdMapping, null, TEST_REGION_NAME, TEST_RELEASE_NAME))
+                .addService(routerImpl)
+                .addService(routerImpl.bindExtensionsService())
                 .addService(ProtoReflectionService.newInstance())
                 .build().start();
-        ManagedChannel channel = InProcessChannelBuilder.forName(uniqueName)
+        return InProcessChannelBuilder.forName(uniqueName)
                 .directExecutor()
                 .build();
-
-        routerStub = router.RouterGrpc.newBlockingStub(channel);
     }
 
     private static RouterOuterClass.StreetRouteRequest createStreetRequest(String mode, boolean alternatives,
@@ -584,6 +607,26 @@ public class RouterServerTest extends ReplicaGraphHopperTest {
         assertSame(exception.getStatus().getCode(), Status.NOT_FOUND.getCode());
     }
 
+    @Test
+    public void testStreamingPublicTransitQuery() {
+        // Streamed paths should match the paths of the unary reply, one path per streamed reply, in the same order
+        final RouterOuterClass.PtRouteReply response = routerStub.routePt(PT_REQUEST_DIFF_FEEDS);
+        router.RouterExtensionsGrpc.RouterExtensionsBlockingStub extensionsStub =
+                router.RouterExtensionsGrpc.newBlockingStub(routerStub.getChannel());
+        List<RouterOuterClass.PtPath> streamedPaths = Lists.newArrayList();
+        extensionsStub.routePtStream(PT_REQUEST_DIFF_FEEDS).forEachRemaining(reply -> {
+            assertEquals(1, reply.getPathsCount());
+            streamedPaths.add(reply.getPaths(0));
+        });
+        assertEquals(response.getPathsList(), streamedPaths);
+
+        RouterOuterClass.PtRouteRequest badPtRequest = PT_REQUEST_DIFF_FEEDS.toBuilder()
+                .setPoints(0, RouterOuterClass.Point.newBuilder().setLat(38.0).setLon(-94.0).build()).build();
+        StatusRuntimeException exception = assertThrows(StatusRuntimeException.class, () ->
+                extensionsStub.routePtStream(badPtRequest).hasNext());
+        assertSame(exception.getStatus().getCode(), Status.NOT_FOUND.getCode());
+    }
+
     @Test
     public void testBadTimeTransit() {
         RouterOuterClass.PtRouteRequest badPtRequest = PT_REQUEST_DIFF_FEEDS.toBuilder()
@@ -709,6 +752,283 @@ public class RouterServerTest extends ReplicaGraphHopperTest {
         assertEquals(expectedProfilesAfterDuplicatesFiltered, responseWithoutDuplicatesProfiles);
     }
 
+    @Test
+    public void testGeometryFormats() throws Exception {
+        final RouterOuterClass.StreetRouteReply wktResponse = routerStub.routeStreetMode(AUTO_REQUEST);
+        LineString wktGeometry = (LineString) wktReader.read(wktResponse.getPaths(0).getPoints());
+
+        // WKB geometry should be identical to WKT geometry
+        final RouterOuterClass.StreetRouteReply wkbResponse = withGeometryFormat("wkb", null).routeStreetMode(AUTO_REQUEST);
+        Geometry wkbGeometry = new WKBReader().read(Base64.getDecoder().decode(wkbResponse.getPaths(0).getPoints()));
+        assertTrue(wktGeometry.equalsExact(wkbGeometry, 1e-9));
+
+        // Polyline geometry should match WKT geometry up to the requested precision
+        final RouterOuterClass.StreetRouteReply polylineResponse = withGeometryFormat("polyline", "6").routeStreetMode(AUTO_REQUEST);
+        List<double[]> polylinePoints = decodePolyline(polylineResponse.getPaths(0).getPoints(), 6);
+        assertEquals(wktGeometry.getNumPoints(), polylinePoints.size());
+        for (int i = 0; i < polylinePoints.size(); i++) {
+            assertEquals(wktGeometry.getCoordinateN(i).y, polylinePoints.get(i)[0], 1e-6);
+            assertEquals(wktGeometry.getCoordinateN(i).x, polylinePoints.get(i)[1], 1e-6);
+        }
+
+        // Other path fields are unaffected by geometry format
+        final RouterOuterClass.StreetRouteReply noGeometryResponse = withGeometryFormat("none", null).routeStreetMode(AUTO_REQUEST);
+        assertEquals("", noGeometryResponse.getPaths(0).getPoints());
+        assertEquals(wktResponse.getPaths(0).toBuilder().clearPoints().build(), noGeometryResponse.getPaths(0));
+
+        // Bad options, and formats that can't represent polygons, are rejected
+        StatusRuntimeException exception = assertThrows(StatusRuntimeException.class,
+                () -> withGeometryFormat("geojson", null).routeStreetMode(AUTO_REQUEST));
+        assertSame(exception.getStatus().getCode(), Status.INVALID_ARGUMENT.getCode());
+        exception = assertThrows(StatusRuntimeException.class,
+                () -> withGeometryFormat("polyline", null).routeIsochrone(STREET_ISOCHRONE_REQUEST_THREE_BUCKET));
+        assertSame(exception.getStatus().getCode(), Status.INVALID_ARGUMENT.getCode());
+    }
+
+    @Test
+    public void testSummaryOnlyQuery() {
+        Metadata headers = new Metadata();
+        headers.put(RequestOptions.SUMMARY_ONLY_HEADER, "true");
+        router.RouterGrpc.RouterBlockingStub summaryStub = routerStub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+
+        // Summary-only paths have the same durations and distances as full paths, but nothing else
+        for (RouterOuterClass.StreetRouteRequest request : List.of(AUTO_REQUEST, AUTO_REQUEST_WITH_ALTERNATIVES)) {
+            final RouterOuterClass.StreetRouteReply fullResponse = routerStub.routeStreetMode(request);
+            final RouterOuterClass.StreetRouteReply summaryResponse = summaryStub.routeStreetMode(request);
+            assertEquals(fullResponse.getPathsCount(), summaryResponse.getPathsCount());
+            for (int i = 0; i < fullResponse.getPathsCount(); i++) {
+                RouterOuterClass.StreetPath fullPath = fullResponse.getPaths(i);
+                assertEquals(RouterOuterClass.StreetPath.newBuilder()
+                        .setDurationMillis(fullPath.getDurationMillis())
+                        .setDistanceMeters(fullPath.getDistanceMeters())
+                        .setProfile(fullPath.getProfile())
+                        .build(), summaryResponse.getPaths(i));
+            }
+        }
+    }
+
+    @Test
+    public void testStageTimingTrailer() {
+        Metadata headers = new Metadata();
+        headers.put(StageTimingInterceptor.STAGE_TIMING_HEADER, "true");
+        AtomicReference<Metadata> responseHeaders = new AtomicReference<>();
+        AtomicReference<Metadata> trailers = new AtomicReference<>();
+        router.RouterGrpc.RouterBlockingStub timedStub = routerStub.withInterceptors(
+                MetadataUtils.newAttachHeadersInterceptor(headers),
+                MetadataUtils.newCaptureMetadataInterceptor(responseHeaders, trailers));
+
+        timedStub.routeStreetMode(AUTO_REQUEST);
+        String timings = trailers.get().get(StageTimingInterceptor.STAGE_TIMING_TRAILER);
+        assertNotNull(timings);
+        assertTrue(timings.contains("route="));
+        assertTrue(timings.contains("serialize="));
+
+        // Calls that don't ask for timings aren't sampled by default
+        routerStub.withInterceptors(MetadataUtils.newCaptureMetadataInterceptor(responseHeaders, trailers))
+                .routeStreetMode(AUTO_REQUEST);
+        assertNull(trailers.get().get(StageTimingInterceptor.STAGE_TIMING_TRAILER));
+    }
+
+    private static router.RouterGrpc.RouterBlockingStub withGeometryFormat(String format, String precision) {
+        Metadata headers = new Metadata();
+        headers.put(RequestOptions.GEOMETRY_FORMAT_HEADER, format);
+        if (precision != null) {
+            headers.put(RequestOptions.GEOMETRY_PRECISION_HEADER, precision);
+        }
+        return routerStub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+    }
+
+    private static List<double[]> decodePolyline(String encoded, int precision) {
+        double scale = Math.pow(10, precision);
+        List<double[]> points = Lists.newArrayList();
+        long[] values = new long[2];
+        int index = 0;
+        while (index < encoded.length()) {
+            for (int i = 0; i < 2; i++) {
+                long result = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = encoded.charAt(index++) - 63;
+                    result |= (long) (b & 0x1f) << shift;
+                    shift += 5;
+                } while (b >= 0x20);
+                values[i] += (result & 1) != 0 ? ~(result >> 1) : result >> 1;
+            }
+            points.add(new double[]{values[0] / scale, values[1] / scale});
+        }
+        return points;
+    }
+
+    @Test
+    public void testStreetRouteCache() throws Exception {
+        router.RouterGrpc.RouterBlockingStub cachingStub = router.RouterGrpc.newBlockingStub(
+                startInProcessServer(Map.of("STREET_ROUTE_CACHE_SIZE_MB", 16)));
+
+        // Cached replies should be identical to uncached ones, both on a miss and on a subsequent hit
+        final RouterOuterClass.StreetRouteReply uncachedResponse = routerStub.routeStreetMode(AUTO_REQUEST);
+        final RouterOuterClass.StreetRouteReply firstCachingResponse = cachingStub.routeStreetMode(AUTO_REQUEST);
+        final RouterOuterClass.StreetRouteReply secondCachingResponse = cachingStub.routeStreetMode(AUTO_REQUEST);
+        assertEquals(uncachedResponse, firstCachingResponse);
+        assertEquals(uncachedResponse, secondCachingResponse);
+
+        // Errors are passed through, and aren't cached
+        RouterOuterClass.StreetRouteRequest badAutoRequest = AUTO_REQUEST.toBuilder()
+                .setPoints(0, RouterOuterClass.Point.newBuilder().setLat(38.0).setLon(-94.0).build()).build();
+        for (int i = 0; i < 2; i++) {
+            StatusRuntimeException exception =
+                    assertThrows(StatusRuntimeException.class, () -> cachingStub.routeStreetMode(badAutoRequest));
+            assertSame(exception.getStatus().getCode(), Status.NOT_FOUND.getCode());
+        }
+    }
+
+    @Test
+    public void testRequestCoalescing() throws Exception {
+        router.RouterGrpc.RouterFutureStub coalescingStub = router.RouterGrpc.newFutureStub(
+                startInProcessServer(Map.of("REQUEST_COALESCING", 1)));
+
+        // Concurrent identical requests should all receive the same reply as an uncoalesced request. They're all
+        // released at once, so they overlap (RequestCoalescerTest checks that overlapping requests are coalesced)
+        final RouterOuterClass.StreetRouteReply uncachedResponse = routerStub.routeStreetMode(AUTO_REQUEST);
+        final RouterOuterClass.PtRouteReply uncachedPtResponse = routerStub.routePt(PT_REQUEST_DIFF_FEEDS);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<RouterOuterClass.StreetRouteReply>> streetResponses = Lists.newArrayList();
+            List<Future<RouterOuterClass.PtRouteReply>> ptResponses = Lists.newArrayList();
+            for (int i = 0; i < 4; i++) {
+                streetResponses.add(executor.submit(() -> {
+                    start.await();
+                    return coalescingStub.routeStreetMode(AUTO_REQUEST).get();
+                }));
+                ptResponses.add(executor.submit(() -> {
+                    start.await();
+                    return coalescingStub.routePt(PT_REQUEST_DIFF_FEEDS).get();
+                }));
+            }
+            start.countDown();
+            for (Future<RouterOuterClass.StreetRouteReply> response : streetResponses) {
+                assertEquals(uncachedResponse, response.get());
+            }
+            for (Future<RouterOuterClass.PtRouteReply> response : ptResponses) {
+                assertEquals(uncachedPtResponse, response.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSnapCache() throws Exception {
+        router.RouterGrpc.RouterBlockingStub cachingStub = router.RouterGrpc.newBlockingStub(
+                startInProcessServer(Map.of("SNAP_CACHE_MAX_ENTRIES", 1000)));
+
+        // Isochrones computed from cached snaps should be identical to those computed from fresh ones
+        final RouterOuterClass.IsochroneRouteReply uncachedResponse = routerStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_THREE_BUCKET);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(uncachedResponse, cachingStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_THREE_BUCKET));
+        }
+
+        final RouterOuterClass.IsochroneRouteReply uncachedPtResponse = routerStub.routePtIsochrone(PT_ISOCHRONE_REQUEST_THREE_BUCKET);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(uncachedPtResponse, cachingStub.routePtIsochrone(PT_ISOCHRONE_REQUEST_THREE_BUCKET));
+        }
+
+        // PT routes snap their origin and destination through the cache too
+        final RouterOuterClass.PtRouteReply uncachedPtRouteResponse = routerStub.routePt(PT_REQUEST_DIFF_FEEDS);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(uncachedPtRouteResponse, cachingStub.routePt(PT_REQUEST_DIFF_FEEDS));
+        }
+        // Unless they're snapped with different access and egress filters
+        assertEquals(routerStub.routePt(PT_REQUEST_PARK_N_RIDE), cachingStub.routePt(PT_REQUEST_PARK_N_RIDE));
+
+        // Points that can't be snapped are cached too, and still produce errors
+        for (int i = 0; i < 2; i++) {
+            assertThrows(RuntimeException.class, () -> cachingStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_OUT_OF_BOUNDS));
+        }
+    }
+
+    @Test
+    public void testIsochroneCache() throws Exception {
+        router.RouterGrpc.RouterBlockingStub cachingStub = router.RouterGrpc.newBlockingStub(
+                startInProcessServer(Map.of("ISOCHRONE_CACHE_SIZE_MB", 16, "ISOCHRONE_CACHE_TTL_SECS", 60)));
+
+        // Cached isochrones should be identical to uncached ones, both on a miss and on a subsequent hit
+        final RouterOuterClass.IsochroneRouteReply uncachedResponse = routerStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_THREE_BUCKET);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(uncachedResponse, cachingStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_THREE_BUCKET));
+        }
+
+        // Requests from the same center with different parameters don't share entries
+        assertEquals(routerStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_REVERSE_FLOW),
+                cachingStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_REVERSE_FLOW));
+        assertEquals(5, cachingStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_FIVE_BUCKET).getBucketsCount());
+
+        // Errors are passed through, and aren't cached
+        for (int i = 0; i < 2; i++) {
+            assertThrows(RuntimeException.class, () -> cachingStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_OUT_OF_BOUNDS));
+        }
+    }
+
+    @Test
+    public void testStreetIsochroneRaster() {
+        router.RouterExtensionsGrpc.RouterExtensionsBlockingStub extensionsStub =
+                router.RouterExtensionsGrpc.newBlockingStub(routerStub.getChannel());
+        RouterExtensionsOuterClass.IsochroneRasterRequest rasterRequest = RouterExtensionsOuterClass.IsochroneRasterRequest.newBuilder()
+                .setIsochrone(STREET_ISOCHRONE_REQUEST_THREE_BUCKET)
+                .setCellSize(100)
+                .build();
+        ByteBuffer raster = extensionsStub.routeIsochroneRaster(rasterRequest).getRaster()
+                .asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        double west = raster.getDouble();
+        double north = raster.getDouble();
+        double cellWidth = raster.getDouble();
+        double cellHeight = raster.getDouble();
+        int width = raster.getInt();
+        int height = raster.getInt();
+        double unit = raster.getDouble();
+        assertEquals(TravelTimeRaster.HEADER_BYTES + width * height * 2, raster.limit());
+        assertEquals(1.0, unit);
+
+        // The center is reached almost immediately, and no reached cell is past the 5 minute limit
+        int centerColumn = (int) ((REQUEST_ORIGIN_2[1] - west) / cellWidth);
+        int centerRow = (int) ((north - REQUEST_ORIGIN_2[0]) / cellHeight);
+        int reachedCells = 0;
+        int centerNeighborhoodMin = TravelTimeRaster.UNREACHED;
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                int value = raster.getChar(TravelTimeRaster.HEADER_BYTES + (row * width + column) * 2);
+                if (value != TravelTimeRaster.UNREACHED) {
+                    reachedCells++;
+                    assertTrue(value <= 60 * 5);
+                    if (Math.abs(row - centerRow) <= 1 && Math.abs(column - centerColumn) <= 1) {
+                        centerNeighborhoodMin = Math.min(centerNeighborhoodMin, value);
+                    }
+                }
+            }
+        }
+        assertTrue(reachedCells > 1);
+        assertTrue(centerNeighborhoodMin < 60);
+
+        // The cell size defaults to 50m, and the request's tolerance doesn't change it
+        ByteBuffer defaultRaster = extensionsStub.routeIsochroneRaster(rasterRequest.toBuilder()
+                .clearCellSize()
+                .setIsochrone(STREET_ISOCHRONE_REQUEST_THREE_BUCKET.toBuilder().setTolerance(100))
+                .build()).getRaster().asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(cellHeight / 2, defaultRaster.getDouble(3 * Double.BYTES), 1e-12);
+
+        // Cell sizes that would give huge rasters (including ones so small the cell counts overflow), and negative
+        // ones, are rejected
+        for (double cellSize : new double[]{0.01, 1e-9, 1e-300, Double.MIN_VALUE, -1, Double.NaN}) {
+            StatusRuntimeException exception = assertThrows(StatusRuntimeException.class, () ->
+                    extensionsStub.routeIsochroneRaster(rasterRequest.toBuilder().setCellSize(cellSize).build()));
+            assertSame(exception.getStatus().getCode(), Status.INVALID_ARGUMENT.getCode());
+        }
+        StatusRuntimeException exception = assertThrows(StatusRuntimeException.class, () ->
+                extensionsStub.routeIsochroneRaster(rasterRequest.toBuilder().setIsochrone(STREET_ISOCHRONE_REQUEST_OUT_OF_BOUNDS).build()));
+        assertSame(exception.getStatus().getCode(), Status.NOT_FOUND.getCode());
+    }
+
     @Test
     public void testStreetIsochrone() throws ParseException {
         final RouterOuterClass.IsochroneRouteReply threeBucketResponse = routerStub.routeIsochrone(STREET_ISOCHRONE_REQUEST_THREE_BUCKET);
@@ -777,6 +1097,21 @@ public class RouterServerTest extends ReplicaGraphHopperTest {
             routerStub.routePtIsochrone(PT_ISOCHRONE_REQUEST_OUT_OF_BOUNDS);
         });
 
+        // Each bucket's explored points include all of the previous bucket's, and buckets with the same limit
+        // contain the same points however many buckets there are
+        RouterOuterClass.IsochroneRouteReply threeBucketPoints = routerStub.routePtIsochrone(
+                PT_ISOCHRONE_REQUEST_THREE_BUCKET.toBuilder().setResultFormat("multipoint").build());
+        RouterOuterClass.IsochroneRouteReply fiveBucketPoints = routerStub.routePtIsochrone(
+                PT_ISOCHRONE_REQUEST_FIVE_BUCKET.toBuilder().setResultFormat("multipoint").build());
+        for (int i = 1; i < fiveBucketPoints.getBucketsCount(); i++) {
+            Geometry innerPoints = wktReader.read(fiveBucketPoints.getBuckets(i - 1).getGeometry());
+            Geometry outerPoints = wktReader.read(fiveBucketPoints.getBuckets(i).getGeometry());
+            assertTrue(outerPoints.getNumPoints() >= innerPoints.getNumPoints());
+            assertTrue(outerPoints.covers(innerPoints));
+        }
+        assertTrue(wktReader.read(threeBucketPoints.getBuckets(2).getGeometry())
+                .equalsTopo(wktReader.read(fiveBucketPoints.getBuckets(4).getGeometry())));
+
         // TODO: re-enable once reverseFlow works properly for PT isochrones
         /*
         final RouterOuterClass.IsochroneRouteReply reverseFlowResponse = routerStub.routePtIsochrone(PT_ISOCHRONE_REQUEST_REVERSE_FLOW);
@@ -786,4 +1121,26 @@ public class RouterServerTest extends ReplicaGraphHopperTest {
         assertNotEquals(reverseFlowInnerBucket.getArea(), threeBucketInnerBucket.getArea());
         */
     }
+
+    @Test
+    public void testPtIsochroneContourThreads() throws Exception {
+        // routerStub computes contours on the request's thread (CONTOUR_THREADS 0)
+        router.RouterGrpc.RouterBlockingStub parallelStub = router.RouterGrpc.newBlockingStub(
+                startInProcessServer(Map.of("CONTOUR_THREADS", 4)));
+        final RouterOuterClass.IsochroneRouteReply sequentialResponse = routerStub.routePtIsochrone(PT_ISOCHRONE_REQUEST_FIVE_BUCKET);
+        final RouterOuterClass.IsochroneRouteReply parallelResponse = parallelStub.routePtIsochrone(PT_ISOCHRONE_REQUEST_FIVE_BUCKET);
+
+        // All buckets are contoured from one shared triangulation, so computing them in parallel gives the same polygons
+        assertEquals(sequentialResponse, parallelResponse);
+
+        // Each bucket's polygon contains the previous one (allowing ~1m for contours that meet at a shared vertex)
+        assertEquals(5, parallelResponse.getBucketsCount());
+        for (int i = 1; i < parallelResponse.getBucketsCount(); i++) {
+            Geometry inner = wktReader.read(parallelResponse.getBuckets(i - 1).getGeometry());
+            Geometry outer = wktReader.read(parallelResponse.getBuckets(i).getGeometry());
+            assertFalse(inner.isEmpty());
+            assertTrue(outer.getArea() >= inner.getArea());
+            assertTrue(outer.buffer(1e-5).covers(inner));
+        }
+    }
 }